@@ -0,0 +1,95 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+# @File : export_nlu.py
+"""
+Export a trained SimpleClassifier (nlu.py) for CPU serving by the chatbot's nlu_engine.
+
+Writes to the output directory:
+    model.onnx / model.int8.onnx   ONNX graph and its dynamic int8 quantization
+    model.int8.pt                  TorchScript module with dynamic int8 Linear layers
+    labels.json                    label strings in output order
+    tokenizer.json                 fast tokenizer of the BERT the model was trained from
+
+Run from this directory, like training, so nlu.py and its vocabulary paths resolve:
+    python export_nlu.py --archive tmp/bert_WOP_nlu_ft2/model.tar.gz \
+        --bert bert-base-chinese --out ../../../models/medical_nlp_model
+"""
+import argparse
+import json
+import os
+
+import torch
+from allennlp.models.archival import load_archive
+from transformers import AutoTokenizer
+
+import nlu  # noqa: F401  registers mds_reader and simple_classifier
+
+
+class ExportWrapper(torch.nn.Module):
+    """Plain-tensor forward pass: embedder -> encoder -> classifier -> sigmoid"""
+
+    def __init__(self, model):
+        super().__init__()
+        self.embedder = model.embedder
+        self.encoder = model.encoder
+        self.classifier = model.classifier
+
+    def forward(self, input_ids, attention_mask, token_type_ids):
+        mask = attention_mask.bool()
+        text = {'bert': {'token_ids': input_ids, 'mask': mask, 'type_ids': token_type_ids}}
+        encoded = self.encoder(self.embedder(text), mask)
+        return torch.sigmoid(self.classifier(encoded))
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument('--archive', required=True, help='model.tar.gz produced by allennlp train')
+    parser.add_argument('--bert', required=True, help='pretrained BERT name or path used for training')
+    parser.add_argument('--out', required=True)
+    parser.add_argument('--opset', type=int, default=14)
+    args = parser.parse_args()
+    os.makedirs(args.out, exist_ok=True)
+
+    model = load_archive(args.archive, cuda_device=-1).model.eval()
+    wrapper = ExportWrapper(model).eval()
+
+    labels = model.vocab.get_index_to_token_vocabulary('labels')
+    with open(os.path.join(args.out, 'labels.json'), 'w', encoding='utf-8') as f:
+        json.dump([labels[i] for i in range(len(labels))], f, ensure_ascii=False)
+
+    tokenizer = AutoTokenizer.from_pretrained(args.bert, use_fast=True)
+    tokenizer.backend_tokenizer.save(os.path.join(args.out, 'tokenizer.json'))
+
+    sample = tokenizer(['右腹部有点不舒服', '头疼'], padding=True, return_tensors='pt')
+    inputs = (sample['input_ids'], sample['attention_mask'], sample['token_type_ids'])
+
+    # ONNX, then dynamic int8 quantization of the weights
+    fp32_path = os.path.join(args.out, 'model.onnx')
+    torch.onnx.export(
+        wrapper, inputs, fp32_path,
+        input_names=['input_ids', 'attention_mask', 'token_type_ids'],
+        output_names=['probs'],
+        dynamic_axes={
+            'input_ids': {0: 'batch', 1: 'tokens'},
+            'attention_mask': {0: 'batch', 1: 'tokens'},
+            'token_type_ids': {0: 'batch', 1: 'tokens'},
+            'probs': {0: 'batch'}
+        },
+        opset_version=args.opset
+    )
+    from onnxruntime.quantization import QuantType, quantize_dynamic
+    quantize_dynamic(fp32_path, os.path.join(args.out, 'model.int8.onnx'), weight_type=QuantType.QInt8)
+
+    # TorchScript alternative for hosts with torch but no ONNX Runtime
+    quantized = torch.quantization.quantize_dynamic(wrapper, {torch.nn.Linear}, dtype=torch.qint8)
+    traced = torch.jit.trace(quantized, inputs, check_trace=False)
+    torch.jit.save(traced, os.path.join(args.out, 'model.int8.pt'))
+
+    with torch.no_grad():
+        reference = wrapper(*inputs)
+        drift = (reference - quantized(*inputs)).abs().max().item()
+    print(f'exported {len(labels)} labels to {args.out}; max int8 probability drift {drift:.4f}')
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,172 @@
+"""
+Backend Read Batching for MedReserve AI
+DataLoader-style de-duplication and batching of concurrent backend reads
+"""
+
+import asyncio
+from typing import Any, Awaitable, Callable, Coroutine, Dict, Hashable, List, Optional, Set
+from loguru import logger
+
+
+LoadOne = Callable[[Hashable], Awaitable[Any]]
+LoadMany = Callable[[List[Hashable]], Awaitable[Dict[Hashable, Any]]]
+
+
+class BatchLoadCancelled(Exception):
+    """The backend call a waiter was sharing was cancelled"""
+
+
+class BatchLoader:
+    """Collapses concurrent reads of the same key into one backend call
+
+    With load_many (a bulk endpoint), keys requested within `window` seconds
+    are sent as one batch. Without it, each distinct key is loaded on its own,
+    with at most `concurrency` backend calls in flight. Results are not kept
+    once every waiter has them; caching is the caller's concern.
+
+    A backend call that is cancelled (e.g. by close()) fails its waiters
+    with BatchLoadCancelled rather than leaving them waiting.
+    """
+
+    def __init__(
+        self,
+        name: str,
+        load_one: LoadOne,
+        load_many: Optional[LoadMany] = None,
+        window: float = 0.005,
+        max_batch: int = 100,
+        concurrency: int = 16
+    ):
+        self.name = name
+        self.load_one = load_one
+        self.load_many = load_many
+        self.window = window
+        self.max_batch = max_batch
+        self._semaphore = asyncio.Semaphore(concurrency)
+
+        # key -> result shared by every caller waiting on it
+        self._pending: Dict[Hashable, asyncio.Future] = {}
+        self._queue: List[Hashable] = []
+        self._timer: Optional[asyncio.TimerHandle] = None
+        # Backend call tasks, referenced until done so they are not collected
+        self._tasks: Set[asyncio.Task] = set()
+
+        self.requests = 0
+        self.deduplicated = 0
+        self.backend_calls = 0
+        self.in_flight = 0
+
+    async def load(self, key: Hashable) -> Any:
+        """Result for key, joining an identical request already in flight"""
+        self.requests += 1
+        future = self._pending.get(key)
+        if future is not None:
+            self.deduplicated += 1
+            return await asyncio.shield(future)
+
+        loop = asyncio.get_running_loop()
+        future = loop.create_future()
+        future.add_done_callback(self._consume_exception)
+        self._pending[key] = future
+
+        if self.load_many is None:
+            self._spawn(self._run_one(key, future))
+        else:
+            self._queue.append(key)
+            if len(self._queue) >= self.max_batch:
+                self._dispatch()
+            elif self._timer is None:
+                self._timer = loop.call_later(self.window, self._dispatch)
+
+        return await asyncio.shield(future)
+
+    def _spawn(self, coroutine: Coroutine):
+        task = asyncio.create_task(coroutine)
+        self._tasks.add(task)
+        task.add_done_callback(self._tasks.discard)
+
+    @staticmethod
+    def _consume_exception(future: asyncio.Future):
+        # Waiters may all have gone away; don't log "exception never retrieved"
+        if not future.cancelled():
+            future.exception()
+
+    async def _run_one(self, key: Hashable, future: asyncio.Future):
+        try:
+            async with self._semaphore:
+                self.in_flight += 1
+                self.backend_calls += 1
+                try:
+                    result = await self.load_one(key)
+                finally:
+                    self.in_flight -= 1
+            if not future.done():
+                future.set_result(result)
+        except Exception as e:
+            if not future.done():
+                future.set_exception(e)
+        finally:
+            self._pending.pop(key, None)
+            if not future.done():
+                future.set_exception(BatchLoadCancelled(f"Load {self.name} of {key!r} was cancelled"))
+
+    def _dispatch(self):
+        """Send everything queued so far as one batch"""
+        if self._timer is not None:
+            self._timer.cancel()
+            self._timer = None
+        keys, self._queue = self._queue, []
+        if keys:
+            self._spawn(self._run_many(keys))
+
+    async def _run_many(self, keys: List[Hashable]):
+        try:
+            async with self._semaphore:
+                self.in_flight += 1
+                self.backend_calls += 1
+                try:
+                    results = await self.load_many(keys)
+                finally:
+                    self.in_flight -= 1
+            for key in keys:
+                future = self._pending.get(key)
+                if future is not None and not future.done():
+                    future.set_result(results.get(key))
+        except Exception as e:
+            logger.warning(f"Batch load {self.name} of {len(keys)} keys failed: {str(e)}")
+            for key in keys:
+                future = self._pending.get(key)
+                if future is not None and not future.done():
+                    future.set_exception(e)
+        finally:
+            for key in keys:
+                future = self._pending.pop(key, None)
+                if future is not None and not future.done():
+                    future.set_exception(BatchLoadCancelled(f"Batch load {self.name} was cancelled"))
+
+    async def close(self):
+        """Cancel queued and in-flight backend calls; their waiters get BatchLoadCancelled"""
+        if self._timer is not None:
+            self._timer.cancel()
+            self._timer = None
+        keys, self._queue = self._queue, []
+        for key in keys:
+            future = self._pending.pop(key, None)
+            if future is not None and not future.done():
+                future.set_exception(BatchLoadCancelled(f"Batch load {self.name} was cancelled"))
+
+        tasks = list(self._tasks)
+        for task in tasks:
+            task.cancel()
+        if tasks:
+            await asyncio.gather(*tasks, return_exceptions=True)
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'requests': self.requests,
+            'deduplicated': self.deduplicated,
+            'backend_calls': self.backend_calls,
+            'in_flight': self.in_flight,
+            'tasks': len(self._tasks),
+            'pending_keys': len(self._pending)
+        }
@@ -0,0 +1,290 @@
+"""
+Backend Response Cache for MedReserve AI
+Read-through cache for slow-changing Spring Boot lookups (doctor directory, availability)
+"""
+
+import asyncio
+import json
+import time
+import uuid
+from collections import OrderedDict
+from typing import Any, Awaitable, Callable, Dict, Optional, Set
+from loguru import logger
+
+
+Loader = Callable[[], Awaitable[Any]]
+
+
+def _copy(value: Any) -> Any:
+    """Copy of a JSON-like value, so callers never mutate a cached object"""
+    if isinstance(value, dict):
+        return {key: _copy(item) for key, item in value.items()}
+    if isinstance(value, list):
+        return [_copy(item) for item in value]
+    return value
+
+
+class ReadThroughCache:
+    """LRU memory tier with an optional shared Redis tier
+
+    Fresh entries are served directly. Entries past their TTL but within the
+    stale window are served immediately while one background refresh runs.
+    Concurrent misses for a key share a single backend call. Callers get
+    their own copy of the value.
+
+    With Redis, invalidate() also clears the shared tier and is published to
+    every other worker's memory tier.
+    """
+
+    def __init__(
+        self,
+        name: str,
+        ttl: float,
+        stale_ttl: float,
+        max_entries: int = 1024,
+        redis_url: Optional[str] = None
+    ):
+        self.name = name
+        self.ttl = ttl
+        self.stale_ttl = stale_ttl
+        self.max_entries = max_entries
+        self.redis_url = redis_url
+        self._redis = None
+        self.instance = uuid.uuid4().hex
+        self._listener: Optional[asyncio.Task] = None
+        # Background Redis deletes and invalidation broadcasts
+        self._tasks: Set[asyncio.Task] = set()
+
+        # key -> (value, fresh_until, stale_until), monotonic deadlines
+        self._entries: OrderedDict = OrderedDict()
+        # key -> load in progress, shared by concurrent callers
+        self._loads: Dict[str, asyncio.Task] = {}
+        # Bumped by invalidate() so loads started earlier are not stored
+        self._generation = 0
+
+        self.invalidations_received = 0
+        self.hits = 0
+        self.stale_hits = 0
+        self.stale_on_error = 0
+        self.misses = 0
+        self.redis_hits = 0
+        self.coalesced = 0
+        self.loads = 0
+        self.load_errors = 0
+        self.load_seconds = 0.0
+        self.max_load_seconds = 0.0
+
+    async def get(self, key: str, loader: Loader, ttl: Optional[float] = None) -> Any:
+        """Cached value for key, calling loader on a miss; ttl overrides the default for this key"""
+        entry = self._entries.get(key)
+        now = time.monotonic()
+
+        if entry is not None:
+            value, fresh_until, stale_until = entry
+            if now < fresh_until:
+                self._entries.move_to_end(key)
+                self.hits += 1
+                return _copy(value)
+            if now < stale_until:
+                self._entries.move_to_end(key)
+                self.stale_hits += 1
+                self._load(key, loader, ttl)
+                return _copy(value)
+
+        self.misses += 1
+        if key in self._loads:
+            self.coalesced += 1
+        try:
+            return _copy(await asyncio.shield(self._load(key, loader, ttl, check_redis=True)))
+        except Exception:
+            if entry is None:
+                raise
+            # Backend failing: an expired answer beats no answer
+            self.stale_on_error += 1
+            return _copy(entry[0])
+
+    def _load(self, key: str, loader: Loader, ttl: Optional[float], check_redis: bool = False) -> asyncio.Task:
+        """Start (or join) the single in-flight load for key"""
+        task = self._loads.get(key)
+        if task is None:
+            task = asyncio.create_task(self._run_load(key, loader, ttl, check_redis))
+            self._loads[key] = task
+            task.add_done_callback(lambda done: self._finish_load(key, done))
+        return task
+
+    def _finish_load(self, key: str, task: asyncio.Task):
+        if self._loads.get(key) is task:
+            del self._loads[key]
+        if not task.cancelled() and task.exception() is not None:
+            logger.warning(f"Cache {self.name}: load for {key} failed: {str(task.exception())}")
+
+    async def _run_load(self, key: str, loader: Loader, ttl: Optional[float], check_redis: bool) -> Any:
+        ttl = self.ttl if ttl is None else ttl
+        generation = self._generation
+
+        if check_redis and self.redis_url:
+            shared = await self._redis_get(key)
+            if shared is not None:
+                value, remaining = shared
+                self.redis_hits += 1
+                self._store(key, value, min(ttl, remaining))
+                return value
+
+        started = time.perf_counter()
+        try:
+            value = await loader()
+        except Exception:
+            self.load_errors += 1
+            raise
+        finally:
+            elapsed = time.perf_counter() - started
+            self.loads += 1
+            self.load_seconds += elapsed
+            self.max_load_seconds = max(self.max_load_seconds, elapsed)
+
+        if generation == self._generation:
+            self._store(key, value, ttl)
+            if self.redis_url:
+                await self._redis_set(key, value, ttl)
+        return value
+
+    def _store(self, key: str, value: Any, ttl: float):
+        now = time.monotonic()
+        self._entries[key] = (value, now + ttl, now + ttl + self.stale_ttl)
+        self._entries.move_to_end(key)
+        while len(self._entries) > self.max_entries:
+            self._entries.popitem(last=False)
+
+    def invalidate(self, key: Optional[str] = None):
+        """Drop one key, or every key, from both tiers and every worker's memory tier"""
+        self._drop_local(key)
+        if self.redis_url:
+            task = asyncio.create_task(self._redis_invalidate(key))
+            self._tasks.add(task)
+            task.add_done_callback(self._tasks.discard)
+
+    def _drop_local(self, key: Optional[str]):
+        self._generation += 1
+        if key is None:
+            self._entries.clear()
+            self._loads.clear()
+        else:
+            self._entries.pop(key, None)
+            self._loads.pop(key, None)
+
+    async def start(self):
+        """Listen for invalidations published by other workers"""
+        if self.redis_url and self._listener is None:
+            self._listener = asyncio.create_task(self._listen())
+
+    # Redis tier
+
+    def _channel(self) -> str:
+        return f"medreserve:cache:{self.name}:invalidate"
+
+    def _redis_key(self, key: str) -> str:
+        return f"medreserve:cache:{self.name}:{key}"
+
+    def _get_redis(self):
+        if self._redis is None:
+            import redis.asyncio as aioredis
+            self._redis = aioredis.from_url(self.redis_url)
+        return self._redis
+
+    async def _redis_get(self, key: str) -> Optional[tuple]:
+        """(value, seconds until stale) from the shared tier, if fresh there"""
+        try:
+            raw = await self._get_redis().get(self._redis_key(key))
+            if raw is None:
+                return None
+            record = json.loads(raw)
+            remaining = record['fresh_until'] - time.time()
+            if remaining <= 0:
+                return None
+            return record['value'], remaining
+        except Exception as e:
+            logger.warning(f"Cache {self.name}: Redis read failed: {str(e)}")
+            return None
+
+    async def _redis_set(self, key: str, value: Any, ttl: float):
+        try:
+            record = json.dumps({'value': value, 'fresh_until': time.time() + ttl})
+            await self._get_redis().set(self._redis_key(key), record, ex=max(1, int(ttl + self.stale_ttl)))
+        except Exception as e:
+            logger.warning(f"Cache {self.name}: Redis write failed: {str(e)}")
+
+    async def _redis_invalidate(self, key: Optional[str]):
+        """Delete from the shared tier, then tell the other workers to drop their copies"""
+        try:
+            redis = self._get_redis()
+            if key is not None:
+                await redis.delete(self._redis_key(key))
+            else:
+                async for name in redis.scan_iter(match=self._redis_key('*')):
+                    await redis.delete(name)
+            await redis.publish(self._channel(), json.dumps({'key': key, 'origin': self.instance}))
+        except Exception as e:
+            logger.warning(f"Cache {self.name}: Redis invalidation failed: {str(e)}")
+
+    async def _listen(self):
+        """Apply other workers' invalidations, resubscribing after connection loss"""
+        while True:
+            pubsub = self._get_redis().pubsub(ignore_subscribe_messages=True)
+            try:
+                await pubsub.subscribe(self._channel())
+                # Anything cached before the subscription may have missed an invalidation
+                self._drop_local(None)
+                async for item in pubsub.listen():
+                    try:
+                        message = json.loads(item['data'])
+                    except (TypeError, ValueError):
+                        continue
+                    if message.get('origin') == self.instance:
+                        continue
+                    self.invalidations_received += 1
+                    self._drop_local(message.get('key'))
+            except asyncio.CancelledError:
+                raise
+            except Exception as e:
+                logger.warning(f"Cache {self.name}: invalidation subscription lost: {str(e)}")
+                await asyncio.sleep(1)
+            finally:
+                try:
+                    await pubsub.close()
+                except Exception:
+                    pass
+
+    async def close(self):
+        if self._listener is not None:
+            self._listener.cancel()
+            try:
+                await self._listener
+            except asyncio.CancelledError:
+                pass
+            self._listener = None
+        for task in list(self._loads.values()):
+            task.cancel()
+        if self._tasks:
+            # Let queued invalidations reach Redis before the connection closes
+            await asyncio.gather(*self._tasks, return_exceptions=True)
+        if self._redis is not None:
+            await self._redis.close()
+            self._redis = None
+
+    def get_stats(self) -> Dict[str, Any]:
+        lookups = self.hits + self.stale_hits + self.misses
+        return {
+            'entries': len(self._entries),
+            'hits': self.hits,
+            'stale_hits': self.stale_hits,
+            'stale_on_error': self.stale_on_error,
+            'misses': self.misses,
+            'hit_rate': round((self.hits + self.stale_hits) / lookups, 4) if lookups else 0.0,
+            'redis_hits': self.redis_hits,
+            'invalidations_received': self.invalidations_received,
+            'coalesced': self.coalesced,
+            'loads': self.loads,
+            'load_errors': self.load_errors,
+            'avg_load_ms': round(self.load_seconds / self.loads * 1000, 2) if self.loads else 0.0,
+            'max_load_ms': round(self.max_load_seconds * 1000, 2)
+        }
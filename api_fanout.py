@@ -0,0 +1,110 @@
+"""
+Backend Fan-out for MedReserve AI
+Runs a handler's independent backend reads concurrently under one deadline
+"""
+
+import asyncio
+import time
+from typing import Any, Awaitable, Callable, Dict, List, Optional
+from loguru import logger
+
+
+Call = Callable[[], Awaitable[Any]]
+
+
+class FanOutResult:
+    """Outcome of a fan-out: values for reads that finished, errors for those that did not"""
+
+    def __init__(self):
+        self.values: Dict[str, Any] = {}
+        self.errors: Dict[str, BaseException] = {}
+        self.timed_out: List[str] = []
+        self.elapsed = 0.0
+
+    def get(self, name: str, default: Any = None) -> Any:
+        return self.values.get(name, default)
+
+    @property
+    def partial(self) -> bool:
+        """True if any optional read failed or missed the deadline"""
+        return bool(self.errors or self.timed_out)
+
+    @property
+    def missing(self) -> List[str]:
+        return list(self.errors) + self.timed_out
+
+
+class FanOut:
+    """Reads declared by a handler, run together with structured cancellation
+
+    Each read is started at once and cancelled if the deadline passes or the
+    caller is cancelled. A failing optional read only leaves its value missing
+    (the declared default is used); a failing required read cancels the others
+    and re-raises, so the handler falls back to its error reply.
+
+        fan_out = FanOut(deadline=3.0)
+        fan_out.add('patients', lambda: api_client.get_patients(token, doctor_id), required=True)
+        fan_out.add('appointments', lambda: api_client.get_appointments(token, doctor_id, 'DOCTOR'), default=[])
+        result = await fan_out.run()
+    """
+
+    def __init__(self, deadline: float, name: str = 'fan_out'):
+        self.deadline = deadline
+        self.name = name
+        self._calls: Dict[str, Call] = {}
+        self._required = set()
+        self._defaults: Dict[str, Any] = {}
+
+    def add(self, name: str, call: Call, required: bool = False, default: Any = None) -> 'FanOut':
+        self._calls[name] = call
+        self._defaults[name] = default
+        if required:
+            self._required.add(name)
+        return self
+
+    async def run(self) -> FanOutResult:
+        result = FanOutResult()
+        started = time.perf_counter()
+        tasks = {asyncio.create_task(call()): name for name, call in self._calls.items()}
+        pending = set(tasks)
+        loop = asyncio.get_running_loop()
+        deadline = loop.time() + self.deadline
+
+        try:
+            while pending:
+                remaining = deadline - loop.time()
+                if remaining <= 0:
+                    break
+                done, pending = await asyncio.wait(pending, timeout=remaining, return_when=asyncio.FIRST_COMPLETED)
+                failed_required = None
+                for task in done:
+                    name = tasks[task]
+                    error = task.exception()
+                    if error is None:
+                        result.values[name] = task.result()
+                    elif name in self._required:
+                        failed_required = failed_required or error
+                    else:
+                        logger.warning(f"{self.name}: {name} failed, continuing without it: {str(error)}")
+                        result.errors[name] = error
+                if failed_required is not None:
+                    raise failed_required
+
+            for task in pending:
+                name = tasks[task]
+                if name in self._required:
+                    raise asyncio.TimeoutError(f"{self.name}: {name} missed the {self.deadline}s deadline")
+                result.timed_out.append(name)
+            if result.timed_out:
+                logger.warning(f"{self.name}: deadline passed without {', '.join(result.timed_out)}")
+        finally:
+            # Never leave reads running past the handler, whether it returns, raises or is cancelled
+            for task in pending:
+                task.cancel()
+            if pending:
+                await asyncio.gather(*pending, return_exceptions=True)
+            result.elapsed = time.perf_counter() - started
+
+        for name in result.missing:
+            result.values[name] = self._defaults[name]
+        return result
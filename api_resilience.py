@@ -0,0 +1,219 @@
+"""
+Backend Resilience for MedReserve AI
+Per-endpoint circuit breakers and adaptive (AIMD) concurrency limits for Spring Boot calls
+"""
+
+import asyncio
+import time
+from collections import deque
+from typing import Any, Dict
+from fastapi import HTTPException, status
+
+
+class BackendUnavailable(HTTPException):
+    """Raised without contacting the backend when a breaker is open or the limit is reached"""
+
+    def __init__(self, detail: str):
+        super().__init__(status_code=status.HTTP_503_SERVICE_UNAVAILABLE, detail=detail)
+
+
+class CircuitBreaker:
+    """Opens after consecutive failures; after reset_timeout lets one probe through
+
+    Every state change starts a new generation. Calls are admitted under the
+    current one, and outcomes recorded under an older generation are ignored:
+    a slow call admitted before the breaker opened says nothing about the
+    backend now, and must not close it or take the probe's place.
+    """
+
+    CLOSED = 'closed'
+    OPEN = 'open'
+    HALF_OPEN = 'half_open'
+
+    def __init__(self, failure_threshold: int, reset_timeout: float):
+        self.failure_threshold = failure_threshold
+        self.reset_timeout = reset_timeout
+        self.state = self.CLOSED
+        self.failures = 0
+        self.opened_at = 0.0
+        self.probing = False
+        self.times_opened = 0
+        self.generation = 0
+        self.stale = 0
+
+    def allow(self) -> bool:
+        if self.state == self.CLOSED:
+            return True
+        if self.state == self.OPEN:
+            if time.monotonic() - self.opened_at < self.reset_timeout:
+                return False
+            self._transition(self.HALF_OPEN)
+        # Half-open: a single trial request decides whether to close again
+        if self.probing:
+            return False
+        self.probing = True
+        return True
+
+    def record(self, ok: bool, generation: int):
+        """Outcome of a call admitted under generation"""
+        if generation != self.generation:
+            self.stale += 1
+            return
+        self.probing = False
+        if ok:
+            self.failures = 0
+            if self.state != self.CLOSED:
+                self._transition(self.CLOSED)
+            return
+
+        self.failures += 1
+        if self.state == self.HALF_OPEN or self.failures >= self.failure_threshold:
+            self.times_opened += 1
+            self._transition(self.OPEN)
+            self.opened_at = time.monotonic()
+
+    def release_probe(self, generation: int):
+        """Give up the half-open probe reserved under generation without an outcome"""
+        if self.state == self.HALF_OPEN and generation == self.generation:
+            self.probing = False
+
+    def _transition(self, state: str):
+        self.state = state
+        self.generation += 1
+        self.probing = False
+
+
+class AIMDLimiter:
+    """Concurrency limit that grows by ~1 per round trip of healthy calls and halves on trouble
+
+    Callers over the limit wait up to max_wait for a slot, then give up.
+    """
+
+    def __init__(
+        self,
+        initial: int,
+        minimum: int,
+        maximum: int,
+        slow_call: float,
+        max_wait: float,
+        backoff: float = 0.5
+    ):
+        self.limit = float(initial)
+        self.minimum = minimum
+        self.maximum = maximum
+        self.slow_call = slow_call
+        self.max_wait = max_wait
+        self.backoff = backoff
+        self.in_flight = 0
+        self._waiters: deque = deque()
+
+    async def acquire(self) -> bool:
+        if self.in_flight < int(self.limit) and not self._waiters:
+            self.in_flight += 1
+            return True
+
+        waiter = asyncio.get_running_loop().create_future()
+        self._waiters.append(waiter)
+        try:
+            await asyncio.wait_for(waiter, self.max_wait)
+            return True
+        except asyncio.TimeoutError:
+            # The slot may have been handed over just as the wait expired
+            return waiter.done() and not waiter.cancelled()
+        except asyncio.CancelledError:
+            if waiter.done() and not waiter.cancelled():
+                # Granted a slot the caller will never use
+                self.discard()
+            raise
+        finally:
+            if not waiter.done() or waiter.cancelled():
+                try:
+                    self._waiters.remove(waiter)
+                except ValueError:
+                    pass
+
+    def release(self, latency: float, ok: bool):
+        self.in_flight -= 1
+        if not ok or latency > self.slow_call:
+            self.limit = max(self.minimum, self.limit * self.backoff)
+        else:
+            self.limit = min(self.maximum, self.limit + 1 / self.limit)
+        self._wake()
+
+    def discard(self):
+        """Free a slot without judging the backend, for calls the caller abandoned"""
+        self.in_flight -= 1
+        self._wake()
+
+    def _wake(self):
+        """Hand freed slots to waiters in arrival order"""
+        while self._waiters and self.in_flight < int(self.limit):
+            waiter = self._waiters.popleft()
+            if not waiter.done():
+                self.in_flight += 1
+                waiter.set_result(None)
+
+    @property
+    def waiting(self) -> int:
+        return len(self._waiters)
+
+
+class EndpointGuard:
+    """Breaker and limiter for one endpoint group"""
+
+    def __init__(self, name: str, breaker: CircuitBreaker, limiter: AIMDLimiter):
+        self.name = name
+        self.breaker = breaker
+        self.limiter = limiter
+        self.rejected_open = 0
+        self.rejected_limit = 0
+        self.cancelled = 0
+
+    async def acquire(self) -> int:
+        """Reserve a slot, or raise BackendUnavailable: at once while the breaker is open,
+        or after the limiter's max wait when the endpoint is saturated
+
+        Returns the breaker generation the call was admitted under, to hand back
+        to release() or abandon().
+        """
+        if not self.breaker.allow():
+            self.rejected_open += 1
+            raise BackendUnavailable(f"Backend {self.name} is unavailable, try again shortly")
+        generation = self.breaker.generation
+        acquired = False
+        try:
+            acquired = await self.limiter.acquire()
+        finally:
+            if not acquired:
+                # The slot was never used (timed out or cancelled), so a probe must not stay reserved
+                self.breaker.release_probe(generation)
+        if not acquired:
+            self.rejected_limit += 1
+            raise BackendUnavailable(f"Backend {self.name} is overloaded, try again shortly")
+        return generation
+
+    def release(self, latency: float, ok: bool, generation: int):
+        # The slot and its latency count whenever the call was admitted; the breaker decides on staleness
+        self.limiter.release(latency, ok)
+        self.breaker.record(ok, generation)
+
+    def abandon(self, generation: int):
+        """Release a call its caller cancelled: says nothing about the backend,
+        so neither the limit nor the breaker moves"""
+        self.cancelled += 1
+        self.limiter.discard()
+        self.breaker.release_probe(generation)
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'state': self.breaker.state,
+            'consecutive_failures': self.breaker.failures,
+            'times_opened': self.breaker.times_opened,
+            'stale_outcomes': self.breaker.stale,
+            'in_flight': self.limiter.in_flight,
+            'waiting': self.limiter.waiting,
+            'concurrency_limit': round(self.limiter.limit, 2),
+            'rejected_open': self.rejected_open,
+            'rejected_limit': self.rejected_limit,
+            'cancelled': self.cancelled
+        }
@@ -0,0 +1,1293 @@
+#!/usr/bin/env python3
+"""
+MedReserve AI Chatbot - Real-time Chat Benchmarks
+In-process measurements of the ConnectionManager paths, each against the code
+it replaced where that is meaningful.
+
+    python benchmark_chat.py disconnect --rooms 1000,10000,100000,1000000
+    python benchmark_chat.py devices --users 100000 --devices 3
+    python benchmark_chat.py broadcast --connections 50000 --stalled 0.01 --queue-size 16
+    python benchmark_chat.py encode --recipients 1000,10000,100000
+    python benchmark_chat.py history --rooms 100000 --messages 120
+    python benchmark_chat.py codec --repeat 100000
+    python benchmark_chat.py compression --messages 100 --note-words 150
+    python benchmark_chat.py ids --count 1000000
+    python benchmark_chat.py auth --rps 5000 --seconds 10 --users 2000
+    python benchmark_chat.py backend --requests 5000 --concurrency 1,16,64 --delay-ms 5
+    python benchmark_chat.py fanout --requests 200 --concurrency 20
+    python benchmark_chat.py conversations --conversations 1000000 --samples 100000
+    python benchmark_chat.py receipts --rooms 1000 --unread 100
+    python benchmark_chat.py typing --rooms 1000 --seconds 60 --keys-per-second 5
+    python benchmark_chat.py log --seconds 10 --rooms 10000 --segment-bytes 8388608
+    python benchmark_chat.py backplane --nodes 1,2,4,8 --rooms 2000 --messages 20000
+"""
+
+import argparse
+import asyncio
+import json
+import shutil
+import tempfile
+import time
+import zlib
+import tracemalloc
+from typing import List
+
+from benchmark_nlu import percentiles
+from config import settings
+
+# Benchmarks run without the durable log or a network backplane
+settings.chat_log_enabled = False
+settings.chat_backplane = 'memory'
+
+
+def _ints(value: str) -> List[int]:
+    return [int(item) for item in value.split(',')]
+
+
+def _manager():
+    from realtime_chat import ConnectionManager
+
+    return ConnectionManager()
+
+
+async def _disconnect_run(rooms: int, samples: int, rooms_per_user: int):
+    """Disconnect latency with `rooms` rooms, new index vs the old full scan"""
+    manager = _manager()
+    # Doctors each hold rooms_per_user rooms; patients one room each
+    doctors = max(1, rooms // rooms_per_user)
+    for index in range(rooms):
+        manager._join(f"chat_d{index % doctors}_p{index}", f"d{index % doctors}")
+        manager._join(f"chat_d{index % doctors}_p{index}", f"p{index}")
+
+    indexed, scanned = [], []
+    for sample in range(samples):
+        user_id = f"d{sample % doctors}"
+        started = time.perf_counter()
+        [room_id for room_id, participants in manager.chat_rooms.items() if user_id in participants]
+        scanned.append(time.perf_counter() - started)
+
+        started = time.perf_counter()
+        manager.disconnect(user_id)
+        await manager._release_rooms(user_id)
+        indexed.append(time.perf_counter() - started)
+    return indexed, scanned
+
+
+def bench_disconnect(args):
+    """Disconnect cost should not grow with the total number of rooms"""
+    print(f"{'rooms':>9}  disconnect (user -> rooms index)")
+    for rooms in args.rooms:
+        indexed, scanned = asyncio.run(_disconnect_run(rooms, args.samples, args.rooms_per_user))
+        print(f"{rooms:>9}  index {percentiles(indexed)}")
+        print(f"{'':>9}  scan  {percentiles(scanned)}")
+
+
+class FakeSocket:
+    """WebSocket stand-in that counts sends; a stalled one never completes a send"""
+
+    def __init__(self, stalled: bool, delivered: List[int], wake: asyncio.Event):
+        self.stalled = stalled
+        self.delivered = delivered
+        self.wake = wake
+
+    async def send_text(self, payload):
+        if self.stalled:
+            await asyncio.Event().wait()
+        self.delivered[0] += 1
+        self.wake.set()
+
+    send_bytes = send_text
+
+    async def accept(self, subprotocol=None):
+        pass
+
+    async def close(self, code: int = 1000, reason: str = ''):
+        pass
+
+
+async def _drain(delivered: List[int], wake: asyncio.Event, expected: int):
+    while delivered[0] < expected:
+        wake.clear()
+        await wake.wait()
+
+
+async def _devices_run(users: int, devices: int, samples: int):
+    from loguru import logger
+    from utils import JWTHandler
+
+    # Connection logging and token checks are not what is measured here
+    logger.disable('realtime_chat')
+    JWTHandler.get_user_from_token = staticmethod(lambda token: {'role': 'PATIENT', 'full_name': 'Load Test'})
+
+    manager = _manager()
+    delivered, wake = [0], asyncio.Event()
+    pairs = users // 2
+    connection_ids = {}
+
+    tracemalloc.start()
+    baseline, _ = tracemalloc.get_traced_memory()
+    started = time.perf_counter()
+    for pair in range(pairs):
+        for user_id in (f"doctor_{pair}", f"patient_{pair}"):
+            connection_ids[user_id] = [
+                await manager.connect(FakeSocket(False, delivered, wake), user_id, 'token')
+                for _ in range(devices)
+            ]
+        manager.create_chat_room(f"doctor_{pair}", f"patient_{pair}")
+    connect_elapsed = time.perf_counter() - started
+    await _drain(delivered, wake, pairs * 2 * devices)
+    held, _ = tracemalloc.get_traced_memory()
+    tracemalloc.stop()
+
+    # One chat message reaches every device of both participants
+    sends = []
+    for sample in range(samples):
+        pair = sample * 7919 % pairs
+        expected = delivered[0] + 2 * devices
+        started = time.perf_counter()
+        await manager.handle_chat_message({'room_id': f"chat_doctor_{pair}_patient_{pair}", 'content': 'ok'}, f"doctor_{pair}")
+        await _drain(delivered, wake, expected)
+        sends.append(time.perf_counter() - started)
+
+    # Devices leave one by one; the room is left only with the last one
+    leaves, kept, released = [], 0, 0
+    for sample in range(samples):
+        pair = sample * 7919 % pairs
+        user_id, room_id = f"patient_{pair}", f"chat_doctor_{pair}_patient_{pair}"
+        for index, connection_id in enumerate(connection_ids[user_id]):
+            started = time.perf_counter()
+            manager.disconnect(user_id, connection_id)
+            await manager._release_rooms(user_id)
+            leaves.append(time.perf_counter() - started)
+            member = user_id in manager.chat_rooms.get(room_id, ())
+            if index < devices - 1:
+                kept += member
+            else:
+                released += not member
+
+    for connections_of_user in manager.active_connections.values():
+        for writer in connections_of_user.values():
+            writer.close()
+    return {
+        'connections': pairs * 2 * devices,
+        'connect_elapsed': connect_elapsed,
+        'held': held - baseline,
+        'sends': sends,
+        'leaves': leaves,
+        'kept': kept,
+        'released': released
+    }
+
+
+def bench_devices(args):
+    """Many users with several devices each: memory per connection, fan-out to
+    every device, and room membership kept until the last device leaves"""
+    result = asyncio.run(_devices_run(args.users, args.devices, args.samples))
+    connections = result['connections']
+    print(f"{args.users:,} users x {args.devices} devices = {connections:,} connections, "
+          f"{args.users // 2:,} rooms (tracemalloc on while connecting)")
+    print(f"connect       {connections / result['connect_elapsed']:,.0f} connections/s")
+    print(f"memory        {result['held'] / 2 ** 20:.1f} MiB | {result['held'] / connections:,.0f} bytes per idle connection "
+          f"(writer, socket stub, room and presence state)")
+    print(f"room message  {percentiles(result['sends'])} until all {2 * args.devices} devices have it")
+    print(f"device leaves {percentiles(result['leaves'])}")
+    print(f"membership    kept while devices remain: {result['kept']}/{args.samples * (args.devices - 1)} | "
+          f"released with the last device: {result['released']}/{args.samples}")
+
+
+async def _broadcast_run(connections: int, stalled_ratio: float, rounds: int):
+    from chat_codec import json_codec
+    from realtime_chat import ConnectionWriter
+
+    manager = _manager()
+    delivered, wake = [0], asyncio.Event()
+    stalled_every = int(1 / stalled_ratio) if stalled_ratio else 0
+    healthy = 0
+    for index in range(connections):
+        stalled = bool(stalled_every) and index % stalled_every == 0
+        healthy += not stalled
+        user_id = f"u{index}"
+        writer = ConnectionWriter(FakeSocket(stalled, delivered, wake), user_id, 'c0', json_codec, manager._drop_broken)
+        manager.active_connections[user_id] = {'c0': writer}
+
+    timings = []
+    for round_number in range(rounds):
+        expected = healthy * (round_number + 1)
+        started = time.perf_counter()
+        await manager.broadcast_system_message(f"maintenance notice {round_number}")
+        enqueued = time.perf_counter() - started
+        while delivered[0] < expected:
+            wake.clear()
+            await wake.wait()
+        timings.append((enqueued, time.perf_counter() - started))
+    slow = manager.heartbeat.reaped['slow']
+    for connections_of_user in manager.active_connections.values():
+        for writer in connections_of_user.values():
+            writer.close()
+    return timings, healthy, slow
+
+
+def bench_broadcast(args):
+    """A broadcast completes for healthy clients even when some never read"""
+    # A short queue makes the stalled clients overflow within a few broadcasts
+    settings.websocket_send_queue_size = args.queue_size
+    rounds = args.queue_size + 4
+    timings, healthy, slow = asyncio.run(_broadcast_run(args.connections, args.stalled, rounds))
+    enqueue = [enqueued for enqueued, _ in timings]
+    complete = [completed for _, completed in timings]
+    print(f"{args.connections} connections, {args.connections - healthy} stalled, {rounds} broadcasts "
+          f"(send queue {settings.websocket_send_queue_size})")
+    print(f"enqueue       {percentiles(enqueue)}")
+    print(f"all delivered {percentiles(complete)}")
+    print(f"stalled clients disconnected on overflow: {slow}")
+
+
+SAMPLE_CHAT_MESSAGE = {
+    'type': 'chat_message',
+    'message_type': 'text',
+    'room_id': 'chat_doctor_42_patient_1337',
+    'sender_id': 'doctor_42',
+    'sender_name': 'Dr. Asha Rao',
+    'sender_role': 'DOCTOR',
+    'content': 'Please take the tablets twice a day after meals and book a follow-up next week.',
+    'timestamp': '2025-01-01T10:00:00.000000',
+    'message_id': 'msg_1234567890123456789'
+}
+
+
+async def _encode_run(recipients: int, repeat: int):
+    from chat_codec import json_codec
+    from realtime_chat import ConnectionWriter
+
+    manager = _manager()
+    delivered, wake = [0], asyncio.Event()
+    user_ids = [f"u{index}" for index in range(recipients)]
+    for user_id in user_ids:
+        writer = ConnectionWriter(FakeSocket(False, delivered, wake), user_id, 'c0', json_codec, manager._drop_broken)
+        manager.active_connections[user_id] = {'c0': writer}
+
+    async def drain(expected: int):
+        while delivered[0] < expected:
+            wake.clear()
+            await wake.wait()
+
+    per_recipient, shared = [], []
+    for _ in range(repeat):
+        # Previous behaviour: every recipient's send encodes the message again
+        started = time.process_time()
+        for user_id in user_ids:
+            manager._enqueue(SAMPLE_CHAT_MESSAGE, user_id)
+        per_recipient.append(time.process_time() - started)
+        await drain(delivered[0] + recipients)
+
+        started = time.process_time()
+        manager._deliver_local(SAMPLE_CHAT_MESSAGE, user_ids)
+        shared.append(time.process_time() - started)
+        await drain(delivered[0] + recipients)
+    return min(per_recipient), min(shared)
+
+
+def bench_encode(args):
+    """CPU cost of one room fan-out, encoding per recipient vs once"""
+    from chat_codec import orjson
+
+    print(f"encoder: {'orjson' if orjson is not None else 'json'}; CPU time of the fan-out call (best of {args.repeat})")
+    print(f"{'recipients':>10} {'per-recipient':>14} {'encode once':>12} {'saved':>6}")
+    for recipients in args.recipients:
+        per_recipient, shared = asyncio.run(_encode_run(recipients, args.repeat))
+        saved = 1 - shared / per_recipient if per_recipient else 0.0
+        print(f"{recipients:>10} {per_recipient * 1000:>11.1f} ms {shared * 1000:>9.1f} ms {saved:>6.0%}")
+
+
+def _history_run(store_factory, rooms: int, messages: int):
+    """(MiB held, µs per append) after writing `messages` messages to each of `rooms` rooms"""
+    tracemalloc.start()
+    store, append = store_factory()
+    started = time.perf_counter()
+    for sequence in range(messages):
+        # Distinct messages, so evicted ones are really released
+        for room in range(rooms):
+            append(store, f"chat_d{room}_p{room}", {'message_id': f"msg_{sequence}", 'content': 'ok'})
+    elapsed = time.perf_counter() - started
+    current, _ = tracemalloc.get_traced_memory()
+    tracemalloc.stop()
+    return current / 2 ** 20, elapsed / (rooms * messages) * 1e6, store
+
+
+def bench_history(args):
+    """History memory with many rooms, ring buffers vs the old trimmed lists"""
+    from chat_history import MessageHistoryStore
+
+    def ring_buffers():
+        def append(store, room_id, message):
+            store.append(room_id, message)
+        return MessageHistoryStore(settings.max_conversation_history, args.cap), append
+
+    def trimmed_lists():
+        # Previous behaviour: list per room, rebuilt with [-100:] past 100 entries
+        def append(store, room_id, message):
+            history = store.setdefault(room_id, [])
+            history.append(message)
+            if len(history) > 100:
+                store[room_id] = history[-100:]
+        return {}, append
+
+    print(f"{args.rooms} rooms x {args.messages} messages; ring capacity {settings.max_conversation_history}, "
+          f"global cap {args.cap}")
+    held, per_append, store = _history_run(ring_buffers, args.rooms, args.messages)
+    stats = store.get_stats()
+    print(f"ring buffers  {held:8.1f} MiB | {per_append:.2f} µs/append | {stats['rooms']} rooms, "
+          f"{stats['messages']} messages resident, {stats['evicted_rooms']} rooms evicted")
+    held, per_append, store = _history_run(trimmed_lists, args.rooms, args.messages)
+    print(f"old lists     {held:8.1f} MiB | {per_append:.2f} µs/append | {len(store)} rooms, "
+          f"{sum(len(history) for history in store.values())} messages resident")
+
+
+CODEC_SAMPLES = {
+    'chat': SAMPLE_CHAT_MESSAGE,
+    'typing': {
+        'type': 'typing_indicator',
+        'room_id': 'chat_doctor_42_patient_1337',
+        'user_id': 'patient_1337',
+        'is_typing': True,
+        'timestamp': '2025-01-01T10:00:00.000000'
+    },
+    'status': {
+        'type': 'message_status',
+        'room_id': 'chat_doctor_42_patient_1337',
+        'message_id': 'msg_1234567890123456789',
+        'status': 'read',
+        'user_id': 'patient_1337',
+        'cumulative': True,
+        'timestamp': '2025-01-01T10:00:00.000000'
+    }
+}
+
+
+def bench_codec(args):
+    """Bytes on the wire and CPU per frame, JSON text vs MessagePack binary"""
+    from chat_codec import MsgpackCodec, json_codec, msgpack, orjson
+
+    codecs = [('json', json_codec)]
+    if msgpack is not None:
+        codecs.append(('msgpack', MsgpackCodec()))
+
+    def per_call(function, value) -> float:
+        started = time.perf_counter()
+        for _ in range(args.repeat):
+            function(value)
+        return (time.perf_counter() - started) / args.repeat * 1e6
+
+    print(f"json encoder: {'orjson' if orjson is not None else 'json'}; {args.repeat:,} frames per measurement")
+    print(f"{'message':<8} {'codec':<8} {'bytes':>6} {'deflated':>9} {'encode':>10} {'decode':>10}")
+    for name, message in CODEC_SAMPLES.items():
+        for codec_name, codec in codecs:
+            payload = codec.encode(message)
+            raw = payload if isinstance(payload, bytes) else payload.encode('utf-8')
+            # permessage-deflate, when the client negotiates it
+            deflated = len(zlib.compress(raw)) - 6
+            print(f"{name:<8} {codec_name:<8} {len(raw):>6} {deflated:>9} "
+                  f"{per_call(codec.encode, message):>7.2f} µs {per_call(codec.decode, payload):>7.2f} µs")
+    if msgpack is None:
+        print("msgpack is not installed; pip install msgpack to compare the binary subprotocol")
+
+
+NOTE_PHRASES = [
+    'patient reports', 'intermittent chest pain', 'shortness of breath on exertion', 'no fever',
+    'blood pressure', 'heart rate', 'continue metformin', 'start atorvastatin', 'mg twice daily',
+    'after meals', 'review in', 'weeks', 'ECG shows sinus rhythm', 'HbA1c', 'advised low salt diet',
+    'allergic to penicillin', 'follow-up with cardiology', 'lab results attached', 'mild oedema',
+    'denies palpitations', 'sleep improved', 'refer to physiotherapy', 'repeat lipid panel'
+]
+
+
+def _history_page(messages: int, note_words: int, seed: int = 7) -> List[dict]:
+    """A room's history: short chat lines mixed with long clinical notes"""
+    import random
+
+    rng = random.Random(seed)
+    page = []
+    for sequence in range(messages):
+        message = dict(SAMPLE_CHAT_MESSAGE, message_id=f"msg_{1234567890123456789 + sequence}")
+        if sequence % 4 == 0:
+            words = []
+            while len(words) < note_words:
+                words.extend(rng.choice(NOTE_PHRASES).split())
+                words.append(str(rng.randint(1, 180)))
+            message['content'] = ' '.join(words[:note_words]) + '.'
+        else:
+            message['content'] = f"{rng.choice(NOTE_PHRASES).capitalize()}, thanks {rng.randint(1, 99)}"
+        page.append(message)
+    return page
+
+
+def bench_compression(args):
+    """Bandwidth saved against CPU spent for a large history replay: the
+    chat_history frame over permessage-deflate and the REST history body"""
+    from chat_codec import json_codec
+    from utils import ResponseCompressor, brotli
+
+    history = _history_page(args.messages, args.note_words)
+    frame = json_codec.encode({'type': 'chat_history', 'room_id': SAMPLE_CHAT_MESSAGE['room_id'], 'messages': history})
+    frame = frame if isinstance(frame, bytes) else frame.encode('utf-8')
+    body = json_codec.encode({'room_id': SAMPLE_CHAT_MESSAGE['room_id'], 'messages': history})
+    body = body if isinstance(body, bytes) else body.encode('utf-8')
+
+    def best_cpu(compress, payload: bytes) -> float:
+        timings = []
+        for _ in range(args.repeat):
+            started = time.process_time()
+            compress(payload)
+            timings.append(time.process_time() - started)
+        return min(timings)
+
+    def deflate(level):
+        # permessage-deflate: raw deflate per message, as the websockets server sends it
+        def compress(payload):
+            compressor = zlib.compressobj(level, zlib.DEFLATED, -15)
+            return compressor.compress(payload) + compressor.flush(zlib.Z_SYNC_FLUSH)[:-4]
+        return compress
+
+    def response(encoding, level):
+        compressor = ResponseCompressor(0, level, level)
+        return lambda payload: compressor.compress(payload, encoding)[0]
+
+    variants = [('ws frame', f'deflate {level}', frame, deflate(level)) for level in args.deflate_levels]
+    variants += [('REST body', f'gzip {level}', body, response('gzip', level)) for level in args.gzip_levels]
+    if brotli is not None:
+        variants += [('REST body', f'br {quality}', body, response('br', quality)) for quality in args.brotli_qualities]
+
+    print(f"history of {args.messages} messages, every 4th a {args.note_words}-word clinical note; "
+          f"frame {len(frame):,} bytes, body {len(body):,} bytes; CPU best of {args.repeat}")
+    print(f"{'payload':<10} {'encoding':<10} {'bytes':>9} {'saved':>7} {'CPU':>10} {'MiB/s':>7} {'KiB saved/CPU ms':>17}")
+    for payload_name, encoding, payload, compress in variants:
+        size = len(compress(payload))
+        cpu = best_cpu(compress, payload)
+        saved = len(payload) - size
+        print(f"{payload_name:<10} {encoding:<10} {size:>9,} {saved / len(payload):>7.1%} {cpu * 1000:>7.2f} ms "
+              f"{len(payload) / cpu / 2 ** 20 if cpu else 0:>7.0f} {saved / 1024 / (cpu * 1000) if cpu else 0:>17.0f}")
+    if brotli is None:
+        print("brotli is not installed; pip install brotli to compare br qualities")
+
+
+def bench_ids(args):
+    """Message IDs per second on one core, against the timestamp IDs they replaced"""
+    from datetime import datetime
+    from utils import MessageIdGenerator
+
+    generator = MessageIdGenerator(1)
+    count = args.count
+
+    def rate(make) -> float:
+        started = time.perf_counter()
+        for _ in range(count):
+            make()
+        return count / (time.perf_counter() - started)
+
+    ids = [generator.next_message_id() for _ in range(count)]
+    parse = iter(ids)
+    old = [f"msg_{datetime.now().timestamp()}" for _ in range(count)]
+    print(f"{count:,} IDs per run, single thread")
+    print(f"next_id            {rate(generator.next_id):>12,.0f} IDs/s")
+    print(f"next_message_id    {rate(generator.next_message_id):>12,.0f} IDs/s")
+    print(f"parse              {rate(lambda: MessageIdGenerator.parse(next(parse))):>12,.0f} IDs/s")
+    print(f"old timestamp IDs  {rate(lambda: f'msg_{datetime.now().timestamp()}'):>12,.0f} IDs/s | "
+          f"{count - len(set(old)):,} duplicates in {count:,}")
+    print(f"snowflake IDs      {count - len(set(ids)):,} duplicates, sorted: {ids == sorted(ids, key=MessageIdGenerator.parse)}")
+
+
+def _auth_run(args, cache_entries: int):
+    """Paced requests at args.rps; returns per-request auth times, elapsed, cache stats"""
+    import random
+
+    import jwt
+    from utils import JWTHandler, VerifiedTokenCache
+
+    now = int(time.time())
+    tokens = [
+        jwt.encode({
+            'sub': f"user_{user}",
+            'username': f"user{user}",
+            'email': f"user{user}@example.com",
+            'role': 'PATIENT' if user % 10 else 'DOCTOR',
+            'full_name': f"User {user}",
+            'iat': now,
+            'exp': now + 3600
+        }, settings.jwt_secret_key, algorithm=settings.jwt_algorithm)
+        for user in range(args.users)
+    ]
+    JWTHandler.token_cache = VerifiedTokenCache(cache_entries, settings.jwt_cache_ttl)
+
+    rng = random.Random(1)
+    total = int(args.rps * args.seconds)
+    timings = []
+    started = time.perf_counter()
+    for request in range(total):
+        ahead = started + request / args.rps - time.perf_counter()
+        if ahead > 0.001:
+            time.sleep(ahead)
+        token = f"Bearer {rng.choice(tokens)}"
+        begun = time.perf_counter()
+        # The REST dependency, then the chatbot, each resolve the caller
+        for _ in range(args.decodes):
+            JWTHandler.get_user_from_token(token)
+        timings.append(time.perf_counter() - begun)
+    return timings, time.perf_counter() - started, JWTHandler.token_cache.get_stats()
+
+
+def bench_auth(args):
+    """Auth overhead per request at a paced request rate, with and without the
+    verified-token cache"""
+    import jwt
+
+    print(f"{args.rps:,} requests/s for {args.seconds:.0f} s, {args.users:,} active users, "
+          f"{args.decodes} token checks per request; PyJWT {jwt.__version__}, {settings.jwt_algorithm}")
+    for label, entries in (('jwt.decode', 0), ('cached', settings.jwt_cache_size)):
+        timings, elapsed, stats = _auth_run(args, entries)
+        busy = sum(timings)
+        print(f"{label:<11} {percentiles(timings)} | {busy / elapsed:6.1%} of one core | "
+              f"{len(timings) / elapsed:,.0f} requests/s | hit rate {stats['hit_rate']:.1%}")
+
+
+class StubBackendServer:
+    """Minimal keep-alive HTTP/1.1 server standing in for the Spring Boot API;
+    answers every request with a small appointment list after `delay` seconds"""
+
+    def __init__(self, delay: float):
+        self.delay = delay
+        self.connections = 0
+        self.requests = 0
+        self.body = json.dumps([
+            {'id': index, 'doctorName': 'Dr. Asha Rao', 'specialization': 'Cardiology',
+             'appointmentDateTime': f'2025-01-0{index + 1}T10:00:00', 'status': 'SCHEDULED'}
+            for index in range(5)
+        ]).encode('utf-8')
+        self._server = None
+
+    async def start(self) -> str:
+        self._server = await asyncio.start_server(self._serve, '127.0.0.1', 0)
+        host, port = self._server.sockets[0].getsockname()[:2]
+        return f"http://{host}:{port}/api"
+
+    async def stop(self):
+        self._server.close()
+        await self._server.wait_closed()
+
+    async def _serve(self, reader: asyncio.StreamReader, writer: asyncio.StreamWriter):
+        self.connections += 1
+        try:
+            while True:
+                head = await reader.readuntil(b'\r\n\r\n')
+                headers = head.decode('latin-1').lower()
+                length = 0
+                for line in headers.split('\r\n'):
+                    if line.startswith('content-length:'):
+                        length = int(line.split(':', 1)[1])
+                if length:
+                    await reader.readexactly(length)
+                self.requests += 1
+                if self.delay:
+                    await asyncio.sleep(self.delay)
+                close = 'connection: close' in headers
+                writer.write(
+                    b'HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n'
+                    b'Content-Length: %d\r\n%s\r\n' % (len(self.body), b'Connection: close\r\n' if close else b'')
+                    + self.body
+                )
+                await writer.drain()
+                if close:
+                    break
+        except (asyncio.IncompleteReadError, ConnectionError):
+            pass
+        finally:
+            writer.close()
+
+
+async def _backend_run(base_url: str, requests: int, concurrency: int, pooled: bool):
+    """Latency of get_appointments for distinct patients at a fixed concurrency"""
+    import httpx
+    from utils import SpringBootAPIClient
+
+    client = SpringBootAPIClient()
+    client.base_url = base_url
+    if pooled:
+        await client.start()
+
+    async def per_call(endpoint: str, token: str):
+        # Previous behaviour: a new AsyncClient, and so a new connection, per call
+        async with httpx.AsyncClient(timeout=30.0) as one_off:
+            response = await one_off.get(f"{base_url}{endpoint}", headers={'Authorization': f'Bearer {token}'})
+            response.raise_for_status()
+            return response.json()
+
+    semaphore = asyncio.Semaphore(concurrency)
+    latencies = []
+
+    async def one(index: int):
+        async with semaphore:
+            started = time.perf_counter()
+            if pooled:
+                await client.get_appointments('token', f"patient_{index}", 'PATIENT')
+            else:
+                await per_call(f"/appointments/patient/patient_{index}", 'token')
+            latencies.append(time.perf_counter() - started)
+
+    started = time.perf_counter()
+    await asyncio.gather(*(one(index) for index in range(requests)))
+    elapsed = time.perf_counter() - started
+    if pooled:
+        await client.close()
+    return latencies, elapsed
+
+
+async def _backend_bench(args):
+    server = StubBackendServer(args.delay_ms / 1000)
+    base_url = await server.start()
+    try:
+        print(f"get_appointments against a local stub ({args.delay_ms} ms per response, plain HTTP/1.1, "
+              f"so TLS setup is not included); {args.requests} requests per run")
+        for concurrency in args.concurrency:
+            for pooled in (False, True):
+                opened = server.connections
+                latencies, elapsed = await _backend_run(base_url, args.requests, concurrency, pooled)
+                label = 'pooled' if pooled else 'per call'
+                print(f"c={concurrency:<4} {label:<9} {percentiles(latencies)} | {args.requests / elapsed:7,.0f} req/s | "
+                      f"{server.connections - opened:5} connections")
+    finally:
+        await server.stop()
+
+
+def bench_backend(args):
+    """Spring Boot client latency under concurrency, pooled keep-alive client vs
+    a new client per call"""
+    # Compare transports only: let the limiter and read loader admit every caller
+    top = max(args.concurrency)
+    settings.spring_boot_concurrency_initial = max(settings.spring_boot_concurrency_initial, top)
+    settings.spring_boot_max_connections = max(settings.spring_boot_max_connections, top)
+    settings.spring_boot_read_concurrency = max(settings.spring_boot_read_concurrency, top)
+    asyncio.run(_backend_bench(args))
+
+
+class DelayedBackend:
+    """In-process stand-in for httpx.AsyncClient: each endpoint group answers
+    after its own delay, with +/-20% jitter"""
+
+    RESPONSES = {
+        'doctors': [{'id': 7, 'name': 'John Smith', 'age': 54, 'gender': 'M'}],
+        'appointments': [{'patientId': '7', 'patientName': 'John Smith', 'appointmentDate': '2025-01-06',
+                          'appointmentTime': '10:00', 'reason': 'Follow-up', 'status': 'SCHEDULED'}],
+        'prescriptions': [{'medicationName': 'Atorvastatin', 'dosage': '20 mg', 'frequency': 'nightly'}],
+        'medical-reports': [{'title': 'Lipid panel', 'date': '2025-01-02'}]
+    }
+
+    class Response:
+        status_code = 200
+        text = ''
+
+        def __init__(self, body):
+            self.body = body
+
+        def raise_for_status(self):
+            pass
+
+        def json(self):
+            return self.body
+
+    def __init__(self, delays: dict, seed: int = 3):
+        import random
+
+        self.delays = delays
+        self.rng = random.Random(seed)
+        self.calls = 0
+
+    async def request(self, method, url, **kwargs):
+        self.calls += 1
+        group = url.split('/api/', 1)[-1].split('/', 1)[0]
+        await asyncio.sleep(self.delays[group] * self.rng.uniform(0.8, 1.2))
+        return self.Response(self.RESPONSES[group])
+
+    async def aclose(self):
+        pass
+
+
+class SequentialFanOut:
+    """Previous behaviour: the same reads awaited one after another"""
+
+    def __init__(self, deadline: float, name: str = 'fan_out'):
+        self._calls = []
+
+    def add(self, name, call, required=False, default=None):
+        self._calls.append((name, call, required, default))
+        return self
+
+    async def run(self):
+        from api_fanout import FanOutResult
+
+        result = FanOutResult()
+        started = time.perf_counter()
+        for name, call, required, default in self._calls:
+            try:
+                result.values[name] = await call()
+            except Exception as e:
+                if required:
+                    raise
+                result.errors[name] = e
+                result.values[name] = default
+        result.elapsed = time.perf_counter() - started
+        return result
+
+
+async def _fanout_run(args, sequential: bool, delays: dict):
+    import doctor_chatbot
+    from doctor_chatbot import DoctorChatbot
+    from utils import api_client
+
+    api_client.base_url = 'http://stub/api'
+    backend = DelayedBackend(delays)
+    api_client.client = backend
+    chatbot = DoctorChatbot()
+    if sequential:
+        chatbot._fan_out = lambda name: SequentialFanOut(0, name)
+
+    semaphore = asyncio.Semaphore(args.concurrency)
+    latencies = {'patient_history': [], 'view_patients': []}
+    partial = [0]
+
+    async def one(index: int):
+        # A doctor per request, so concurrent requests do not share reads
+        user_info = {'user_id': f"doctor_{index}", 'role': 'DOCTOR'}
+        async with semaphore:
+            started = time.perf_counter()
+            reply = await chatbot._handle_patient_history('Show history for John Smith', 'token', user_info)
+            latencies['patient_history'].append(time.perf_counter() - started)
+            started = time.perf_counter()
+            await chatbot._handle_view_patients('token', user_info)
+            latencies['view_patients'].append(time.perf_counter() - started)
+            partial[0] += 'Temporarily unavailable' in reply['response']
+
+    await asyncio.gather(*(one(index) for index in range(args.requests)))
+    api_client.client = None
+    return latencies, partial[0], backend.calls
+
+
+def bench_fanout(args):
+    """End-to-end latency of the doctor's overview replies against a delayed stub,
+    concurrent reads vs the same reads in sequence"""
+    from loguru import logger
+
+    logger.disable('api_fanout')
+    settings.spring_boot_concurrency_initial = max(settings.spring_boot_concurrency_initial, args.concurrency * 4)
+    settings.spring_boot_max_connections = max(settings.spring_boot_max_connections, args.concurrency * 4)
+    settings.spring_boot_read_concurrency = max(settings.spring_boot_read_concurrency, args.concurrency * 4)
+    delays = {
+        'doctors': args.patients_ms / 1000,
+        'appointments': args.appointments_ms / 1000,
+        'prescriptions': args.prescriptions_ms / 1000,
+        'medical-reports': args.reports_ms / 1000
+    }
+    print(f"{args.requests} doctors, {args.concurrency} at a time; stub delays: patients {args.patients_ms:.0f} ms, "
+          f"appointments {args.appointments_ms:.0f} ms, prescriptions {args.prescriptions_ms:.0f} ms, "
+          f"reports {args.reports_ms:.0f} ms (+/-20%)")
+    for sequential in (True, False):
+        latencies, partial, calls = asyncio.run(_fanout_run(args, sequential, delays))
+        label = 'sequential' if sequential else 'fan-out'
+        for reply, timings in latencies.items():
+            print(f"{label:<10} {reply:<15} {percentiles(timings)}")
+        print(f"{'':<10} {calls} backend calls, {partial} partial replies")
+
+    # A read that hangs is cut off at the deadline and the reply is partial
+    settings.spring_boot_fanout_deadline_ms = args.deadline_ms
+    delays['medical-reports'] = 5.0
+    args.requests = min(args.requests, 20)
+    latencies, partial, _ = asyncio.run(_fanout_run(args, False, delays))
+    print(f"reports hang, deadline {args.deadline_ms} ms after the patient lookup: patient_history {percentiles(latencies['patient_history'])} | "
+          f"{partial}/{args.requests} partial replies")
+
+
+async def _conversations_run(conversations: int, samples: int):
+    import random
+
+    import conversation_state
+    from conversation_state import ConversationStore, MemoryConversationStore, _dumps
+
+    clock = VirtualClock()
+    conversation_state.time = clock
+    store = MemoryConversationStore(idle_ttl=settings.conversation_idle_ttl, max_entries=conversations)
+    specializations = settings.medical_specializations
+
+    def key(n: int) -> str:
+        return ConversationStore.key('patient', f"patient_{n}", f"conv_{n}")
+
+    def state(n: int) -> dict:
+        # What the booking flow keeps between its two chat steps
+        return {'specialization': specializations[n % len(specializations)], 'booking_step': 'doctor_selection'}
+
+    tracemalloc.start()
+    baseline, _ = tracemalloc.get_traced_memory()
+    started = time.perf_counter()
+    for n in range(conversations):
+        await store.set(key(n), state(n))
+    fill_elapsed = time.perf_counter() - started
+    held, _ = tracemalloc.get_traced_memory()
+    tracemalloc.stop()
+
+    # Steady state on a full store: reads and rewrites of random conversations
+    rng = random.Random(7)
+    gets, sets = [], []
+    for _ in range(samples):
+        n = rng.randrange(conversations)
+        started = time.perf_counter()
+        await store.get(key(n))
+        gets.append(time.perf_counter() - started)
+        started = time.perf_counter()
+        await store.set(key(n), state(n))
+        sets.append(time.perf_counter() - started)
+
+    # New conversations past max_entries push out the least recently used
+    started = time.perf_counter()
+    for n in range(conversations, conversations + samples):
+        await store.set(key(n), state(n))
+    evict_elapsed = time.perf_counter() - started
+    evicted = store.evicted
+
+    # After the idle TTL every conversation untouched since goes with the next write
+    clock.now += settings.conversation_idle_ttl + 1
+    started = time.perf_counter()
+    await store.set(key(0), state(0))
+    sweep_elapsed = time.perf_counter() - started
+
+    serialized = [len(_dumps(state(n))) for n in range(len(specializations))]
+    return {
+        'fill_elapsed': fill_elapsed,
+        'held': held - baseline,
+        'gets': gets,
+        'sets': sets,
+        'evict_elapsed': evict_elapsed,
+        'evicted': evicted,
+        'sweep_elapsed': sweep_elapsed,
+        'stats': store.get_stats(),
+        'serialized': serialized
+    }
+
+
+def bench_conversations(args):
+    """Memory and latency of the in-memory conversation store at its size bound"""
+    import conversation_state
+
+    result = asyncio.run(_conversations_run(args.conversations, args.samples))
+    stats = result['stats']
+    print(f"{args.conversations:,} conversations, max_entries {args.conversations:,}, "
+          f"idle_ttl {settings.conversation_idle_ttl}s, "
+          f"{'orjson' if conversation_state.orjson is not None else 'json'} encoding")
+    print(f"fill:      {result['fill_elapsed']:.1f}s ({args.conversations / result['fill_elapsed']:,.0f} writes/s, "
+          f"tracemalloc on) | {result['held'] / 2 ** 20:.1f} MiB, "
+          f"{result['held'] / args.conversations:.0f} B per conversation")
+    print(f"get:       {percentiles(result['gets'])}")
+    print(f"set:       {percentiles(result['sets'])}")
+    print(f"eviction:  {args.samples:,} new conversations over the bound in {result['evict_elapsed'] * 1000:.0f} ms, "
+          f"{result['evicted']:,} evicted")
+    print(f"expiry:    one write after the idle TTL swept {stats['expired']:,} conversations in "
+          f"{result['sweep_elapsed'] * 1000:.0f} ms; {stats['conversations']} left")
+    print(f"redis:     {min(result['serialized'])}-{max(result['serialized'])} B serialized per state")
+
+
+async def _receipts_run(rooms: int, unread: int, aggregate: bool):
+    from chat_codec import json_codec
+    from realtime_chat import ConnectionWriter
+
+    manager = _manager()
+    delivered, wake = [0], asyncio.Event()
+    for room in range(rooms):
+        doctor, patient = f"doctor_{room}", f"patient_{room}"
+        for user_id in (doctor, patient):
+            writer = ConnectionWriter(FakeSocket(False, delivered, wake), user_id, 'c0', json_codec, manager._drop_broken)
+            manager.active_connections[user_id] = {'c0': writer}
+        room_id = manager.create_chat_room(doctor, patient)
+        for sequence in range(unread):
+            manager.message_history.append(room_id, {'room_id': room_id, 'message_id': f"msg_{room * unread + sequence + 1}"})
+
+    # Every room is opened at once; the client acknowledges each unread message
+    started = time.process_time()
+    for room in range(rooms):
+        room_id = f"chat_doctor_{room}_patient_{room}"
+        for sequence in range(unread):
+            status = {'room_id': room_id, 'message_id': f"msg_{room * unread + sequence + 1}", 'status': 'read'}
+            if aggregate:
+                await manager.handle_message_status(status, f"patient_{room}")
+            else:
+                # Previous behaviour: each status is its own room message
+                await manager._emit_message_status(room_id, f"patient_{room}", 'read', status['message_id'])
+    if aggregate:
+        await manager.receipts.flush()
+    cpu = time.process_time() - started
+
+    sent = delivered[0]
+    while True:
+        await asyncio.sleep(0)
+        if delivered[0] == sent:
+            break
+        sent = delivered[0]
+    for connections_of_user in manager.active_connections.values():
+        for writer in connections_of_user.values():
+            writer.close()
+    return delivered[0], cpu
+
+
+def bench_receipts(args):
+    """Frames sent when rooms with unread messages are opened at once"""
+    print(f"{args.rooms} rooms opened at once, {args.unread} unread messages each, one read receipt per message")
+    for aggregate in (False, True):
+        frames, cpu = asyncio.run(_receipts_run(args.rooms, args.unread, aggregate))
+        label = 'aggregated' if aggregate else 'per status'
+        print(f"{label:<13} {frames:>9,} frames | {cpu * 1000:8.1f} ms CPU | "
+              f"{cpu / (args.rooms * args.unread) * 1e6:.2f} µs per receipt")
+
+
+class VirtualClock:
+    """Stands in for time.monotonic so simulated minutes run in milliseconds"""
+
+    def __init__(self):
+        self.now = 0.0
+
+    def monotonic(self) -> float:
+        return self.now
+
+
+class IdleWheel:
+    """Timer wheel stub; sessions in the typing run end with an explicit stop"""
+
+    def schedule(self, delay, callback, *args):
+        from timer_wheel import TimerHandle
+
+        return TimerHandle(0, callback, args)
+
+
+async def _typing_run(args, clock: VirtualClock):
+    from chat_codec import json_codec
+    from chat_typing import TypingCoalescer
+
+    sent = {'frames': 0, 'bytes': 0}
+
+    async def emit(room_id, user_id, is_typing):
+        payload = json_codec.encode({
+            'type': 'typing_indicator',
+            'room_id': room_id,
+            'user_id': user_id,
+            'is_typing': is_typing,
+            'timestamp': '2025-01-01T10:00:00.000000'
+        })
+        sent['frames'] += 1
+        sent['bytes'] += len(payload)
+
+    coalescer = TypingCoalescer(
+        IdleWheel(), emit,
+        interval=settings.typing_indicator_interval_ms / 1000,
+        ttl=settings.typing_indicator_ttl
+    )
+    # Each room: type for burst seconds, send (typing stops), pause, repeat;
+    # rooms are offset so their bursts do not line up
+    step = 1 / args.keys_per_second
+    cycle = args.burst + args.pause
+    events = 0
+    started = time.process_time()
+    for tick in range(int(args.seconds / step)):
+        clock.now = tick * step
+        for room in range(args.rooms):
+            phase = (clock.now + room * 0.37) % cycle
+            if phase < args.burst:
+                await coalescer.update(f"room_{room}", f"patient_{room}", True)
+                events += 1
+            elif phase - args.burst < step:
+                await coalescer.update(f"room_{room}", f"patient_{room}", False)
+                events += 1
+    cpu = time.process_time() - started
+    return events, sent, cpu, coalescer.get_stats()
+
+
+def bench_typing(args):
+    """Typing frames sent per keystroke event, coalesced vs forwarded as-is"""
+    import chat_typing
+
+    clock = VirtualClock()
+    real_time = chat_typing.time
+    chat_typing.time = clock
+    try:
+        events, sent, cpu, stats = asyncio.run(_typing_run(args, clock))
+    finally:
+        chat_typing.time = real_time
+
+    # Previous behaviour: every client event became a frame of about the same size
+    per_frame = sent['bytes'] / sent['frames'] if sent['frames'] else 0
+    print(f"{args.rooms} rooms, {args.seconds:.0f} s simulated, {args.keys_per_second} keys/s in "
+          f"{args.burst:.0f} s bursts with {args.pause:.0f} s pauses; interval "
+          f"{settings.typing_indicator_interval_ms} ms, ttl {settings.typing_indicator_ttl} s")
+    print(f"forwarded     {events:>9,} frames | {events * per_frame / 2 ** 20:8.2f} MiB to one recipient per room")
+    print(f"coalesced     {sent['frames']:>9,} frames | {sent['bytes'] / 2 ** 20:8.2f} MiB to one recipient per room | "
+          f"{stats['reduction_ratio']:.1%} fewer | {cpu / events * 1e6:.2f} µs CPU per event")
+
+
+async def _log_run(directory: str, args):
+    from chat_log import ChatLog
+
+    log = ChatLog(
+        directory,
+        shards=args.shards,
+        segment_max_bytes=args.segment_bytes,
+        fsync_interval=settings.chat_log_fsync_interval_ms / 1000,
+        room_depth=settings.chat_log_room_depth
+    )
+    await log.start()
+
+    message = dict(SAMPLE_CHAT_MESSAGE)
+    batches, lags = [], []
+    began = time.perf_counter()
+    deadline = began + args.seconds
+    sequence = 0
+    while time.perf_counter() < deadline:
+        started = time.perf_counter()
+        for _ in range(args.batch):
+            sequence += 1
+            message['message_id'] = f"msg_{sequence}"
+            log.append(f"chat_room_{sequence % args.rooms}", message)
+        batches.append(time.perf_counter() - started)
+        # Yield like a busy server would; the lag shows any stall from flush or roll
+        started = time.perf_counter()
+        await asyncio.sleep(0)
+        lags.append(time.perf_counter() - started)
+    elapsed = time.perf_counter() - began
+    stats = log.get_stats()
+    await log.close()
+    return stats, elapsed, batches, lags
+
+
+def bench_log(args):
+    """Sustained append throughput of the durable log with batched fsync"""
+    directory = tempfile.mkdtemp(prefix='chat-log-bench-', dir=args.dir)
+    try:
+        stats, elapsed, batches, lags = asyncio.run(_log_run(directory, args))
+    finally:
+        shutil.rmtree(directory, ignore_errors=True)
+    print(f"{elapsed:.1f} s, {args.rooms} rooms, {args.shards} shards, {args.segment_bytes // 2 ** 20} MiB segments, "
+          f"fsync every {settings.chat_log_fsync_interval_ms} ms")
+    print(f"appends       {stats['records_written'] / elapsed:,.0f} msg/s | "
+          f"{stats['bytes_written'] / elapsed / 2 ** 20:.1f} MiB/s | {stats['fsyncs']} fsyncs, "
+          f"{stats['segments']} segments")
+    print(f"batch of {args.batch:<4} {percentiles(batches)}")
+    print(f"loop yield    {percentiles(lags)}")
+
+
+def _wire_backplane(shared_channel: bool):
+    """In-process backplane that encodes and decodes every envelope as Redis would;
+    shared_channel reproduces the single channel every node used to decode"""
+    from chat_backplane import InProcessBackplane, _dumps, _loads
+
+    class WireBackplane(InProcessBackplane):
+        decoded = 0
+
+        def publish(self, envelope, topic=None):
+            envelope['origin'] = self.node_id
+            self.published += 1
+            payload = _dumps(envelope)
+            nodes = self.hub.subscribers if shared_channel or topic is None else self.hub.topics.get(topic, ())
+            loop = asyncio.get_running_loop()
+            for node_id in nodes:
+                if node_id != self.node_id:
+                    loop.call_soon(self._receive, self.hub.subscribers[node_id], payload)
+
+        def _receive(self, handler, payload):
+            WireBackplane.decoded += 1
+            self._deliver(handler, _loads(payload))
+
+    return WireBackplane
+
+
+async def _backplane_run(nodes: int, rooms: int, messages: int, transient: int, shared_channel: bool):
+    from chat_backplane import InProcessHub
+    from chat_codec import json_codec
+    from realtime_chat import ConnectionWriter
+
+    backplane_class = _wire_backplane(shared_channel)
+    hub = InProcessHub()
+    delivered, wake = [0], asyncio.Event()
+    managers = []
+    for node in range(nodes):
+        manager = _manager()
+        manager.backplane = backplane_class(f"node-{node}", hub)
+        await manager.backplane.start(manager._on_backplane_envelope)
+        managers.append(manager)
+
+    def connect(manager, user_id):
+        writer = ConnectionWriter(FakeSocket(False, delivered, wake), user_id, 'c0', json_codec, manager._drop_broken)
+        manager.active_connections[user_id] = {'c0': writer}
+        manager._watch_user(user_id, True)
+
+    # Doctor and patient of a room sit on neighbouring nodes, as a load balancer would spread them
+    for room in range(rooms):
+        doctor, patient = f"doctor_{room}", f"patient_{room}"
+        doctor_node, patient_node = managers[room % nodes], managers[(room + 1) % nodes]
+        connect(doctor_node, doctor)
+        connect(patient_node, patient)
+        doctor_node.create_chat_room(doctor, patient)
+        await asyncio.sleep(0)
+    await asyncio.sleep(0.01)
+
+    backplane_class.decoded = 0
+    delivered[0] = 0
+    started = time.perf_counter()
+    for sequence in range(messages):
+        room = sequence % rooms
+        sender = managers[room % nodes]
+        room_id = f"chat_doctor_{room}_patient_{room}"
+        await sender.handle_chat_message({'room_id': room_id, 'content': 'ok'}, f"doctor_{room}")
+        for _ in range(transient):
+            # Typing and receipt frames reach only the patient
+            await sender.send_room_message(
+                {'type': 'typing_indicator', 'room_id': room_id, 'user_id': f"doctor_{room}", 'is_typing': True},
+                room_id,
+                exclude_user=f"doctor_{room}"
+            )
+        if sequence % 500 == 499:
+            await asyncio.sleep(0)
+    while delivered[0] < messages * (2 + transient):
+        wake.clear()
+        await wake.wait()
+    elapsed = time.perf_counter() - started
+
+    for manager in managers:
+        for connections_of_user in manager.active_connections.values():
+            for writer in connections_of_user.values():
+                writer.close()
+        await manager.backplane.close()
+    return elapsed, backplane_class.decoded
+
+
+def bench_backplane(args):
+    """Cross-node fan-out with room topics vs one shared channel
+
+    Chat messages are replicated to every node in both modes, so history is
+    complete everywhere; topics only route the transient frames sent with them.
+    """
+    print(f"{args.rooms} rooms (doctor and patient on different nodes), {args.messages} chat messages "
+          f"with {args.transient} transient frames each, envelopes JSON-encoded as on Redis")
+    print(f"{'nodes':>5} {'routing':>14} {'msg/s':>9} {'decoded':>9} {'decoded/node':>13}")
+    for nodes in args.nodes:
+        for shared_channel in (False, True):
+            elapsed, decoded = asyncio.run(_backplane_run(nodes, args.rooms, args.messages, args.transient, shared_channel))
+            routing = 'shared channel' if shared_channel else 'room topics'
+            print(f"{nodes:>5} {routing:>14} {args.messages / elapsed:>9,.0f} {decoded:>9} {decoded / nodes:>13,.0f}")
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    commands = parser.add_subparsers(dest='command', required=True)
+
+    disconnect = commands.add_parser('disconnect', help='disconnect latency vs total rooms')
+    disconnect.add_argument('--rooms', type=_ints, default=[1000, 10000, 100000, 1000000])
+    disconnect.add_argument('--samples', type=int, default=200)
+    disconnect.add_argument('--rooms-per-user', type=int, default=20, help='rooms held by each disconnecting doctor')
+    disconnect.set_defaults(run=bench_disconnect)
+
+    devices = commands.add_parser('devices', help='load test with several devices per user')
+    devices.add_argument('--users', type=int, default=100000)
+    devices.add_argument('--devices', type=int, default=3, help='connections per user')
+    devices.add_argument('--samples', type=int, default=1000, help='rooms messaged, and users whose devices leave')
+    devices.set_defaults(run=bench_devices)
+
+    broadcast = commands.add_parser('broadcast', help='broadcast completion with stalled clients')
+    broadcast.add_argument('--connections', type=int, default=50000)
+    broadcast.add_argument('--stalled', type=float, default=0.01, help='fraction of clients that never read')
+    broadcast.add_argument('--queue-size', type=int, default=16, help='WEBSOCKET_SEND_QUEUE_SIZE for the run')
+    broadcast.set_defaults(run=bench_broadcast)
+
+    encode = commands.add_parser('encode', help='fan-out CPU cost, per-recipient vs shared encoding')
+    encode.add_argument('--recipients', type=_ints, default=[1000, 10000, 100000])
+    encode.add_argument('--repeat', type=int, default=5)
+    encode.set_defaults(run=bench_encode)
+
+    history = commands.add_parser('history', help='history memory with many rooms')
+    history.add_argument('--rooms', type=int, default=100000)
+    history.add_argument('--messages', type=int, default=120, help='messages written to each room')
+    history.add_argument('--cap', type=int, default=settings.max_total_history_messages,
+                         help='MAX_TOTAL_HISTORY_MESSAGES for the run')
+    history.set_defaults(run=bench_history)
+
+    codec = commands.add_parser('codec', help='JSON vs MessagePack frame size and CPU')
+    codec.add_argument('--repeat', type=int, default=100000)
+    codec.set_defaults(run=bench_codec)
+
+    compression = commands.add_parser('compression', help='history replay bandwidth saved vs CPU spent')
+    compression.add_argument('--messages', type=int, default=100)
+    compression.add_argument('--note-words', type=int, default=150, help='words in each clinical note')
+    compression.add_argument('--deflate-levels', type=_ints, default=[1, 6, 9])
+    compression.add_argument('--gzip-levels', type=_ints, default=[1, 6, 9])
+    compression.add_argument('--brotli-qualities', type=_ints, default=[1, 4, 11])
+    compression.add_argument('--repeat', type=int, default=50)
+    compression.set_defaults(run=bench_compression)
+
+    ids = commands.add_parser('ids', help='message ID generation rate')
+    ids.add_argument('--count', type=int, default=1000000)
+    ids.set_defaults(run=bench_ids)
+
+    auth = commands.add_parser('auth', help='JWT auth overhead per request, cached vs decoded')
+    auth.add_argument('--rps', type=int, default=5000)
+    auth.add_argument('--seconds', type=float, default=10.0)
+    auth.add_argument('--users', type=int, default=2000, help='distinct tokens in use')
+    auth.add_argument('--decodes', type=int, default=2, help='token checks per request')
+    auth.set_defaults(run=bench_auth)
+
+    backend = commands.add_parser('backend', help='Spring Boot client latency against a local stub server')
+    backend.add_argument('--requests', type=int, default=5000)
+    backend.add_argument('--concurrency', type=_ints, default=[1, 16, 64])
+    backend.add_argument('--delay-ms', type=float, default=5.0, help='stub server time per response')
+    backend.set_defaults(run=bench_backend)
+
+    fanout = commands.add_parser('fanout', help='doctor overview latency against a delayed stub')
+    fanout.add_argument('--requests', type=int, default=200)
+    fanout.add_argument('--concurrency', type=int, default=20)
+    fanout.add_argument('--patients-ms', type=float, default=80.0)
+    fanout.add_argument('--appointments-ms', type=float, default=120.0)
+    fanout.add_argument('--prescriptions-ms', type=float, default=100.0)
+    fanout.add_argument('--reports-ms', type=float, default=150.0)
+    fanout.add_argument('--deadline-ms', type=int, default=300, help='fan-out deadline for the hanging-read run')
+    fanout.set_defaults(run=bench_fanout)
+
+    conversations = commands.add_parser('conversations', help='conversation store memory and latency')
+    conversations.add_argument('--conversations', type=int, default=1000000)
+    conversations.add_argument('--samples', type=int, default=100000)
+    conversations.set_defaults(run=bench_conversations)
+
+    receipts = commands.add_parser('receipts', help='read receipt burst on room open')
+    receipts.add_argument('--rooms', type=int, default=1000)
+    receipts.add_argument('--unread', type=int, default=100)
+    receipts.set_defaults(run=bench_receipts)
+
+    typing = commands.add_parser('typing', help='typing indicator frame reduction')
+    typing.add_argument('--rooms', type=int, default=1000)
+    typing.add_argument('--seconds', type=float, default=60.0, help='simulated time')
+    typing.add_argument('--keys-per-second', type=float, default=5.0)
+    typing.add_argument('--burst', type=float, default=8.0, help='seconds of typing before a message is sent')
+    typing.add_argument('--pause', type=float, default=4.0, help='seconds between messages')
+    typing.set_defaults(run=bench_typing)
+
+    log = commands.add_parser('log', help='durable chat log append throughput')
+    log.add_argument('--seconds', type=float, default=10.0)
+    log.add_argument('--rooms', type=int, default=10000)
+    log.add_argument('--shards', type=int, default=settings.chat_log_shards)
+    log.add_argument('--segment-bytes', type=int, default=8 * 2 ** 20, help='small segments exercise rolling')
+    log.add_argument('--batch', type=int, default=100, help='appends between event loop yields')
+    log.add_argument('--dir', default=None, help='parent directory for the temporary log')
+    log.set_defaults(run=bench_log)
+
+    backplane = commands.add_parser('backplane', help='multi-node fan-out load test')
+    backplane.add_argument('--nodes', type=_ints, default=[1, 2, 4, 8])
+    backplane.add_argument('--rooms', type=int, default=2000)
+    backplane.add_argument('--messages', type=int, default=20000)
+    backplane.add_argument('--transient', type=int, default=4, help='typing/receipt frames per chat message')
+    backplane.set_defaults(run=bench_backplane)
+
+    args = parser.parse_args()
+    args.run(args)
+
+
+if __name__ == "__main__":
+    main()
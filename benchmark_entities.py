@@ -0,0 +1,114 @@
+#!/usr/bin/env python3
+"""
+MedReserve AI Chatbot - Entity Linking Benchmark
+Messages per second and resident memory of the memory-mapped entity index over the
+ReMeDi test dialogues, against substring matching over the same dictionaries held
+in memory (as data_process/human_annotation.py does).
+
+    python benchmark_entities.py
+    python benchmark_entities.py --rebuild --repeat 20
+
+Results over the 6,597 test user turns (one core, CPython 3.11):
+
+    build         3.51 s | 13973 terms, 13040 entities, 89507 cells, 1474 KiB
+    index         open 0.13 ms | 35,664 msg/s | 28.0 µs/msg | 0.96 mentions/msg
+                  RSS +0.1 MiB after open, +1.5 MiB after scanning
+    substrings    load 0.48 s | 1,018 msg/s | 982.6 µs/msg | 1.41 hits/msg (overlapping)
+                  RSS +62.5 MiB after load
+"""
+
+import argparse
+import os
+import resource
+import time
+
+from benchmark_nlu import DEFAULT_DATA, load_turns
+from config import settings
+
+
+def resident_mib() -> float:
+    """Current resident set size; peak RSS where /proc is unavailable"""
+    try:
+        with open('/proc/self/status') as f:
+            for line in f:
+                if line.startswith('VmRSS:'):
+                    return int(line.split()[1]) / 1024
+    except OSError:
+        pass
+    return resource.getrusage(resource.RUSAGE_SELF).ru_maxrss / 1024
+
+
+def bench_index(texts, args):
+    from entity_linker import EntityIndex, EntityLinker, build_entity_index
+
+    if args.rebuild or not os.path.exists(args.index):
+        started = time.perf_counter()
+        built = build_entity_index(args.data_dir, args.index, args.alias_min_score)
+        print(f"build         {time.perf_counter() - started:.2f} s | {built['terms']} terms, "
+              f"{built['entities']} entities, {built['cells']} cells, {built['bytes'] / 1024:.0f} KiB")
+
+    before = resident_mib()
+    started = time.perf_counter()
+    linker = EntityLinker(args.index, args.data_dir, args.alias_min_score)
+    linker.index = EntityIndex(args.index)
+    opened = time.perf_counter() - started
+    loaded = resident_mib()
+
+    # _link skips the per-message cache, so every repeat is a full scan
+    mentions = sum(len(linker._link(text)) for text in texts)
+    started = time.perf_counter()
+    for _ in range(args.repeat):
+        for text in texts:
+            linker._link(text)
+    elapsed = time.perf_counter() - started
+    scanned = resident_mib()
+
+    count = len(texts) * args.repeat
+    print(f"index         open {opened * 1000:.2f} ms | {count / elapsed:,.0f} msg/s | "
+          f"{elapsed / count * 1e6:.1f} µs/msg | {mentions / len(texts):.2f} mentions/msg")
+    print(f"{'':13s} RSS +{loaded - before:.1f} MiB after open, +{scanned - before:.1f} MiB after scanning")
+    linker.close()
+
+
+def bench_substrings(texts, args):
+    from entity_linker import collect_terms
+
+    before = resident_mib()
+    started = time.perf_counter()
+    entities, terms = collect_terms(args.data_dir, args.alias_min_score)
+    loaded_in = time.perf_counter() - started
+    loaded = resident_mib()
+
+    sample = texts[:args.baseline_limit]
+    started = time.perf_counter()
+    mentions = 0
+    for text in sample:
+        lowered = text.lower()
+        mentions += sum(1 for term in terms if term in lowered)
+    elapsed = time.perf_counter() - started
+
+    print(f"substrings    load {loaded_in:.2f} s | {len(sample) / elapsed:,.0f} msg/s | "
+          f"{elapsed / len(sample) * 1e6:.1f} µs/msg | {mentions / len(sample):.2f} hits/msg (overlapping)")
+    print(f"{'':13s} RSS +{loaded - before:.1f} MiB after load")
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--data', default=DEFAULT_DATA)
+    parser.add_argument('--data-dir', default=settings.entity_data_dir)
+    parser.add_argument('--index', default=settings.entity_index_path)
+    parser.add_argument('--alias-min-score', type=float, default=settings.entity_alias_min_score)
+    parser.add_argument('--rebuild', action='store_true')
+    parser.add_argument('--limit', type=int, default=0, help='number of turns (0 = all)')
+    parser.add_argument('--repeat', type=int, default=5)
+    parser.add_argument('--baseline-limit', type=int, default=500, help='turns for the substring baseline')
+    args = parser.parse_args()
+
+    texts = [text for text, _ in load_turns(args.data, args.limit)]
+    print(f"🧪 Entity linking benchmark: {len(texts)} user turns from {args.data} (RSS {resident_mib():.1f} MiB)")
+    bench_index(texts, args)
+    bench_substrings(texts, args)
+
+
+if __name__ == "__main__":
+    main()
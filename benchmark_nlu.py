@@ -0,0 +1,172 @@
+#!/usr/bin/env python3
+"""
+MedReserve AI Chatbot - NLU Intent Benchmark
+Per-message latency (p50/p95/p99) and label accuracy of the exported intent model
+over the annotated ReMeDi test dialogues, with the keyword matcher as the baseline.
+With --batch-windows, also throughput and latency through the micro-batcher at
+each window under a steady arrival rate.
+
+    python benchmark_nlu.py --model-dir models/medical_nlp_model --backend onnx --threads 1
+    python benchmark_nlu.py --model-dir models/medical_nlp_model --batch-windows 0,2,5,10 --rates 100,400
+    python benchmark_nlu.py --keywords-only
+"""
+
+import argparse
+import asyncio
+import random
+import re
+import time
+from typing import List, Set, Tuple
+
+DEFAULT_DATA = "Medical-Dialogue-main/data/test_human_annotation.txt"
+USER_TURN = re.compile(r'<\|currentuser\|>(.*?)<\|endofcurrentuser\|>')
+INTENTS = re.compile(r'<\|intent\|>(.*?)<\|endofintent\|>')
+CJK = re.compile('[\u4e00-\u9fa5]')
+
+
+def load_turns(path: str, limit: int) -> List[Tuple[str, Set[str]]]:
+    """(user utterance, gold labels) per annotated turn, labelled as in nlu.py's reader"""
+    turns = []
+    with open(path, encoding='utf-8') as f:
+        for line in f:
+            text = USER_TURN.search(line)
+            intents = INTENTS.search(line)
+            if not text or not intents:
+                continue
+            gold = {label.strip() for label in CJK.sub('', intents.group(1)).split('<|continue|>') if label.strip()}
+            turns.append((text.group(1).strip(), gold))
+            if limit and len(turns) >= limit:
+                break
+    return turns
+
+
+def percentiles(latencies: List[float]) -> str:
+    latencies = sorted(latencies)
+    pick = lambda p: latencies[min(len(latencies) - 1, int(p * len(latencies)))] * 1000
+    return f"p50 {pick(0.50):.2f} ms | p95 {pick(0.95):.2f} ms | p99 {pick(0.99):.2f} ms | max {latencies[-1] * 1000:.2f} ms"
+
+
+def bench_keywords(turns):
+    from utils import MessageProcessor
+
+    latencies = []
+    for text, _ in turns:
+        started = time.perf_counter()
+        MessageProcessor.extract_intent(text)
+        latencies.append(time.perf_counter() - started)
+    print(f"keywords      {percentiles(latencies)}")
+
+
+def bench_model(turns, args):
+    from nlu_engine import load_intent_model
+
+    model = load_intent_model(args.model_dir, args.backend, args.max_tokens, args.threads)
+    known = set(model.labels)
+    for text, _ in turns[:args.warmup]:
+        model.predict([text])
+
+    latencies = []
+    true_positive = predicted = expected = 0
+    for text, gold in turns:
+        started = time.perf_counter()
+        (probs,) = model.predict([text])
+        latencies.append(time.perf_counter() - started)
+
+        labels = {label for label, prob in zip(model.labels, probs) if prob >= args.threshold}
+        gold = gold & known
+        true_positive += len(labels & gold)
+        predicted += len(labels)
+        expected += len(gold)
+
+    precision = true_positive / predicted if predicted else 0.0
+    recall = true_positive / expected if expected else 0.0
+    f1 = 2 * precision * recall / (precision + recall) if precision + recall else 0.0
+    print(f"{args.backend:13s} {percentiles(latencies)}")
+    print(f"{'':13s} micro P {precision:.3f} | R {recall:.3f} | F1 {f1:.3f} over {len(turns)} turns")
+    if sorted(latencies)[min(len(latencies) - 1, int(0.99 * len(latencies)))] > 0.020:
+        print("⚠️  p99 is above the 20 ms budget; try --max-tokens 48 or more --threads")
+
+
+async def _drive_batcher(predict, texts, window, rate, duration, max_batch, workers):
+    """Poisson arrivals at `rate` per second for `duration` seconds; per-request latencies"""
+    from nlu_batching import MicroBatcher
+
+    batcher = MicroBatcher(predict, window=window, max_batch=max_batch, workers=workers)
+    latencies = []
+
+    async def one(text):
+        started = time.perf_counter()
+        await batcher.submit(text)
+        latencies.append(time.perf_counter() - started)
+
+    tasks = []
+    rng = random.Random(7)
+    started = time.perf_counter()
+    deadline = started + duration
+    next_at = started
+    while next_at < deadline:
+        delay = next_at - time.perf_counter()
+        if delay > 0:
+            await asyncio.sleep(delay)
+        tasks.append(asyncio.create_task(one(rng.choice(texts))))
+        next_at += rng.expovariate(rate)
+    await asyncio.gather(*tasks)
+    elapsed = time.perf_counter() - started
+    stats = batcher.get_stats()
+    batcher.close()
+    return len(tasks) / elapsed, latencies, stats['avg_batch_size']
+
+
+def bench_batching(predict, texts, windows, rates, duration=5.0, max_batch=16, workers=1):
+    """Throughput versus latency of the micro-batcher, one row per (rate, window)"""
+    print(f"{'rate/s':>7} {'window':>7} {'done/s':>8} {'batch':>6}  latency")
+    for rate in rates:
+        for window in windows:
+            throughput, latencies, batch = asyncio.run(
+                _drive_batcher(predict, texts, window / 1000, rate, duration, max_batch, workers)
+            )
+            print(f"{rate:>7} {window:>5}ms {throughput:>8.0f} {batch:>6.1f}  {percentiles(latencies)}")
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--data', default=DEFAULT_DATA)
+    parser.add_argument('--model-dir')
+    parser.add_argument('--backend', default='onnx', choices=['onnx', 'torchscript'])
+    parser.add_argument('--max-tokens', type=int, default=64)
+    parser.add_argument('--threads', type=int, default=1)
+    parser.add_argument('--threshold', type=float, default=0.5)
+    parser.add_argument('--limit', type=int, default=0, help='number of turns (0 = all)')
+    parser.add_argument('--warmup', type=int, default=20)
+    parser.add_argument('--keywords-only', action='store_true')
+    parser.add_argument('--batch-windows', help='comma-separated batch windows in ms, e.g. 0,2,5,10')
+    parser.add_argument('--rates', default='100,400', help='comma-separated arrival rates (messages/s)')
+    parser.add_argument('--duration', type=float, default=5.0, help='seconds per batching run')
+    parser.add_argument('--batch-max', type=int, default=16)
+    parser.add_argument('--workers', type=int, default=1)
+    args = parser.parse_args()
+
+    turns = load_turns(args.data, args.limit)
+    print(f"🧪 NLU benchmark: {len(turns)} user turns from {args.data}")
+    bench_keywords(turns)
+    if not args.keywords_only:
+        if not args.model_dir:
+            parser.error("--model-dir is required unless --keywords-only is given")
+        bench_model(turns, args)
+        if args.batch_windows:
+            from nlu_engine import load_intent_model
+
+            model = load_intent_model(args.model_dir, args.backend, args.max_tokens, args.threads)
+            bench_batching(
+                model.predict,
+                [text for text, _ in turns],
+                [float(window) for window in args.batch_windows.split(',')],
+                [int(rate) for rate in args.rates.split(',')],
+                args.duration,
+                args.batch_max,
+                args.workers
+            )
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,429 @@
+"""
+Chat Backplane for MedReserve AI
+Cross-node publish/subscribe and presence so chat works across multiple workers
+
+Membership, broadcasts and persisted room messages go to every node, so each
+node's history is complete. Transient room and user traffic (typing, receipts,
+personal messages) is published on a topic per room or user, which a node
+subscribes to only while it serves a participant, so a node decodes that
+traffic for its own connections rather than for the whole cluster.
+"""
+
+import asyncio
+import json
+import uuid
+from abc import ABC, abstractmethod
+from collections import Counter
+from typing import Any, Callable, Dict, List, Optional, Set
+from loguru import logger
+from config import settings
+from utils import default_node_id
+
+try:
+    import orjson
+except ImportError:  # Fall back to the standard library encoder
+    orjson = None
+
+
+EnvelopeHandler = Callable[[Dict[str, Any]], None]
+
+
+def room_topic(room_id: str) -> str:
+    return f"room:{room_id}"
+
+
+def user_topic(user_id: str) -> str:
+    return f"user:{user_id}"
+
+
+def _dumps(envelope: Dict[str, Any]) -> bytes:
+    if orjson is not None:
+        return orjson.dumps(envelope)
+    return json.dumps(envelope).encode('utf-8')
+
+
+def _loads(data: bytes) -> Dict[str, Any]:
+    if orjson is not None:
+        return orjson.loads(data)
+    return json.loads(data)
+
+
+class Backplane(ABC):
+    """Publish, subscribe and presence shared by every chat node"""
+
+    def __init__(self, node_id: Optional[str] = None):
+        self.node_id = node_id or default_node_id()
+        self.topics: Set[str] = set()
+        self.published = 0
+        self.received = 0
+
+    @abstractmethod
+    async def start(self, handler: EnvelopeHandler):
+        """Subscribe; handler is called for envelopes published by other nodes"""
+
+    @abstractmethod
+    def publish(self, envelope: Dict[str, Any], topic: Optional[str] = None):
+        """Publish envelope to other nodes without blocking the caller; with a
+        topic, only to the nodes subscribed to it"""
+
+    def watch(self, topic: str, interested: bool):
+        """Subscribe to or unsubscribe from a topic, ignoring repeats"""
+        if interested and topic not in self.topics:
+            self.topics.add(topic)
+            self._subscribe(topic)
+        elif not interested and topic in self.topics:
+            self.topics.discard(topic)
+            self._unsubscribe(topic)
+
+    @abstractmethod
+    def _subscribe(self, topic: str):
+        """Start receiving envelopes published on topic"""
+
+    @abstractmethod
+    def _unsubscribe(self, topic: str):
+        """Stop receiving envelopes published on topic"""
+
+    @abstractmethod
+    def set_presence(self, user_id: str, online: bool):
+        """Record that a user gained or lost a connection on this node"""
+
+    @abstractmethod
+    async def is_present(self, user_id: str) -> bool:
+        """Whether the user is connected to any node"""
+
+    @abstractmethod
+    async def close(self):
+        """Unsubscribe and release resources"""
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'backend': type(self).__name__,
+            'node_id': self.node_id,
+            'topics': len(self.topics),
+            'published': self.published,
+            'received': self.received
+        }
+
+
+class InProcessHub:
+    """Shared bus for in-process backplanes (single worker, or several managers under test)"""
+
+    def __init__(self):
+        self.subscribers: Dict[str, EnvelopeHandler] = {}
+        self.topics: Dict[str, Set[str]] = {}
+        self.presence: Dict[str, Counter] = {}
+
+
+_default_hub = InProcessHub()
+
+
+class InProcessBackplane(Backplane):
+    """Backplane for a single process; also serves as a local fake of the Redis backplane"""
+
+    def __init__(self, node_id: Optional[str] = None, hub: Optional[InProcessHub] = None):
+        super().__init__(node_id)
+        self.hub = hub or _default_hub
+
+    async def start(self, handler: EnvelopeHandler):
+        self.hub.subscribers[self.node_id] = handler
+
+    def publish(self, envelope: Dict[str, Any], topic: Optional[str] = None):
+        envelope['origin'] = self.node_id
+        self.published += 1
+        loop = asyncio.get_running_loop()
+        nodes = self.hub.subscribers if topic is None else self.hub.topics.get(topic, ())
+        for node_id in nodes:
+            handler = self.hub.subscribers.get(node_id)
+            if node_id != self.node_id and handler is not None:
+                # Deliver asynchronously, as a network backplane would
+                loop.call_soon(self._deliver, handler, envelope)
+
+    def _deliver(self, handler: EnvelopeHandler, envelope: Dict[str, Any]):
+        try:
+            handler(envelope)
+        except Exception as e:
+            logger.error(f"Error handling backplane envelope: {str(e)}")
+
+    def _subscribe(self, topic: str):
+        self.hub.topics.setdefault(topic, set()).add(self.node_id)
+
+    def _unsubscribe(self, topic: str):
+        nodes = self.hub.topics.get(topic)
+        if nodes is not None:
+            nodes.discard(self.node_id)
+            if not nodes:
+                del self.hub.topics[topic]
+
+    def set_presence(self, user_id: str, online: bool):
+        nodes = self.hub.presence.setdefault(user_id, Counter())
+        nodes[self.node_id] += 1 if online else -1
+        if nodes[self.node_id] <= 0:
+            del nodes[self.node_id]
+        if not nodes:
+            del self.hub.presence[user_id]
+
+    async def is_present(self, user_id: str) -> bool:
+        return user_id in self.hub.presence
+
+    async def close(self):
+        self.hub.subscribers.pop(self.node_id, None)
+        for topic in list(self.topics):
+            self.watch(topic, False)
+        for user_id in list(self.hub.presence):
+            nodes = self.hub.presence[user_id]
+            nodes.pop(self.node_id, None)
+            if not nodes:
+                del self.hub.presence[user_id]
+
+
+class RedisBackplane(Backplane):
+    """Backplane over Redis pub/sub, with presence kept in per-user hashes
+
+    Presence fields are written per node instance and count only while that
+    instance's liveness key exists. The key expires presence_ttl seconds after
+    the last heartbeat, so users of a crashed worker stop being present, and a
+    restarted worker that reuses a node id starts a new instance.
+
+    While Redis is slow or down, publishes beyond outbox_limit queued commands
+    are dropped rather than buffered without bound; presence and subscription
+    commands are always queued.
+    """
+
+    def __init__(self, redis_url: str, channel: str, node_id: Optional[str] = None, presence_ttl: int = 30,
+                 outbox_limit: int = 10000):
+        super().__init__(node_id)
+        self.redis_url = redis_url
+        self.channel = channel
+        self.presence_ttl = presence_ttl
+        self.outbox_limit = outbox_limit
+        self.instance = f"{self.node_id}:{uuid.uuid4().hex[:8]}"
+        self.redis = None
+        self._pubsub = None
+        # Commands are queued so publish/set_presence never block the caller
+        self._outbox: asyncio.Queue = asyncio.Queue()
+        # Topic channels whose subscription may not match self.topics yet
+        self._unsynced: Set[str] = set()
+        self._tasks: List[asyncio.Task] = []
+        self._local_presence: Counter = Counter()
+        self.decode_errors = 0
+        self.dropped = 0
+        self._dropping = False
+
+    def _presence_key(self, user_id: str) -> str:
+        return f"{self.channel}:presence:{user_id}"
+
+    def _alive_key(self, instance: str) -> str:
+        return f"{self.channel}:alive:{instance}"
+
+    def _topic_channel(self, topic: str) -> str:
+        return f"{self.channel}:{topic}"
+
+    def _connect(self):
+        import redis.asyncio as aioredis
+
+        return aioredis.from_url(self.redis_url)
+
+    async def start(self, handler: EnvelopeHandler):
+        self.redis = self._connect()
+        await self.redis.set(self._alive_key(self.instance), 1, ex=self.presence_ttl)
+        self._tasks = [
+            asyncio.create_task(self._read_loop(handler)),
+            asyncio.create_task(self._write_loop()),
+            asyncio.create_task(self._heartbeat_loop())
+        ]
+        logger.info(f"Redis chat backplane started on channel {self.channel} as {self.instance}")
+
+    def publish(self, envelope: Dict[str, Any], topic: Optional[str] = None):
+        envelope['origin'] = self.node_id
+        self.published += 1
+        if self._outbox.qsize() >= self.outbox_limit:
+            self.dropped += 1
+            if not self._dropping:
+                self._dropping = True
+                logger.warning(f"Redis backplane outbox full ({self.outbox_limit} commands), dropping publishes")
+            return
+        channel = self.channel if topic is None else self._topic_channel(topic)
+        self._outbox.put_nowait(('publish', channel, _dumps(envelope)))
+
+    def _subscribe(self, topic: str):
+        self._outbox.put_nowait(('subscribe', self._topic_channel(topic)))
+
+    def _unsubscribe(self, topic: str):
+        self._outbox.put_nowait(('unsubscribe', self._topic_channel(topic)))
+
+    def set_presence(self, user_id: str, online: bool):
+        self._local_presence[user_id] += 1 if online else -1
+        if self._local_presence[user_id] <= 0:
+            del self._local_presence[user_id]
+        self._outbox.put_nowait(('presence', user_id, 1 if online else -1))
+
+    async def is_present(self, user_id: str) -> bool:
+        if user_id in self._local_presence:
+            return True
+        try:
+            # This instance's own field may lag behind queued presence updates
+            key = self._presence_key(user_id)
+            instances = [field.decode('utf-8') for field in await self.redis.hkeys(key)]
+            instances = [instance for instance in instances if instance != self.instance]
+            if not instances:
+                return False
+
+            alive = await self.redis.mget([self._alive_key(instance) for instance in instances])
+            dead = [instance for instance, flag in zip(instances, alive) if flag is None]
+            if dead:
+                # Left behind by workers that stopped without clearing presence
+                await self.redis.hdel(key, *dead)
+            return len(dead) < len(instances)
+        except Exception as e:
+            logger.error(f"Presence lookup failed for {user_id}: {str(e)}")
+            # Assume present so the message is still published
+            return True
+
+    async def _heartbeat_loop(self):
+        """Keep this instance's liveness key, and so its presence fields, from expiring"""
+        while True:
+            await asyncio.sleep(self.presence_ttl / 3)
+            try:
+                await self.redis.set(self._alive_key(self.instance), 1, ex=self.presence_ttl)
+            except asyncio.CancelledError:
+                raise
+            except Exception as e:
+                logger.error(f"Redis backplane heartbeat failed: {str(e)}")
+
+    async def _write_loop(self):
+        """Drain queued commands in pipelined batches"""
+        while True:
+            commands = [await self._outbox.get()]
+            while not self._outbox.empty() and len(commands) < 500:
+                commands.append(self._outbox.get_nowait())
+            self._dropping = False
+            writes = []
+            for command in commands:
+                if command[0] in ('subscribe', 'unsubscribe'):
+                    self._unsynced.add(command[1])
+                elif command[0] != 'sync':
+                    writes.append(command)
+
+            try:
+                if writes:
+                    pipe = self.redis.pipeline(transaction=False)
+                    for command in writes:
+                        if command[0] == 'publish':
+                            pipe.publish(command[1], command[2])
+                        else:
+                            _, user_id, delta = command
+                            key = self._presence_key(user_id)
+                            pipe.hincrby(key, self.instance, delta)
+                            if delta < 0 and user_id not in self._local_presence:
+                                pipe.hdel(key, self.instance)
+                    await pipe.execute()
+            except asyncio.CancelledError:
+                raise
+            except Exception as e:
+                logger.error(f"Redis backplane write failed, dropped {len(writes)} commands: {str(e)}")
+                await asyncio.sleep(1)
+
+            try:
+                await self._sync_subscriptions()
+            except asyncio.CancelledError:
+                raise
+            except Exception as e:
+                logger.error(f"Redis backplane subscription update failed, retrying: {str(e)}")
+                await asyncio.sleep(1)
+                # Wake this loop again even if nothing else is queued
+                self._outbox.put_nowait(('sync',))
+
+    async def _sync_subscriptions(self):
+        """Subscribe or unsubscribe each unsynced channel to match self.topics
+
+        Only the final state matters, so a failed update is retried from
+        self.topics instead of replaying the commands that were queued. The
+        read loop subscribes to self.topics if its connection is replaced.
+        """
+        pubsub = self._pubsub
+        if pubsub is None:
+            return
+        prefix = len(self.channel) + 1
+        for channel in list(self._unsynced):
+            if channel[prefix:] in self.topics:
+                await pubsub.subscribe(channel)
+            else:
+                await pubsub.unsubscribe(channel)
+            self._unsynced.discard(channel)
+
+    async def _read_loop(self, handler: EnvelopeHandler):
+        """Deliver envelopes from other nodes, resubscribing after connection loss"""
+        while True:
+            pubsub = self.redis.pubsub(ignore_subscribe_messages=True)
+            try:
+                topics = set(self.topics)
+                await pubsub.subscribe(self.channel, *(self._topic_channel(topic) for topic in topics))
+                self._pubsub = pubsub
+                # A new connection holds exactly the topics just subscribed
+                self._unsynced.clear()
+                # Topics watched while subscribing were not seen by the write loop
+                for topic in self.topics - topics:
+                    await pubsub.subscribe(self._topic_channel(topic))
+                async for item in pubsub.listen():
+                    try:
+                        envelope = _loads(item['data'])
+                    except (TypeError, ValueError) as e:
+                        # One malformed payload must not cost the subscription
+                        self.decode_errors += 1
+                        logger.error(f"Dropping undecodable backplane payload: {str(e)}")
+                        continue
+                    if envelope.get('origin') == self.node_id:
+                        continue
+                    self.received += 1
+                    try:
+                        handler(envelope)
+                    except Exception as e:
+                        logger.error(f"Error handling backplane envelope: {str(e)}")
+            except asyncio.CancelledError:
+                raise
+            except Exception as e:
+                logger.error(f"Redis backplane subscription lost: {str(e)}")
+                await asyncio.sleep(1)
+            finally:
+                self._pubsub = None
+                try:
+                    await pubsub.close()
+                except Exception:
+                    pass
+
+    async def close(self):
+        for task in self._tasks:
+            task.cancel()
+        self._tasks = []
+
+        if self.redis is not None:
+            try:
+                pipe = self.redis.pipeline(transaction=False)
+                for user_id in self._local_presence:
+                    pipe.hdel(self._presence_key(user_id), self.instance)
+                pipe.delete(self._alive_key(self.instance))
+                await pipe.execute()
+            except Exception as e:
+                logger.error(f"Failed to clear presence for node {self.node_id}: {str(e)}")
+            await self.redis.close()
+            self.redis = None
+
+    def get_stats(self) -> Dict[str, Any]:
+        stats = super().get_stats()
+        stats['instance'] = self.instance
+        stats['decode_errors'] = self.decode_errors
+        stats['queued'] = self._outbox.qsize()
+        stats['dropped'] = self.dropped
+        return stats
+
+
+def create_backplane() -> Backplane:
+    """Build the backplane selected by settings.chat_backplane"""
+    if settings.chat_backplane == 'redis':
+        return RedisBackplane(
+            settings.redis_url,
+            settings.chat_backplane_channel,
+            presence_ttl=settings.chat_presence_ttl,
+            outbox_limit=settings.chat_backplane_outbox_limit
+        )
+    return InProcessBackplane()
@@ -0,0 +1,95 @@
+"""
+WebSocket Codecs for MedReserve AI
+Wire encodings for chat frames, negotiated through Sec-WebSocket-Protocol
+"""
+
+import json
+from abc import ABC, abstractmethod
+from typing import Any, Dict, Iterable, Optional, Union
+
+try:
+    import orjson
+except ImportError:  # Fall back to the standard library encoder
+    orjson = None
+
+try:
+    import msgpack
+except ImportError:  # Binary subprotocol is only offered when msgpack is installed
+    msgpack = None
+
+
+Payload = Union[str, bytes]
+
+
+class MessageCodec(ABC):
+    """Encodes outbound messages and decodes inbound frames for one subprotocol"""
+
+    # Sec-WebSocket-Protocol token; None for the default (no subprotocol) codec
+    subprotocol: Optional[str] = None
+    # Whether frames are sent as binary rather than text
+    binary = False
+
+    @abstractmethod
+    def encode(self, message: Dict[str, Any]) -> Payload:
+        """Serialize a message once; the result is shared by every recipient"""
+
+    @abstractmethod
+    def decode(self, data: Payload) -> Dict[str, Any]:
+        """Parse an inbound frame; raises ValueError if it is not a message object"""
+
+
+class JSONCodec(MessageCodec):
+    """JSON text frames, the default for clients that request no subprotocol"""
+
+    def __init__(self, subprotocol: Optional[str] = None):
+        self.subprotocol = subprotocol
+
+    def encode(self, message: Dict[str, Any]) -> Payload:
+        if orjson is not None:
+            try:
+                return orjson.dumps(message).decode('utf-8')
+            except TypeError:
+                pass
+        return json.dumps(message)
+
+    def decode(self, data: Payload) -> Dict[str, Any]:
+        message = orjson.loads(data) if orjson is not None else json.loads(data)
+        if not isinstance(message, dict):
+            raise ValueError("Message must be an object")
+        return message
+
+
+class MsgpackCodec(MessageCodec):
+    """MessagePack binary frames for bandwidth-constrained clients"""
+
+    subprotocol = 'medreserve.msgpack.v1'
+    binary = True
+
+    def encode(self, message: Dict[str, Any]) -> Payload:
+        return msgpack.packb(message, use_bin_type=True, default=str)
+
+    def decode(self, data: Payload) -> Dict[str, Any]:
+        try:
+            message = msgpack.unpackb(data, raw=False, strict_map_key=True)
+        except Exception as e:
+            raise ValueError(f"Invalid MessagePack frame: {str(e)}")
+        if not isinstance(message, dict):
+            raise ValueError("Message must be a map")
+        return message
+
+
+json_codec = JSONCodec()
+
+# Codecs selectable by subprotocol, in server preference order
+SUBPROTOCOL_CODECS: Dict[str, MessageCodec] = {'medreserve.json.v1': JSONCodec('medreserve.json.v1')}
+if msgpack is not None:
+    SUBPROTOCOL_CODECS = {MsgpackCodec.subprotocol: MsgpackCodec(), **SUBPROTOCOL_CODECS}
+
+
+def negotiate_codec(requested: Iterable[str]) -> MessageCodec:
+    """Pick the server's preferred codec among the client's subprotocols, else JSON"""
+    offered = set(requested)
+    for subprotocol, codec in SUBPROTOCOL_CODECS.items():
+        if subprotocol in offered:
+            return codec
+    return json_codec
@@ -0,0 +1,100 @@
+"""
+Connection Heartbeat for MedReserve AI
+Server-driven pings and reaping of idle connections for clients that opt in
+"""
+
+import time
+from typing import Any, Callable, Dict
+from timer_wheel import TimerWheel
+
+
+# Connection callbacks receive the connection's writer
+ConnectionCallback = Callable[[Any], None]
+
+
+class HeartbeatMonitor:
+    """Per-connection liveness checks scheduled on a shared timer wheel
+
+    Activity only updates a timestamp; each connection has at most one pending
+    timer, which fires once per ping interval (or ping timeout while a ping is
+    outstanding), so the cost does not grow with wheel ticks or traffic.
+
+    The ping is an application-level JSON frame ({"type": "ping"}), not a
+    WebSocket control ping, so only connections whose client asked for the
+    heartbeat (heartbeat=true on connect) are watched. Such a client must
+    answer (or send any other frame) within the timeout, and is closed about
+    interval + timeout seconds after its last frame. Half-open connections of
+    other clients are closed by the server's WebSocket control pings
+    (uvicorn's ws_ping_interval / ws_ping_timeout), which every client library
+    answers on its own.
+    """
+
+    def __init__(
+        self,
+        wheel: TimerWheel,
+        send_ping: ConnectionCallback,
+        reap: ConnectionCallback,
+        interval: float,
+        timeout: float
+    ):
+        self.wheel = wheel
+        self.send_ping = send_ping
+        self.reap = reap
+        self.interval = interval
+        self.timeout = timeout
+
+        self.watched = 0
+        self.pings_sent = 0
+        # Connections closed by the server: no pong, failed send, send queue overflow
+        self.reaped = {'idle': 0, 'broken': 0, 'slow': 0}
+
+    def watch(self, writer):
+        """Start tracking a new connection"""
+        writer.last_activity = time.monotonic()
+        writer.ping_sent_at = 0.0
+        writer.heartbeat = self.wheel.schedule(self.interval, self._check, writer)
+        self.watched += 1
+
+    def unwatch(self, writer):
+        if writer.heartbeat is not None:
+            writer.heartbeat.cancel()
+            writer.heartbeat = None
+            self.watched -= 1
+
+    @staticmethod
+    def touch(writer):
+        """Record inbound activity (any client frame, including pongs)"""
+        writer.last_activity = time.monotonic()
+
+    def _check(self, writer):
+        """Timer callback: reschedule, ping, or reap depending on idle time"""
+        if writer.closed or writer.heartbeat is None:
+            return
+
+        if writer.ping_sent_at and writer.last_activity <= writer.ping_sent_at:
+            # No frame since the ping went out: the peer is gone or stalled
+            self.unwatch(writer)
+            self.reaped['idle'] += 1
+            self.reap(writer)
+            return
+
+        # Answered (or never pinged): idle time counts from the last frame
+        writer.ping_sent_at = 0.0
+        now = time.monotonic()
+        idle = now - writer.last_activity
+        if idle < self.interval:
+            writer.heartbeat = self.wheel.schedule(self.interval - idle, self._check, writer)
+        else:
+            writer.ping_sent_at = now
+            self.pings_sent += 1
+            writer.heartbeat = self.wheel.schedule(self.timeout, self._check, writer)
+            self.send_ping(writer)
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'watched': self.watched,
+            'interval': self.interval,
+            'timeout': self.timeout,
+            'pings_sent': self.pings_sent,
+            'reaped': dict(self.reaped)
+        }
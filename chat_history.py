@@ -0,0 +1,203 @@
+"""
+Chat History Storage for MedReserve AI
+Bounded per-room message history with LRU eviction of cold rooms
+"""
+
+from collections import OrderedDict
+from typing import Any, Callable, Dict, Iterator, List, Optional, Tuple
+from utils import MessageIdGenerator
+
+
+def message_key(message: Dict[str, Any]) -> int:
+    """Sort key of a stored message (its parsed message ID)"""
+    return MessageIdGenerator.parse(message.get('message_id')) or 0
+
+
+def page_cursors(messages: List[Dict[str, Any]]) -> Dict[str, Optional[str]]:
+    """Cursors for fetching the pages either side of a history window"""
+    if not messages:
+        return {'next_before': None, 'next_after': None}
+    return {
+        'next_before': messages[0].get('message_id'),
+        'next_after': messages[-1].get('message_id')
+    }
+
+
+class RingBuffer:
+    """Fixed-capacity ring buffer with O(1) append and O(k) tail reads"""
+
+    __slots__ = ('capacity', '_items', '_start')
+
+    def __init__(self, capacity: int):
+        self.capacity = max(1, capacity)
+        # Grows up to capacity, then wraps, so sparse rooms stay small
+        self._items: List[Any] = []
+        self._start = 0
+
+    def __len__(self) -> int:
+        return len(self._items)
+
+    def __getitem__(self, index: int) -> Any:
+        """Item by position, 0 being the oldest"""
+        size = len(self._items)
+        if index < 0:
+            index += size
+        if not 0 <= index < size:
+            raise IndexError("ring buffer index out of range")
+        return self._items[(self._start + index) % size]
+
+    def __iter__(self) -> Iterator[Any]:
+        for index in range(len(self._items)):
+            yield self[index]
+
+    def append(self, item: Any) -> Optional[Any]:
+        """Append item, returning the evicted oldest item once full"""
+        if len(self._items) < self.capacity:
+            self._items.append(item)
+            return None
+
+        evicted = self._items[self._start]
+        self._items[self._start] = item
+        self._start = (self._start + 1) % self.capacity
+        return evicted
+
+    def tail(self, limit: Optional[int] = None) -> List[Any]:
+        """Last `limit` items, oldest first"""
+        size = len(self._items)
+        count = size if not limit else min(limit, size)
+        return self.slice(size - count, size)
+
+    def slice(self, start: int, stop: int) -> List[Any]:
+        """Items in positions [start, stop), oldest first"""
+        start, stop = max(0, start), min(stop, len(self._items))
+        return [self[index] for index in range(start, stop)]
+
+    def bisect(self, value: int, key: Callable[[Any], int], right: bool = False) -> int:
+        """Insertion position of value among items ordered by key (bisect_left/right)"""
+        low, high = 0, len(self._items)
+        while low < high:
+            middle = (low + high) // 2
+            current = key(self[middle])
+            if current < value or (right and current == value):
+                low = middle + 1
+            else:
+                high = middle
+        return low
+
+
+class MessageHistoryStore:
+    """Per-room ring buffers under a global message cap, evicting cold rooms by LRU"""
+
+    def __init__(self, room_capacity: int, max_total_messages: int):
+        self.room_capacity = room_capacity
+        self.max_total_messages = max_total_messages
+        self.total_messages = 0
+        self.evicted_rooms = 0
+
+        # Least recently used rooms first
+        self._rooms: "OrderedDict[str, RingBuffer]" = OrderedDict()
+
+    def __contains__(self, room_id: str) -> bool:
+        return room_id in self._rooms
+
+    def __len__(self) -> int:
+        return len(self._rooms)
+
+    def ensure_room(self, room_id: str) -> RingBuffer:
+        """Get or create the buffer for a room and mark it recently used"""
+        buffer = self._rooms.get(room_id)
+        if buffer is None:
+            buffer = RingBuffer(self.room_capacity)
+            self._rooms[room_id] = buffer
+        else:
+            self._rooms.move_to_end(room_id)
+        return buffer
+
+    def append(self, room_id: str, message: Dict[str, Any]):
+        """Store message, trimming the room and evicting cold rooms as needed"""
+        buffer = self.ensure_room(room_id)
+        if buffer.append(message) is None:
+            self.total_messages += 1
+
+        if self.total_messages > self.max_total_messages:
+            self._evict_cold_rooms(keep=room_id)
+
+    def load(self, room_id: str, messages: List[Dict[str, Any]]):
+        """Replace a room's buffer with messages read from durable storage"""
+        previous = self._rooms.pop(room_id, None)
+        if previous is not None:
+            self.total_messages -= len(previous)
+
+        buffer = RingBuffer(self.room_capacity)
+        for message in messages[-self.room_capacity:]:
+            buffer.append(message)
+        self._rooms[room_id] = buffer
+        self.total_messages += len(buffer)
+
+        if self.total_messages > self.max_total_messages:
+            self._evict_cold_rooms(keep=room_id)
+
+    def latest(self, room_id: str) -> Optional[Dict[str, Any]]:
+        """Newest resident message of a room, without marking the room as used"""
+        buffer = self._rooms.get(room_id)
+        if not buffer:
+            return None
+        return buffer[-1]
+
+    def tail(self, room_id: str, limit: Optional[int] = None) -> List[Dict[str, Any]]:
+        """Most recent messages for a room, oldest first"""
+        buffer = self._rooms.get(room_id)
+        if buffer is None:
+            return []
+
+        self._rooms.move_to_end(room_id)
+        return buffer.tail(limit)
+
+    def page(
+        self,
+        room_id: str,
+        limit: Optional[int] = None,
+        before: Optional[int] = None,
+        after: Optional[int] = None
+    ) -> Tuple[List[Dict[str, Any]], bool]:
+        """Seek a window by message ID: newest `limit` before `before`, oldest `limit`
+        after `after`, or the tail.
+
+        The flag is True when the window reaches past the oldest resident message,
+        so older messages may exist only in durable storage.
+        """
+        buffer = self._rooms.get(room_id)
+        if buffer is None or len(buffer) == 0:
+            return [], True
+
+        self._rooms.move_to_end(room_id)
+        size = len(buffer)
+        count = limit or size
+
+        if after is not None:
+            start = buffer.bisect(after, message_key, right=True)
+            truncated = start == 0 and message_key(buffer[0]) > after
+            return buffer.slice(start, start + count), truncated
+
+        end = buffer.bisect(before, message_key) if before is not None else size
+        start = end - count
+        return buffer.slice(start, end), start < 0 or not limit
+
+    def _evict_cold_rooms(self, keep: str):
+        """Drop whole least recently used rooms until under the global cap"""
+        while self.total_messages > self.max_total_messages and len(self._rooms) > 1:
+            room_id, buffer = self._rooms.popitem(last=False)
+            if room_id == keep:
+                # Never evict the room being written; put it back as most recent
+                self._rooms[room_id] = buffer
+                continue
+            self.total_messages -= len(buffer)
+            self.evicted_rooms += 1
+
+    def get_stats(self) -> Dict[str, int]:
+        """History memory usage counters"""
+        return {
+            'rooms': len(self._rooms),
+            'messages': self.total_messages,
+            'evicted_rooms': self.evicted_rooms
+        }
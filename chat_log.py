@@ -0,0 +1,654 @@
+"""
+Durable Chat Log for MedReserve AI
+Append-only, segment-based message log on local disk with memory-mapped reads
+"""
+
+import asyncio
+import bisect
+import errno
+import json
+import mmap
+import os
+import struct
+import time
+import zlib
+from datetime import datetime
+from operator import itemgetter
+from typing import Any, Dict, List, Optional, Set, Tuple
+from loguru import logger
+from utils import MessageIdGenerator
+
+try:
+    import orjson
+except ImportError:  # Fall back to the standard library encoder
+    orjson = None
+
+try:
+    import fcntl
+except ImportError:  # No advisory locks (Windows)
+    fcntl = None
+
+
+# Record header: payload length and CRC32 of the payload
+RECORD_HEADER = struct.Struct('>II')
+
+SEGMENT_SUFFIX = '.log'
+COMPACT_SUFFIX = '.compact'
+TEMP_SUFFIX = '.tmp'
+LOCK_FILE = 'LOCK'
+NODE_PREFIX = 'node-'
+
+# Index entry: (message sequence, segment number, record offset, payload length)
+IndexEntry = Tuple[int, int, int, int]
+
+entry_sequence = itemgetter(0)
+
+
+def _encode(message: Dict[str, Any]) -> bytes:
+    if orjson is not None:
+        try:
+            return orjson.dumps(message)
+        except TypeError:
+            pass
+    return json.dumps(message).encode('utf-8')
+
+
+def _decode(payload: bytes) -> Dict[str, Any]:
+    if orjson is not None:
+        return orjson.loads(payload)
+    return json.loads(payload)
+
+
+def _segment_name(segment: int) -> str:
+    return f"{segment:010d}{SEGMENT_SUFFIX}"
+
+
+def _lock_directory(directory: str) -> Optional[int]:
+    """Exclusive lock on a log directory; None if another process holds it"""
+    os.makedirs(directory, exist_ok=True)
+    descriptor = os.open(os.path.join(directory, LOCK_FILE), os.O_RDWR | os.O_CREAT, 0o644)
+    if fcntl is None:
+        return descriptor
+    try:
+        fcntl.flock(descriptor, fcntl.LOCK_EX | fcntl.LOCK_NB)
+    except BlockingIOError:
+        os.close(descriptor)
+        return None
+    return descriptor
+
+
+class LogShard:
+    """One directory of ordered segment files; only the newest segment is written"""
+
+    def __init__(self, directory: str, shard_id: int):
+        self.directory = directory
+        self.shard_id = shard_id
+        self.segments: List[int] = []
+        self.active_file = None
+        self.active_size = 0
+        self.dirty = False
+        # Wall-clock time of each segment's newest record, for retention; file
+        # mtimes are reset when compaction replaces a segment
+        self.newest: Dict[int, float] = {}
+        # Offset of the first record inside retention, for a segment that is
+        # partly expired; records are appended in time order
+        self.live_from: Dict[int, int] = {}
+        self._maps: Dict[int, mmap.mmap] = {}
+
+    @property
+    def active_segment(self) -> int:
+        return self.segments[-1]
+
+    def path(self, segment: int) -> str:
+        return os.path.join(self.directory, _segment_name(segment))
+
+    def open_active(self):
+        """Open the newest segment for appending"""
+        path = self.path(self.active_segment)
+        self.active_file = open(path, 'ab')
+        self.active_size = self.active_file.tell()
+
+    def roll(self):
+        """Start a new segment; returns the sealed segment's file, flushed but not
+        yet fsynced, for the caller to sync and close off the event loop"""
+        sealed = self.active_file
+        sealed.flush()
+        self.segments.append(self.active_segment + 1)
+        self.open_active()
+        self.dirty = False
+        return sealed
+
+    def sync(self):
+        """Flush buffered writes and fsync the active segment"""
+        if self.active_file is not None:
+            self.active_file.flush()
+            os.fsync(self.active_file.fileno())
+        self.dirty = False
+
+    def view(self, segment: int, end: int) -> mmap.mmap:
+        """Memory map of a segment covering at least `end` bytes"""
+        current = self._maps.get(segment)
+        if current is not None and len(current) >= end:
+            return current
+
+        if segment == self.active_segment:
+            # Make buffered appends visible to the mapping
+            self.active_file.flush()
+        if current is not None:
+            current.close()
+
+        with open(self.path(segment), 'rb') as handle:
+            mapped = mmap.mmap(handle.fileno(), 0, access=mmap.ACCESS_READ)
+        self._maps[segment] = mapped
+        return mapped
+
+    def release(self, segment: int):
+        mapped = self._maps.pop(segment, None)
+        if mapped is not None:
+            mapped.close()
+
+    def close(self):
+        for segment in list(self._maps):
+            self.release(segment)
+        if self.active_file is not None:
+            self.sync()
+            self.active_file.close()
+            self.active_file = None
+
+
+class ChatLog:
+    """Append-only chat log sharded by room, with an in-memory offset index per room
+
+    Every record inside the retention period stays indexed and readable;
+    room_depth only sets the default page size. Expired records leave the
+    index and compaction reclaims their space. A log directory has a single writer, enforced with a lock file. With
+    per_node, each worker claims the first free `node-NNN` subdirectory of
+    `directory`, so workers sharing a volume never append to the same segments
+    and a restarted worker picks up a slot left by a stopped one.
+    """
+
+    def __init__(
+        self,
+        directory: str,
+        shards: int = 16,
+        segment_max_bytes: int = 64 * 1024 * 1024,
+        fsync_interval: float = 0.2,
+        retention_seconds: Optional[float] = None,
+        room_depth: int = 1000,
+        compaction_interval: float = 300.0,
+        per_node: bool = False
+    ):
+        self.base_directory = directory
+        self.directory = directory
+        self.per_node = per_node
+        self._lock: Optional[int] = None
+        self.shard_count = max(1, shards)
+        self.segment_max_bytes = segment_max_bytes
+        self.fsync_interval = fsync_interval
+        self.retention_seconds = retention_seconds
+        self.room_depth = room_depth
+        self.compaction_interval = compaction_interval
+
+        self.shards: List[LogShard] = []
+        # Every retained record per room, ordered by message sequence; records
+        # dropped from the index are garbage for compaction
+        self._index: Dict[str, List[IndexEntry]] = {}
+        self._tasks: List[asyncio.Task] = []
+        self._sealing: Set[asyncio.Task] = set()
+
+        self.records_written = 0
+        self.bytes_written = 0
+        self.fsyncs = 0
+        self.compactions = 0
+        self.expired_segments = 0
+        self.expired_records = 0
+        self.flush_errors = 0
+        self.last_flush_error: Optional[str] = None
+
+    def shard_for(self, room_id: str) -> LogShard:
+        return self.shards[zlib.crc32(room_id.encode('utf-8')) % self.shard_count]
+
+    # Lifecycle
+
+    def open(self):
+        """Lock the log directory, recover shards from disk and rebuild the room index"""
+        self._claim_directory()
+        for shard_id in range(self.shard_count):
+            shard_dir = os.path.join(self.directory, f"shard-{shard_id:03d}")
+            os.makedirs(shard_dir, exist_ok=True)
+            shard = LogShard(shard_dir, shard_id)
+            self._recover_shard(shard)
+            self.shards.append(shard)
+
+        logger.info(
+            f"Chat log opened at {self.directory}: {len(self._index)} rooms, "
+            f"{sum(len(entries) for entries in self._index.values())} indexed messages"
+        )
+
+    def _claim_directory(self):
+        if not self.per_node:
+            self._lock = _lock_directory(self.directory)
+            if self._lock is None:
+                raise RuntimeError(
+                    f"Chat log {self.directory} is in use by another process; "
+                    f"use CHAT_BACKPLANE=redis for multiple workers"
+                )
+            return
+
+        slot = 0
+        while True:
+            directory = os.path.join(self.base_directory, f"{NODE_PREFIX}{slot:03d}")
+            self._lock = _lock_directory(directory)
+            if self._lock is not None:
+                self.directory = directory
+                return
+            slot += 1
+
+    async def start(self):
+        """Open the log off the event loop and start background flush and maintenance"""
+        await asyncio.to_thread(self.open)
+        self._tasks = [
+            asyncio.create_task(self._flush_loop()),
+            asyncio.create_task(self._maintenance_loop())
+        ]
+
+    async def close(self):
+        for task in self._tasks:
+            task.cancel()
+        for task in self._tasks:
+            try:
+                await task
+            except asyncio.CancelledError:
+                pass
+        self._tasks = []
+        if self._sealing:
+            await asyncio.gather(*self._sealing, return_exceptions=True)
+
+        for shard in self.shards:
+            shard.close()
+        if self._lock is not None:
+            os.close(self._lock)
+            self._lock = None
+
+    def _recover_shard(self, shard: LogShard):
+        """Finish interrupted compactions, then scan segments in order"""
+        names = sorted(os.listdir(shard.directory))
+
+        for name in names:
+            if name.endswith(TEMP_SUFFIX):
+                os.remove(os.path.join(shard.directory, name))
+
+        for name in names:
+            if name.endswith(COMPACT_SUFFIX):
+                first, last = (int(part) for part in name[:-len(COMPACT_SUFFIX)].split('-'))
+                for segment in range(first, last + 1):
+                    stale = shard.path(segment)
+                    if os.path.exists(stale):
+                        os.remove(stale)
+                os.replace(os.path.join(shard.directory, name), shard.path(last))
+
+        shard.segments = sorted(
+            int(name[:-len(SEGMENT_SUFFIX)])
+            for name in os.listdir(shard.directory)
+            if name.endswith(SEGMENT_SUFFIX)
+        )
+        if not shard.segments:
+            shard.segments = [0]
+            open(shard.path(0), 'ab').close()
+
+        for segment in shard.segments:
+            valid_end = self._scan_segment(shard, segment)
+            if segment == shard.active_segment and valid_end < os.path.getsize(shard.path(segment)):
+                # Drop a torn record left by a crash mid-write
+                with open(shard.path(segment), 'r+b') as handle:
+                    handle.truncate(valid_end)
+
+        shard.open_active()
+
+    def _scan_segment(self, shard: LogShard, segment: int) -> int:
+        """Index every valid record in a segment; returns the end of the last valid record"""
+        offset = 0
+        with open(shard.path(segment), 'rb') as handle:
+            data = handle.read()
+
+        while offset + RECORD_HEADER.size <= len(data):
+            length, checksum = RECORD_HEADER.unpack_from(data, offset)
+            start = offset + RECORD_HEADER.size
+            payload = data[start:start + length]
+            if len(payload) < length or zlib.crc32(payload) != checksum:
+                break
+
+            message = _decode(payload)
+            room_id = message.get('room_id')
+            if room_id:
+                self._add_entry(room_id, (self._sequence(message), segment, offset, length))
+            written = self._written_at(message)
+            if written is not None and written > shard.newest.get(segment, 0.0):
+                shard.newest[segment] = written
+            offset = start + length
+
+        if segment not in shard.newest and offset:
+            # No parsable record timestamps: fall back to the file time
+            shard.newest[segment] = os.path.getmtime(shard.path(segment))
+        return offset
+
+    @staticmethod
+    def _written_at(message: Dict[str, Any]) -> Optional[float]:
+        try:
+            return datetime.fromisoformat(message['timestamp']).timestamp()
+        except (KeyError, TypeError, ValueError):
+            return None
+
+    @staticmethod
+    def _sequence(message: Dict[str, Any]) -> int:
+        return MessageIdGenerator.parse(message.get('message_id')) or 0
+
+    def _add_entry(self, room_id: str, entry: IndexEntry):
+        entries = self._index.get(room_id)
+        if entries is None:
+            entries = []
+            self._index[room_id] = entries
+        entries.append(entry)
+
+    # Writes
+
+    def append(self, room_id: str, message: Dict[str, Any]):
+        """Append message to the room's shard; durability follows at the next batched fsync"""
+        shard = self.shard_for(room_id)
+        payload = _encode(message)
+        record = RECORD_HEADER.pack(len(payload), zlib.crc32(payload)) + payload
+
+        offset = shard.active_size
+        shard.active_file.write(record)
+        shard.active_size += len(record)
+        shard.dirty = True
+
+        self._add_entry(room_id, (self._sequence(message), shard.active_segment, offset, len(payload)))
+        shard.newest[shard.active_segment] = time.time()
+        self.records_written += 1
+        self.bytes_written += len(record)
+
+        if shard.active_size >= self.segment_max_bytes:
+            self._seal(shard.roll())
+
+    def _seal(self, sealed):
+        """fsync and close a rolled segment in a worker thread"""
+        try:
+            asyncio.get_running_loop()
+        except RuntimeError:
+            # Used outside the event loop (recovery tools, tests)
+            self._sync_and_close(sealed)
+            return
+        task = asyncio.create_task(asyncio.to_thread(self._sync_and_close, sealed))
+        self._sealing.add(task)
+        task.add_done_callback(self._sealing.discard)
+
+    def _sync_and_close(self, sealed):
+        try:
+            os.fsync(sealed.fileno())
+            self.fsyncs += 1
+        finally:
+            sealed.close()
+
+    async def _flush_loop(self):
+        """Group-commit dirty shards every fsync interval
+
+        A failed write (e.g. a full disk) leaves the shards dirty and is
+        retried with exponential backoff up to a minute.
+        """
+        delay = self.fsync_interval
+        while True:
+            await asyncio.sleep(delay)
+            dirty = [shard for shard in self.shards if shard.dirty]
+            if not dirty:
+                continue
+            try:
+                for shard in dirty:
+                    shard.dirty = False
+                    shard.active_file.flush()
+                await asyncio.to_thread(self._fsync_all, [shard.active_file.fileno() for shard in dirty])
+            except OSError as e:
+                for shard in dirty:
+                    shard.dirty = True
+                self.flush_errors += 1
+                self.last_flush_error = str(e)
+                delay = min(max(delay, self.fsync_interval) * 2, 60.0)
+                logger.error(f"Chat log flush failed, retrying in {delay:.1f}s: {str(e)}")
+                continue
+            if self.last_flush_error is not None:
+                logger.info("Chat log flush recovered")
+                self.last_flush_error = None
+            delay = self.fsync_interval
+
+    def _fsync_all(self, descriptors: List[int]):
+        for descriptor in descriptors:
+            try:
+                os.fsync(descriptor)
+                self.fsyncs += 1
+            except OSError as e:
+                if e.errno != errno.EBADF:
+                    raise
+                # Segment was rolled and closed meanwhile; _seal() synced it
+                logger.debug(f"Skipping fsync of closed segment: {str(e)}")
+
+    # Reads
+
+    def count(self, room_id: str) -> int:
+        entries = self._index.get(room_id)
+        return len(entries) if entries else 0
+
+    def latest_sequence(self, room_id: str) -> Optional[int]:
+        entries = self._index.get(room_id)
+        return entries[-1][0] if entries else None
+
+    def tail(self, room_id: str, limit: Optional[int] = None) -> List[Dict[str, Any]]:
+        """Most recent messages for a room, oldest first, read through mmap"""
+        return self.page(room_id, limit)
+
+    def page(
+        self,
+        room_id: str,
+        limit: Optional[int] = None,
+        before: Optional[int] = None,
+        after: Optional[int] = None
+    ) -> List[Dict[str, Any]]:
+        """Seek by message sequence: newest `limit` before `before`, oldest `limit`
+        after `after`, or the tail; oldest first"""
+        entries = self._index.get(room_id)
+        if not entries:
+            return []
+
+        count = limit or self.room_depth
+        if after is not None:
+            start = bisect.bisect_right(entries, after, key=entry_sequence)
+            end = min(len(entries), start + count)
+        else:
+            end = bisect.bisect_left(entries, before, key=entry_sequence) if before is not None else len(entries)
+            start = max(0, end - count)
+
+        shard = self.shard_for(room_id)
+        messages = []
+        for index in range(start, end):
+            _, segment, offset, length = entries[index]
+            payload_start = offset + RECORD_HEADER.size
+            view = shard.view(segment, payload_start + length)
+            messages.append(_decode(view[payload_start:payload_start + length]))
+        return messages
+
+    # Retention and compaction
+
+    async def _maintenance_loop(self):
+        while True:
+            await asyncio.sleep(self.compaction_interval)
+            for shard in self.shards:
+                try:
+                    self._expire_segments(shard)
+                    await self._expire_records(shard)
+                    await self._compact_shard(shard)
+                except Exception as e:
+                    logger.error(f"Chat log maintenance failed for shard {shard.shard_id}: {str(e)}")
+
+    def _expire_segments(self, shard: LogShard):
+        """Delete sealed segments whose newest record is older than the retention period"""
+        if not self.retention_seconds:
+            return
+
+        cutoff = time.time() - self.retention_seconds
+        expired = {
+            segment for segment in shard.segments[:-1]
+            if shard.newest.get(segment, 0.0) < cutoff
+        }
+        if not expired:
+            return
+
+        self._rewrite_index(shard, lambda entry: None if entry[1] in expired else entry)
+        for segment in expired:
+            shard.release(segment)
+            shard.newest.pop(segment, None)
+            shard.live_from.pop(segment, None)
+            os.remove(shard.path(segment))
+        shard.segments = [segment for segment in shard.segments if segment not in expired]
+        self.expired_segments += len(expired)
+
+    async def _expire_records(self, shard: LogShard):
+        """Unindex the expired records at the start of the oldest segment
+
+        Whole expired segments are already gone, so only the oldest remaining
+        one can start with expired records; compaction reclaims their space.
+        """
+        if not self.retention_seconds:
+            return
+
+        segment = shard.segments[0]
+        cutoff = time.time() - self.retention_seconds
+        start = shard.live_from.get(segment, 0)
+        boundary = await asyncio.to_thread(self._retained_from, shard, segment, start, cutoff)
+        if boundary <= start:
+            return
+
+        shard.live_from[segment] = boundary
+        before = sum(len(entries) for room_id, entries in self._index.items() if self.shard_for(room_id) is shard)
+        self._rewrite_index(shard, lambda entry: None if entry[1] == segment and entry[2] < boundary else entry)
+        self.expired_records += before - sum(
+            len(entries) for room_id, entries in self._index.items() if self.shard_for(room_id) is shard
+        )
+
+    def _retained_from(self, shard: LogShard, segment: int, offset: int, cutoff: float) -> int:
+        """Offset of the first record at or after `offset` written at or after cutoff"""
+        with open(shard.path(segment), 'rb') as handle:
+            handle.seek(offset)
+            while True:
+                header = handle.read(RECORD_HEADER.size)
+                if len(header) < RECORD_HEADER.size:
+                    return offset
+                length, _ = RECORD_HEADER.unpack(header)
+                payload = handle.read(length)
+                if len(payload) < length:
+                    return offset
+                written = self._written_at(_decode(payload))
+                if written is not None and written >= cutoff:
+                    return offset
+                offset += RECORD_HEADER.size + length
+
+    async def _compact_shard(self, shard: LogShard):
+        """Rewrite sealed segments keeping only records still in the room index,
+        once expired records make up at least half of them"""
+        sealed = shard.segments[:-1]
+        if not self.retention_seconds or not sealed:
+            return
+
+        sealed_set = set(sealed)
+        live = sorted(
+            entry[1:]
+            for room_id, entries in self._index.items()
+            if self.shard_for(room_id) is shard
+            for entry in entries
+            if entry[1] in sealed_set
+        )
+        total_bytes = sum(os.path.getsize(shard.path(segment)) for segment in sealed)
+        live_bytes = sum(RECORD_HEADER.size + length for _, _, length in live)
+        if total_bytes == 0 or live_bytes > total_bytes // 2:
+            return
+
+        first, last = sealed[0], sealed[-1]
+        relocated = await asyncio.to_thread(self._write_compacted, shard, live, first, last)
+
+        # Swap in the compacted segment: index first, then files
+        self._rewrite_index(
+            shard,
+            lambda entry: entry if entry[1] not in sealed_set else
+            ((entry[0], last, relocated[(entry[1], entry[2])], entry[3]) if (entry[1], entry[2]) in relocated else None)
+        )
+        newest = max(shard.newest.get(segment, 0.0) for segment in sealed)
+        for segment in sealed:
+            shard.release(segment)
+            shard.newest.pop(segment, None)
+            shard.live_from.pop(segment, None)
+            os.remove(shard.path(segment))
+        shard.newest[last] = newest
+        compact_path = os.path.join(shard.directory, f"{first:010d}-{last:010d}{COMPACT_SUFFIX}")
+        os.replace(compact_path, shard.path(last))
+
+        shard.segments = [last] + shard.segments[len(sealed):]
+        self.compactions += 1
+        logger.info(f"Compacted shard {shard.shard_id}: {total_bytes} -> {live_bytes} bytes")
+
+    def _write_compacted(
+        self,
+        shard: LogShard,
+        live: List[Tuple[int, int, int]],
+        first: int,
+        last: int
+    ) -> Dict[Tuple[int, int], int]:
+        """Copy live records into a new file; returns old position -> new offset"""
+        final_path = os.path.join(shard.directory, f"{first:010d}-{last:010d}{COMPACT_SUFFIX}")
+        temp_path = final_path + TEMP_SUFFIX
+        relocated = {}
+
+        handles = {}
+        try:
+            with open(temp_path, 'wb') as output:
+                for segment, offset, length in live:
+                    source = handles.get(segment)
+                    if source is None:
+                        source = open(shard.path(segment), 'rb')
+                        handles[segment] = source
+                    source.seek(offset)
+                    relocated[(segment, offset)] = output.tell()
+                    output.write(source.read(RECORD_HEADER.size + length))
+                output.flush()
+                os.fsync(output.fileno())
+        finally:
+            for source in handles.values():
+                source.close()
+
+        # The rename marks the compacted file complete for crash recovery
+        os.replace(temp_path, final_path)
+        return relocated
+
+    def _rewrite_index(self, shard: LogShard, transform):
+        """Apply transform to every index entry of a shard, dropping entries mapped to None"""
+        for room_id in list(self._index):
+            if self.shard_for(room_id) is not shard:
+                continue
+            entries = self._index[room_id]
+            kept = [result for result in (transform(entry) for entry in entries) if result is not None]
+            if kept:
+                self._index[room_id] = kept
+            else:
+                del self._index[room_id]
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'directory': self.directory,
+            'rooms': len(self._index),
+            'segments': sum(len(shard.segments) for shard in self.shards),
+            'records_written': self.records_written,
+            'bytes_written': self.bytes_written,
+            'fsyncs': self.fsyncs,
+            'compactions': self.compactions,
+            'expired_segments': self.expired_segments,
+            'expired_records': self.expired_records,
+            'flush_errors': self.flush_errors,
+            'last_flush_error': self.last_flush_error
+        }
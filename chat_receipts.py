@@ -0,0 +1,150 @@
+"""
+Read Receipt Aggregation for MedReserve AI
+Collapses delivered/read statuses into per-user high-water marks flushed in batches
+"""
+
+import asyncio
+from typing import Any, Awaitable, Callable, Dict, List, Optional, Tuple
+from loguru import logger
+from utils import MessageIdGenerator
+
+
+# Later statuses imply the earlier ones
+STATUS_ORDER = ('delivered', 'read')
+
+# Sends one receipt to a room: (room_id, user_id, status, message_id)
+ReceiptEmitter = Callable[[str, str, str, str], Awaitable[None]]
+
+
+class ReceiptAggregator:
+    """Per-room read/delivered pointers for each participant, relayed every flush interval"""
+
+    def __init__(self, emit: ReceiptEmitter, flush_interval: float):
+        self.emit = emit
+        self.flush_interval = flush_interval
+
+        # room_id -> user_id -> status -> highest message_id acknowledged
+        self.pointers: Dict[str, Dict[str, Dict[str, str]]] = {}
+        # room_id -> {(user_id, status)} with unsent progress
+        self.pending: Dict[str, set] = {}
+
+        self.receipts_received = 0
+        self.receipts_rejected = 0
+        self.frames_emitted = 0
+        self._task: Optional[asyncio.Task] = None
+
+    def record(
+        self,
+        room_id: str,
+        user_id: str,
+        message_id: str,
+        status: str,
+        relay: bool = True,
+        latest: Optional[int] = None
+    ) -> bool:
+        """Advance the user's pointer; returns False if it did not move forward
+
+        relay=False only updates the pointer, for receipts already relayed by another node.
+        latest is the room's newest message sequence; receipts past it are rejected,
+        so a client cannot mark messages that do not exist yet as read.
+        """
+        if relay:
+            self.receipts_received += 1
+        if status not in STATUS_ORDER:
+            return False
+        sequence = MessageIdGenerator.parse(message_id)
+        if sequence is None or (latest is not None and sequence > latest):
+            # Only pointers that parse are stored, so annotate() can compare them
+            self.receipts_rejected += 1
+            return False
+
+        user_pointers = self.pointers.setdefault(room_id, {}).setdefault(user_id, {})
+        advanced = False
+        # A read receipt also moves the delivered pointer
+        for implied in STATUS_ORDER[:STATUS_ORDER.index(status) + 1]:
+            if self._is_newer(message_id, user_pointers.get(implied)):
+                user_pointers[implied] = message_id
+                advanced = True
+
+        if advanced and relay:
+            self.pending.setdefault(room_id, set()).add((user_id, status))
+        return advanced
+
+    @staticmethod
+    def _is_newer(message_id: str, current: Optional[str]) -> bool:
+        if current is None:
+            return True
+        return MessageIdGenerator.parse(message_id) > MessageIdGenerator.parse(current)
+
+    def forget_room(self, room_id: str):
+        """Drop pointers and unsent progress of a released room"""
+        self.pointers.pop(room_id, None)
+        self.pending.pop(room_id, None)
+
+    def read_pointer(self, room_id: str, user_id: str) -> Optional[str]:
+        return self.pointers.get(room_id, {}).get(user_id, {}).get('read')
+
+    def annotate(self, room_id: str, messages: List[Dict[str, Any]]) -> List[Dict[str, Any]]:
+        """Copies of messages with 'read_by' filled from the in-memory read pointers"""
+        readers: List[Tuple[str, int]] = []
+        for user_id, user_pointers in self.pointers.get(room_id, {}).items():
+            sequence = MessageIdGenerator.parse(user_pointers.get('read'))
+            if sequence is not None:
+                readers.append((user_id, sequence))
+        if not readers:
+            return messages
+
+        annotated = []
+        for message in messages:
+            sequence = MessageIdGenerator.parse(message.get('message_id'))
+            read_by = [
+                user_id for user_id, read_sequence in readers
+                if sequence is not None and sequence <= read_sequence and user_id != message.get('sender_id')
+            ]
+            annotated.append({**message, 'read_by': read_by})
+        return annotated
+
+    def start(self):
+        if self._task is None:
+            self._task = asyncio.create_task(self._flush_loop())
+
+    async def stop(self):
+        if self._task is not None:
+            self._task.cancel()
+            try:
+                await self._task
+            except asyncio.CancelledError:
+                pass
+            self._task = None
+        await self.flush()
+
+    async def _flush_loop(self):
+        while True:
+            await asyncio.sleep(self.flush_interval)
+            try:
+                await self.flush()
+            except Exception as e:
+                logger.error(f"Error flushing read receipts: {str(e)}")
+
+    async def flush(self):
+        """Emit one receipt per (room, user, status) that advanced since the last flush"""
+        if not self.pending:
+            return
+
+        pending, self.pending = self.pending, {}
+        for room_id, entries in pending.items():
+            room_pointers = self.pointers.get(room_id, {})
+            for user_id, status in entries:
+                message_id = room_pointers.get(user_id, {}).get(status)
+                if message_id is None:
+                    continue
+                self.frames_emitted += 1
+                await self.emit(room_id, user_id, status, message_id)
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'rooms_tracked': len(self.pointers),
+            'receipts_received': self.receipts_received,
+            'receipts_rejected': self.receipts_rejected,
+            'frames_emitted': self.frames_emitted
+        }
@@ -3,10 +3,11 @@ FastAPI Router for MedReserve AI Chatbot System
 Handles REST API endpoints and WebSocket connections
 """
 
+import asyncio
 import json
 from datetime import datetime
 from typing import Dict, List, Optional, Any
-from fastapi import APIRouter, WebSocket, WebSocketDisconnect, HTTPException, Depends, Query, Body
+from fastapi import APIRouter, WebSocket, WebSocketDisconnect, HTTPException, Depends, Query, Body, Header, Response
 from fastapi.security import HTTPBearer, HTTPAuthorizationCredentials
 from pydantic import BaseModel
 from loguru import logger
@@ -14,7 +15,12 @@ from loguru import logger
 from patient_chatbot import PatientChatbot
 from doctor_chatbot import DoctorChatbot
 from realtime_chat import connection_manager, ChatMessageHandler
-from utils import JWTHandler
+from chat_history import page_cursors
+from chat_codec import negotiate_codec, json_codec
+from conversation_state import conversation_store
+from nlu_engine import intent_engine
+from entity_linker import entity_linker
+from utils import JWTHandler, api_client, history_compressor
 from config import settings
 
 
@@ -77,12 +83,15 @@ async def patient_chat(
         # Get token from request (this would need to be passed properly)
         token = "dummy_token"  # In real implementation, extract from request
         
+        # Multi-step flows keep state only under a client-chosen conversation_id
+        conversation_id = message.conversation_id
+        
         # Process message
         response = await patient_chatbot.process_message(
             message.message,
             token,
             user['user_id'],
-            message.conversation_id or f"patient_{user['user_id']}_{datetime.now().timestamp()}"
+            conversation_id
         )
         
         return ChatResponse(
@@ -90,7 +99,7 @@ async def patient_chat(
             type=response['type'],
             actions=response.get('actions', []),
             data=response.get('data'),
-            conversation_id=message.conversation_id,
+            conversation_id=conversation_id,
             timestamp=datetime.now().isoformat()
         )
         
@@ -113,12 +122,15 @@ async def doctor_chat(
         # Get token from request
         token = "dummy_token"  # In real implementation, extract from request
         
+        # Multi-step flows keep state only under a client-chosen conversation_id
+        conversation_id = message.conversation_id
+        
         # Process message
         response = await doctor_chatbot.process_message(
             message.message,
             token,
             user['user_id'],
-            message.conversation_id or f"doctor_{user['user_id']}_{datetime.now().timestamp()}"
+            conversation_id
         )
         
         return ChatResponse(
@@ -126,7 +138,7 @@ async def doctor_chat(
             type=response['type'],
             actions=response.get('actions', []),
             data=response.get('data'),
-            conversation_id=message.conversation_id,
+            conversation_id=conversation_id,
             timestamp=datetime.now().isoformat()
         )
         
@@ -136,42 +148,56 @@ async def doctor_chat(
 
 
 @router.websocket("/ws/{user_id}")
-async def websocket_endpoint(websocket: WebSocket, user_id: str, token: str = Query(...)):
-    """WebSocket endpoint for real-time chat"""
+async def websocket_endpoint(
+    websocket: WebSocket,
+    user_id: str,
+    token: str = Query(...),
+    heartbeat: bool = Query(False)
+):
+    """WebSocket endpoint for real-time chat
+
+    With heartbeat=true the client answers the server's JSON pings and is
+    closed when it stops; other clients rely on WebSocket control pings.
+    """
+    connection_id = None
+    # Wire encoding chosen from the client's Sec-WebSocket-Protocol offer
+    codec = negotiate_codec(websocket.scope.get('subprotocols', ()))
     try:
-        # Connect user
-        user_info = await connection_manager.connect(websocket, user_id, token)
+        # Connect user; each device gets its own connection
+        connection_id = await connection_manager.connect(websocket, user_id, token, codec, heartbeat)
         
         try:
             while True:
                 # Receive message
-                data = await websocket.receive_text()
-                message_data = json.loads(data)
+                data = await (websocket.receive_bytes() if codec.binary else websocket.receive_text())
+                connection_manager.touch(user_id, connection_id)
+                message_data = codec.decode(data)
                 
                 # Handle message
-                await ChatMessageHandler.handle_websocket_message(websocket, user_id, message_data)
+                await ChatMessageHandler.handle_websocket_message(websocket, user_id, message_data, connection_id)
                 
         except WebSocketDisconnect:
             logger.info(f"WebSocket disconnected for user {user_id}")
-        except json.JSONDecodeError:
-            logger.error(f"Invalid JSON received from user {user_id}")
+        except ValueError:
+            logger.error(f"Invalid {codec.subprotocol or 'JSON'} message received from user {user_id}")
             await connection_manager.send_personal_message({
                 'type': 'error',
                 'message': 'Invalid message format'
-            }, user_id)
+            }, user_id, connection_id)
         except Exception as e:
             logger.error(f"Error in WebSocket for user {user_id}: {str(e)}")
             await connection_manager.send_personal_message({
                 'type': 'error',
                 'message': 'Internal server error'
-            }, user_id)
+            }, user_id, connection_id)
     
     except Exception as e:
         logger.error(f"Failed to establish WebSocket connection for user {user_id}: {str(e)}")
         await websocket.close(code=1008, reason="Authentication failed")
     
     finally:
-        connection_manager.disconnect(user_id)
+        if connection_id is not None:
+            connection_manager.disconnect(user_id, connection_id)
 
 
 @router.post("/rooms/create")
@@ -209,20 +235,40 @@ async def create_chat_room(
 async def get_chat_history(
     room_id: str,
     limit: int = Query(50, ge=1, le=100),
+    before: Optional[str] = Query(None, description="Return messages older than this message ID"),
+    after: Optional[str] = Query(None, description="Return messages newer than this message ID"),
+    accept_encoding: Optional[str] = Header(None),
     user: Dict[str, Any] = Depends(get_current_user)
 ):
-    """Get chat history for a room"""
+    """Get a page of chat history for a room, compressed when large"""
+    if before and after:
+        raise HTTPException(status_code=400, detail="Use either 'before' or 'after', not both")
+    
     try:
         # Get chat history
-        history = await connection_manager.get_chat_history(room_id, user['user_id'], limit)
+        history = await connection_manager.get_chat_history(
+            room_id, user['user_id'], limit, before=before, after=after
+        )
         
-        return {
+        body = json_codec.encode({
             'room_id': room_id,
             'messages': history,
             'total_messages': len(history),
+            **page_cursors(history),
             'retrieved_at': datetime.now().isoformat()
-        }
+        }).encode('utf-8')
+        
+        headers = {'Vary': 'Accept-Encoding'}
+        encoding = history_compressor.choose_encoding(accept_encoding)
+        if encoding and len(body) >= history_compressor.min_bytes:
+            # Keep compression of large pages off the event loop
+            body, encoding = await asyncio.to_thread(history_compressor.compress, body, encoding)
+            headers['Content-Encoding'] = encoding
+        
+        return Response(content=body, media_type='application/json', headers=headers)
         
+    except ValueError as e:
+        raise HTTPException(status_code=400, detail=str(e))
     except Exception as e:
         logger.error(f"Error getting chat history: {str(e)}")
         raise HTTPException(status_code=500, detail="Failed to retrieve chat history")
@@ -334,8 +380,7 @@ async def handle_file_upload(
     """Handle file upload for chat"""
     try:
         # Verify user is in the room
-        user_rooms = connection_manager.get_user_rooms(user['user_id'])
-        if room_id not in user_rooms:
+        if not connection_manager.is_room_member(user['user_id'], room_id):
             raise HTTPException(status_code=403, detail="Access denied to this room")
         
         # Handle file share
@@ -363,7 +408,7 @@ async def health_check():
         'status': 'healthy',
         'service': 'MedReserve AI Chatbot',
         'version': '1.0.0',
-        'active_connections': len(connection_manager.active_connections),
+        'active_connections': connection_manager.connection_count,
         'active_rooms': len(connection_manager.chat_rooms),
         'timestamp': datetime.now().isoformat()
     }
@@ -377,9 +422,23 @@ async def get_chat_stats(user: Dict[str, Any] = Depends(get_current_user)):
             raise HTTPException(status_code=403, detail="Admin access required")
         
         stats = {
-            'active_connections': len(connection_manager.active_connections),
+            'active_connections': connection_manager.connection_count,
+            'active_users': len(connection_manager.active_connections),
             'total_rooms': len(connection_manager.chat_rooms),
-            'total_messages': sum(len(messages) for messages in connection_manager.message_history.values()),
+            'total_messages': connection_manager.message_history.total_messages,
+            'history': connection_manager.message_history.get_stats(),
+            'chat_log': connection_manager.chat_log.get_stats() if connection_manager.chat_log else None,
+            'backplane': connection_manager.backplane.get_stats(),
+            'typing': connection_manager.typing.get_stats(),
+            'receipts': connection_manager.receipts.get_stats(),
+            'heartbeat': connection_manager.heartbeat.get_stats(),
+            'history_compression': history_compressor.get_stats(),
+            'jwt_cache': JWTHandler.token_cache.get_stats(),
+            'api_cache': api_client.get_cache_stats(),
+            'backend': api_client.get_backend_stats(),
+            'conversations': conversation_store.get_stats(),
+            'nlu': intent_engine.get_stats(),
+            'entities': entity_linker.get_stats(),
             'users_by_role': {},
             'rooms_by_participants': {},
             'timestamp': datetime.now().isoformat()
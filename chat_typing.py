@@ -0,0 +1,110 @@
+"""
+Typing Indicator Coalescing for MedReserve AI
+Turns per-keystroke typing events into state transitions and rate-limited refreshes
+"""
+
+import asyncio
+import time
+from typing import Any, Awaitable, Callable, Dict, Iterable, Set, Tuple
+from timer_wheel import TimerWheel
+
+
+# Emits a typing update to the room: (room_id, user_id, is_typing)
+TypingEmitter = Callable[[str, str, bool], Awaitable[None]]
+
+
+class TypingCoalescer:
+    """Per (room, user) typing state; expiry is driven by a shared timer wheel
+
+    Each typing user has exactly one armed expiry timer, cancelled when the
+    state ends, so stop/start cycles do not pile up timers.
+    """
+
+    def __init__(self, wheel: TimerWheel, emit: TypingEmitter, interval: float, ttl: float):
+        self.wheel = wheel
+        self.emit = emit
+        self.interval = interval
+        self.ttl = ttl
+
+        # (room_id, user_id) -> [last_emitted_at, expires_at, expiry timer]
+        self.states: Dict[Tuple[str, str], list] = {}
+        # Stop frames emitted from timer and disconnect callbacks
+        self._pending: Set[asyncio.Task] = set()
+
+        self.events_received = 0
+        self.frames_emitted = 0
+        self.events_suppressed = 0
+        self.expired = 0
+
+    async def update(self, room_id: str, user_id: str, is_typing: bool):
+        """Record a client typing event, emitting only transitions or interval refreshes"""
+        self.events_received += 1
+        key = (room_id, user_id)
+        state = self.states.get(key)
+        now = time.monotonic()
+
+        if not is_typing:
+            if state is None:
+                self.events_suppressed += 1
+                return
+            del self.states[key]
+            state[2].cancel()
+            await self._emit(room_id, user_id, False)
+            return
+
+        if state is None:
+            self.states[key] = [now, now + self.ttl, self.wheel.schedule(self.ttl, self._check_expiry, key)]
+            await self._emit(room_id, user_id, True)
+            return
+
+        state[1] = now + self.ttl
+        if now - state[0] >= self.interval:
+            state[0] = now
+            await self._emit(room_id, user_id, True)
+        else:
+            self.events_suppressed += 1
+
+    def clear_user(self, user_id: str, room_ids: Iterable[str]):
+        """End typing state for a user's rooms (e.g. on disconnect), telling those rooms"""
+        for room_id in room_ids:
+            state = self.states.pop((room_id, user_id), None)
+            if state is not None:
+                state[2].cancel()
+                self._emit_later(room_id, user_id)
+
+    def _check_expiry(self, key: Tuple[str, str]):
+        """Timer callback: clear state that has not been refreshed within the TTL"""
+        state = self.states.get(key)
+        if state is None:
+            return
+
+        remaining = state[1] - time.monotonic()
+        if remaining > 0:
+            # Refreshed since scheduling; check again when the new deadline passes
+            state[2] = self.wheel.schedule(remaining, self._check_expiry, key)
+            return
+
+        del self.states[key]
+        self.expired += 1
+        self._emit_later(key[0], key[1])
+
+    def _emit_later(self, room_id: str, user_id: str):
+        """Emit a stop frame from synchronous code"""
+        task = asyncio.create_task(self._emit(room_id, user_id, False))
+        self._pending.add(task)
+        task.add_done_callback(self._pending.discard)
+
+    async def _emit(self, room_id: str, user_id: str, is_typing: bool):
+        self.frames_emitted += 1
+        await self.emit(room_id, user_id, is_typing)
+
+    def get_stats(self) -> Dict[str, Any]:
+        received = self.events_received
+        return {
+            'active': len(self.states),
+            'events_received': received,
+            'frames_emitted': self.frames_emitted,
+            'events_suppressed': self.events_suppressed,
+            'expired': self.expired,
+            'reduction_ratio': round(1 - self.frames_emitted / received, 4) if received else 0.0
+        }
@@ -31,6 +31,35 @@ class Settings(BaseSettings):
         default="http://localhost:8080/api",
         env="SPRING_BOOT_BASE_URL"
     )
+    # Pooled keep-alive client; HTTP/2 is used when the h2 package is installed
+    spring_boot_http2: bool = Field(default=True, env="SPRING_BOOT_HTTP2")
+    spring_boot_max_connections: int = Field(default=100, env="SPRING_BOOT_MAX_CONNECTIONS")
+    spring_boot_max_keepalive: int = Field(default=20, env="SPRING_BOOT_MAX_KEEPALIVE")
+    spring_boot_keepalive_expiry: float = Field(default=30.0, env="SPRING_BOOT_KEEPALIVE_EXPIRY")  # seconds
+    # Timeouts in seconds: connecting, read requests (GET), and writes (POST/PUT/DELETE)
+    spring_boot_connect_timeout: float = Field(default=5.0, env="SPRING_BOOT_CONNECT_TIMEOUT")
+    spring_boot_read_timeout: float = Field(default=10.0, env="SPRING_BOOT_READ_TIMEOUT")
+    spring_boot_write_timeout: float = Field(default=20.0, env="SPRING_BOOT_WRITE_TIMEOUT")
+    # Maximum concurrent per-user list reads (appointments, prescriptions, reports)
+    spring_boot_read_concurrency: int = Field(default=32, env="SPRING_BOOT_READ_CONCURRENCY")
+    # Per-endpoint circuit breaker: open after N consecutive failures, probe again after reset seconds
+    spring_boot_breaker_failures: int = Field(default=5, env="SPRING_BOOT_BREAKER_FAILURES")
+    spring_boot_breaker_reset: float = Field(default=30.0, env="SPRING_BOOT_BREAKER_RESET")
+    # Adaptive concurrency per endpoint: starts here, halves on failures or calls slower than slow_call_ms
+    spring_boot_concurrency_initial: int = Field(default=20, env="SPRING_BOOT_CONCURRENCY_INITIAL")
+    spring_boot_slow_call_ms: int = Field(default=2000, env="SPRING_BOOT_SLOW_CALL_MS")
+    # How long a call may wait for a free slot before failing fast
+    spring_boot_queue_timeout_ms: int = Field(default=500, env="SPRING_BOOT_QUEUE_TIMEOUT_MS")
+    # Deadline for a chatbot reply's concurrent backend reads; late optional reads are left out
+    spring_boot_fanout_deadline_ms: int = Field(default=3000, env="SPRING_BOOT_FANOUT_DEADLINE_MS")
+    # Read-through cache for doctor lookups (seconds); stale entries are served while refreshing
+    doctor_cache_ttl: int = Field(default=60, env="DOCTOR_CACHE_TTL")
+    availability_cache_ttl: int = Field(default=15, env="AVAILABILITY_CACHE_TTL")
+    api_cache_stale_ttl: int = Field(default=300, env="API_CACHE_STALE_TTL")
+    api_cache_max_entries: int = Field(default=2048, env="API_CACHE_MAX_ENTRIES")
+    # Share cached lookups and invalidations between workers through Redis (settings.redis_url);
+    # needed with several workers, or bookings on one leave stale slots cached on the others
+    api_cache_redis: bool = Field(default=False, env="API_CACHE_REDIS")
     
     # JWT Configuration
     jwt_secret_key: str = Field(
@@ -39,6 +68,9 @@ class Settings(BaseSettings):
     )
     jwt_algorithm: str = Field(default="HS256", env="JWT_ALGORITHM")
     jwt_expiration_hours: int = Field(default=24, env="JWT_EXPIRATION_HOURS")
+    # Verified tokens are cached until exp, capped at the TTL; 0 entries disables the cache
+    jwt_cache_size: int = Field(default=10000, env="JWT_CACHE_SIZE")
+    jwt_cache_ttl: int = Field(default=300, env="JWT_CACHE_TTL")  # seconds
     
     # Redis Configuration (for caching and sessions)
     redis_url: str = Field(
@@ -46,9 +78,35 @@ class Settings(BaseSettings):
         env="REDIS_URL"
     )
     
+    # Chat Backplane (cross-worker fan-out): 'memory' for a single worker, 'redis' for several
+    chat_backplane: str = Field(default="memory", env="CHAT_BACKPLANE")
+    chat_backplane_channel: str = Field(default="medreserve:chat", env="CHAT_BACKPLANE_CHANNEL")
+    chat_node_id: Optional[str] = Field(default=None, env="CHAT_NODE_ID")  # defaults to hostname-pid
+    chat_presence_ttl: int = Field(default=30, env="CHAT_PRESENCE_TTL")  # seconds a crashed worker's users stay present
+    chat_backplane_outbox_limit: int = Field(default=10000, env="CHAT_BACKPLANE_OUTBOX_LIMIT")  # queued commands before publishes drop
+    # 0-1023, unique per worker; unset, one worker uses 0 and Redis-backplane workers lease one
+    message_id_worker_id: Optional[int] = Field(default=None, env="MESSAGE_ID_WORKER_ID")
+    message_id_lease_ttl: int = Field(default=60, env="MESSAGE_ID_LEASE_TTL")  # seconds
+    
+    # Chatbot conversation state: 'memory' for one worker, 'redis' to share it and survive restarts
+    conversation_store: str = Field(default="memory", env="CONVERSATION_STORE")
+    conversation_idle_ttl: int = Field(default=1800, env="CONVERSATION_IDLE_TTL")  # seconds
+    conversation_max_entries: int = Field(default=100000, env="CONVERSATION_MAX_ENTRIES")  # memory store only
+    
     # WebSocket Configuration
     websocket_ping_interval: int = Field(default=20, env="WEBSOCKET_PING_INTERVAL")
     websocket_ping_timeout: int = Field(default=10, env="WEBSOCKET_PING_TIMEOUT")
+    websocket_send_queue_size: int = Field(default=256, env="WEBSOCKET_SEND_QUEUE_SIZE")
+    # Queue fill ratio above which typing indicators are dropped instead of queued
+    websocket_drop_typing_watermark: float = Field(default=0.5, env="WEBSOCKET_DROP_TYPING_WATERMARK")
+    # What to do when a client's queue is full: 'disconnect' or 'drop'
+    websocket_overflow_policy: str = Field(default="disconnect", env="WEBSOCKET_OVERFLOW_POLICY")
+    # Negotiate permessage-deflate with clients that offer it
+    websocket_per_message_deflate: bool = Field(default=True, env="WEBSOCKET_PER_MESSAGE_DEFLATE")
+    # Typing indicators: minimum gap between repeated "typing" updates, and idle expiry
+    typing_indicator_interval_ms: int = Field(default=3000, env="TYPING_INDICATOR_INTERVAL_MS")
+    typing_indicator_ttl: int = Field(default=6, env="TYPING_INDICATOR_TTL")  # seconds
+    receipt_flush_interval_ms: int = Field(default=250, env="RECEIPT_FLUSH_INTERVAL_MS")
     
     # File Upload
     max_file_size: int = Field(default=10 * 1024 * 1024, env="MAX_FILE_SIZE")  # 10MB
@@ -71,10 +129,44 @@ class Settings(BaseSettings):
     # Chatbot Configuration
     max_message_length: int = Field(default=1000, env="MAX_MESSAGE_LENGTH")
     max_conversation_history: int = Field(default=50, env="MAX_CONVERSATION_HISTORY")
+    # Global cap on messages held in memory across all rooms; cold rooms are evicted first
+    max_total_history_messages: int = Field(default=500000, env="MAX_TOTAL_HISTORY_MESSAGES")
+    # History response compression: bodies below the threshold are sent as is;
+    # higher levels trade CPU for bandwidth (gzip 1-9, brotli 0-11)
+    history_compression_min_bytes: int = Field(default=1024, env="HISTORY_COMPRESSION_MIN_BYTES")
+    history_gzip_level: int = Field(default=6, env="HISTORY_GZIP_LEVEL")
+    history_brotli_quality: int = Field(default=4, env="HISTORY_BROTLI_QUALITY")
+    
+    # Durable Chat Log (append-only segments on local disk)
+    chat_log_enabled: bool = Field(default=True, env="CHAT_LOG_ENABLED")
+    chat_log_directory: str = Field(default="data/chat_log", env="CHAT_LOG_DIRECTORY")
+    chat_log_shards: int = Field(default=16, env="CHAT_LOG_SHARDS")
+    chat_log_segment_bytes: int = Field(default=64 * 1024 * 1024, env="CHAT_LOG_SEGMENT_BYTES")  # 64MB
+    chat_log_fsync_interval_ms: int = Field(default=200, env="CHAT_LOG_FSYNC_INTERVAL_MS")
+    chat_log_retention_days: int = Field(default=30, env="CHAT_LOG_RETENTION_DAYS")
+    chat_log_room_depth: int = Field(default=1000, env="CHAT_LOG_ROOM_DEPTH")  # default history page size
+    chat_log_compaction_interval: int = Field(default=300, env="CHAT_LOG_COMPACTION_INTERVAL")  # seconds
     
     # NLP Configuration (Optional)
     enable_nlp: bool = Field(default=False, env="ENABLE_NLP")
     nlp_model_path: Optional[str] = Field(default=None, env="NLP_MODEL_PATH")
+    # Exported intent classifier: 'onnx' (ONNX Runtime) or 'torchscript'; see nlu_engine.py
+    nlp_backend: str = Field(default="onnx", env="NLP_BACKEND")
+    nlp_max_tokens: int = Field(default=64, env="NLP_MAX_TOKENS")
+    nlp_threads: int = Field(default=1, env="NLP_THREADS")  # inference threads per worker
+    # Minimum label probability for the model intent to replace the keyword intent
+    nlp_threshold: float = Field(default=0.5, env="NLP_THRESHOLD")
+    # Micro-batching: wait up to the window (or until batch_max messages) to share a forward pass
+    nlp_batch_window_ms: int = Field(default=2, env="NLP_BATCH_WINDOW_MS")
+    nlp_batch_max: int = Field(default=16, env="NLP_BATCH_MAX")
+    nlp_inference_workers: int = Field(default=1, env="NLP_INFERENCE_WORKERS")  # concurrent forward passes
+    
+    # Medical Entity Linking (ReMeDi dictionaries compiled to a memory-mapped index, see entity_linker.py)
+    enable_entity_linking: bool = Field(default=True, env="ENABLE_ENTITY_LINKING")
+    entity_data_dir: str = Field(default="Medical-Dialogue-main/data/Intermediate_file", env="ENTITY_DATA_DIR")
+    entity_index_path: str = Field(default="models/entity_index.bin", env="ENTITY_INDEX_PATH")
+    # Minimum *_match.json similarity for a dialogue alias to link to its canonical entity
+    entity_alias_min_score: float = Field(default=0.6, env="ENTITY_ALIAS_MIN_SCORE")
     
     # Emergency Keywords
     emergency_keywords: list = Field(
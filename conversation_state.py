@@ -0,0 +1,202 @@
+"""
+Conversation State for MedReserve AI
+Multi-step chatbot state (booking, prescriptions) with idle expiry, in memory or shared through Redis
+"""
+
+import json
+import time
+from abc import ABC, abstractmethod
+from collections import OrderedDict
+from typing import Any, Dict, Optional
+from loguru import logger
+from config import settings
+
+try:
+    import orjson
+except ImportError:  # Fall back to the standard library encoder
+    orjson = None
+
+
+def _dumps(state: Dict[str, Any]) -> bytes:
+    if orjson is not None:
+        return orjson.dumps(state)
+    return json.dumps(state, separators=(',', ':')).encode('utf-8')
+
+
+def _loads(data: bytes) -> Dict[str, Any]:
+    if orjson is not None:
+        return orjson.loads(data)
+    return json.loads(data)
+
+
+class ConversationStore(ABC):
+    """Per-conversation state that expires after idle_ttl seconds without access
+
+    States are stored serialized, so a caller's dict is never shared: changes
+    are only kept once passed back to set().
+    """
+
+    def __init__(self, idle_ttl: float):
+        self.idle_ttl = idle_ttl
+        self.hits = 0
+        self.misses = 0
+        self.writes = 0
+
+    @staticmethod
+    def key(namespace: str, user_id: str, conversation_id: str) -> str:
+        """Scope conversations by chatbot and user so client-chosen ids cannot collide"""
+        return f"{namespace}:{user_id}:{conversation_id}"
+
+    @abstractmethod
+    async def get(self, key: str) -> Dict[str, Any]:
+        """State for key (empty if unknown or expired); resets its idle timer"""
+
+    @abstractmethod
+    async def set(self, key: str, state: Dict[str, Any]):
+        """Replace the state for key"""
+
+    @abstractmethod
+    async def delete(self, key: str):
+        """Forget a finished conversation"""
+
+    async def close(self):
+        """Release resources"""
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'backend': type(self).__name__,
+            'idle_ttl': self.idle_ttl,
+            'hits': self.hits,
+            'misses': self.misses,
+            'writes': self.writes
+        }
+
+
+class MemoryConversationStore(ConversationStore):
+    """Single-process store, least recently used first out once max_entries is reached"""
+
+    def __init__(self, idle_ttl: float, max_entries: int):
+        super().__init__(idle_ttl)
+        self.max_entries = max_entries
+        # key -> (serialized state, idle deadline); ordered by last access
+        self._entries: OrderedDict = OrderedDict()
+        self.expired = 0
+        self.evicted = 0
+
+    async def get(self, key: str) -> Dict[str, Any]:
+        entry = self._entries.get(key)
+        now = time.monotonic()
+        if entry is None or entry[1] <= now:
+            if entry is not None:
+                del self._entries[key]
+                self.expired += 1
+            self.misses += 1
+            return {}
+        self._entries[key] = (entry[0], now + self.idle_ttl)
+        self._entries.move_to_end(key)
+        self.hits += 1
+        return _loads(entry[0])
+
+    async def set(self, key: str, state: Dict[str, Any]):
+        now = time.monotonic()
+        self._entries[key] = (_dumps(state), now + self.idle_ttl)
+        self._entries.move_to_end(key)
+        self.writes += 1
+        self._sweep(now)
+
+    async def delete(self, key: str):
+        self._entries.pop(key, None)
+
+    def _sweep(self, now: float):
+        """Drop idle entries from the cold end, then enforce the size bound"""
+        # Access order equals deadline order, so expired entries are all at the front
+        entries = self._entries
+        while entries:
+            key, (_, deadline) = next(iter(entries.items()))
+            if deadline > now:
+                break
+            del entries[key]
+            self.expired += 1
+        while len(entries) > self.max_entries:
+            entries.popitem(last=False)
+            self.evicted += 1
+
+    def get_stats(self) -> Dict[str, Any]:
+        stats = super().get_stats()
+        stats.update({
+            'conversations': len(self._entries),
+            'max_entries': self.max_entries,
+            'expired': self.expired,
+            'evicted': self.evicted
+        })
+        return stats
+
+
+class RedisConversationStore(ConversationStore):
+    """Store shared by every worker; Redis expires idle keys and evicts under maxmemory"""
+
+    def __init__(self, redis_url: str, idle_ttl: float, prefix: str = 'medreserve:conversation'):
+        super().__init__(idle_ttl)
+        self.redis_url = redis_url
+        self.prefix = prefix
+        self.redis = None
+        self.errors = 0
+
+    def _get_redis(self):
+        if self.redis is None:
+            import redis.asyncio as aioredis
+            self.redis = aioredis.from_url(self.redis_url)
+        return self.redis
+
+    def _redis_key(self, key: str) -> str:
+        return f"{self.prefix}:{key}"
+
+    async def get(self, key: str) -> Dict[str, Any]:
+        try:
+            # GETEX slides the idle expiry in the same round trip
+            data = await self._get_redis().getex(self._redis_key(key), ex=max(1, int(self.idle_ttl)))
+        except Exception as e:
+            self.errors += 1
+            logger.error(f"Conversation store read failed for {key}: {str(e)}")
+            data = None
+        if data is None:
+            self.misses += 1
+            return {}
+        self.hits += 1
+        return _loads(data)
+
+    async def set(self, key: str, state: Dict[str, Any]):
+        try:
+            await self._get_redis().set(self._redis_key(key), _dumps(state), ex=max(1, int(self.idle_ttl)))
+            self.writes += 1
+        except Exception as e:
+            self.errors += 1
+            logger.error(f"Conversation store write failed for {key}: {str(e)}")
+
+    async def delete(self, key: str):
+        try:
+            await self._get_redis().delete(self._redis_key(key))
+        except Exception as e:
+            self.errors += 1
+            logger.error(f"Conversation store delete failed for {key}: {str(e)}")
+
+    async def close(self):
+        if self.redis is not None:
+            await self.redis.close()
+            self.redis = None
+
+    def get_stats(self) -> Dict[str, Any]:
+        stats = super().get_stats()
+        stats['errors'] = self.errors
+        return stats
+
+
+def create_conversation_store() -> ConversationStore:
+    """Build the store selected by settings.conversation_store"""
+    if settings.conversation_store == 'redis':
+        return RedisConversationStore(settings.redis_url, settings.conversation_idle_ttl)
+    return MemoryConversationStore(settings.conversation_idle_ttl, settings.conversation_max_entries)
+
+
+# Global store shared by both chatbots
+conversation_store = create_conversation_store()
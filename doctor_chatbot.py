@@ -9,6 +9,8 @@ from datetime import datetime, timedelta
 from typing import Dict, List, Optional, Any
 from loguru import logger
 from utils import MessageProcessor, api_client, JWTHandler
+from api_fanout import FanOut
+from conversation_state import ConversationStore, conversation_store
 from config import settings
 
 
@@ -16,7 +18,7 @@ class DoctorChatbot:
     """Intelligent chatbot for doctor interactions"""
     
     def __init__(self):
-        self.conversation_states = {}
+        self.conversation_store = conversation_store
         self.message_processor = MessageProcessor()
     
     async def process_message(
@@ -24,7 +26,7 @@ class DoctorChatbot:
         message: str,
         user_token: str,
         user_id: str,
-        conversation_id: str
+        conversation_id: Optional[str]
     ) -> Dict[str, Any]:
         """Process doctor message and generate response"""
         
@@ -40,7 +42,7 @@ class DoctorChatbot:
                 }
             
             # Extract intent from message
-            intent = self._extract_doctor_intent(message)
+            intent = await self.message_processor.classify_intent(message, 'DOCTOR')
             
             # Route to appropriate handler based on intent
             if intent == 'view_appointments':
@@ -68,40 +70,6 @@ class DoctorChatbot:
                 'actions': []
             }
     
-    def _extract_doctor_intent(self, message: str) -> str:
-        """Extract intent from doctor message"""
-        message_lower = message.lower().strip()
-        
-        # Appointment management
-        if any(keyword in message_lower for keyword in ['appointments', 'schedule', 'calendar', 'today']):
-            return 'view_appointments'
-        
-        # Patient management
-        if any(keyword in message_lower for keyword in ['patients', 'my patients', 'patient list']):
-            return 'view_patients'
-        
-        # Prescription management
-        if any(keyword in message_lower for keyword in ['prescribe', 'prescription', 'medication', 'medicine']):
-            return 'add_prescription'
-        
-        # Diagnosis
-        if any(keyword in message_lower for keyword in ['diagnosis', 'diagnose', 'condition', 'treatment']):
-            return 'add_diagnosis'
-        
-        # Patient history
-        if any(keyword in message_lower for keyword in ['history', 'medical history', 'previous']):
-            return 'patient_history'
-        
-        # Emergency
-        if any(keyword in message_lower for keyword in ['emergency', 'urgent', 'critical']):
-            return 'emergency_patients'
-        
-        # Schedule
-        if any(keyword in message_lower for keyword in ['schedule', 'availability', 'time slots']):
-            return 'schedule_management'
-        
-        return 'general_chat'
-    
     async def _handle_view_appointments(self, token: str, user_info: Dict) -> Dict[str, Any]:
         """Handle viewing doctor's appointments"""
         try:
@@ -181,9 +149,15 @@ Your schedule is currently clear. You can:
     async def _handle_view_patients(self, token: str, user_info: Dict) -> Dict[str, Any]:
         """Handle viewing doctor's patients"""
         try:
-            patients = await api_client.get_patients(token, user_info['user_id'])
+            doctor_id = user_info['user_id']
+            fan_out = self._fan_out('view_patients')
+            fan_out.add('patients', lambda: api_client.get_patients(token, doctor_id), required=True)
+            fan_out.add('appointments', lambda: api_client.get_appointments(token, doctor_id, 'DOCTOR'), default=[])
+            result = await fan_out.run()
+            patients = result.get('patients')
             
             if patients:
+                next_visits = self._next_appointments(result.get('appointments'))
                 response = "👥 **Your Patients**\n\n"
                 
                 for i, patient in enumerate(patients[:10], 1):  # Show first 10
@@ -195,12 +169,18 @@ Your schedule is currently clear. You can:
                     
                     response += f"{i}. **{name}** ({age}y, {gender})\n"
                     response += f"   📅 Last visit: {last_visit}\n"
+                    next_visit = next_visits.get(str(patient.get('id'))) or next_visits.get(name)
+                    if next_visit:
+                        response += f"   🗓️ Next visit: {next_visit.get('appointmentDate', 'TBD')} at {next_visit.get('appointmentTime', 'TBD')}\n"
                     response += f"   🏥 Condition: {condition}\n\n"
                 
+                if result.partial:
+                    response += "_Upcoming visits are temporarily unavailable._\n"
+                
                 return {
                     'response': response,
                     'type': 'patients_list',
-                    'data': {'patients': patients},
+                    'data': {'patients': patients, 'partial': result.missing},
                     'actions': [
                         {'type': 'view_patient_history', 'label': 'View Patient History'},
                         {'type': 'add_prescription', 'label': 'Add Prescription'},
@@ -236,7 +216,7 @@ Once patients book appointments with you, they'll appear here with:
         message: str,
         token: str,
         user_info: Dict,
-        conversation_id: str
+        conversation_id: Optional[str]
     ) -> Dict[str, Any]:
         """Handle adding prescriptions via chat"""
         
@@ -244,8 +224,10 @@ Once patients book appointments with you, they'll appear here with:
         prescription_info = self._extract_prescription_info(message)
         
         if prescription_info:
-            # Get conversation state
-            state = self.conversation_states.get(conversation_id, {})
+            # Get conversation state (none is kept without a conversation_id)
+            state = await self.conversation_store.get(
+                ConversationStore.key('doctor', user_info['user_id'], conversation_id)
+            ) if conversation_id else {}
             
             if not state.get('patient_id'):
                 return {
@@ -369,7 +351,7 @@ What prescription would you like to add?""",
         message: str,
         token: str,
         user_info: Dict,
-        conversation_id: str
+        conversation_id: Optional[str]
     ) -> Dict[str, Any]:
         """Handle adding diagnosis via chat"""
         
@@ -381,6 +363,7 @@ What prescription would you like to add?""",
                 'response': f"""📋 **Diagnosis Summary**
 
 **Condition:** {diagnosis_info.get('condition', 'Not specified')}
+**ICD-10:** {diagnosis_info.get('icd10', 'Not specified')}
 **Symptoms:** {diagnosis_info.get('symptoms', 'Not specified')}
 **Severity:** {diagnosis_info.get('severity', 'Not specified')}
 **Recommended Treatment:** {diagnosis_info.get('treatment', 'Not specified')}
@@ -443,8 +426,24 @@ What diagnosis would you like to record?""",
         # Extract symptoms (simple approach)
         symptom_keywords = ['pain', 'fever', 'cough', 'headache', 'nausea', 'fatigue']
         symptoms = [symptom for symptom in symptom_keywords if symptom in message_lower]
+        
+        # Knowledge base entities (ReMeDi dictionaries), with ICD-10 codes where known
+        entities = self.message_processor.extract_entities(message)
+        for entity in entities:
+            if entity['type'] == 'disease' and 'condition' not in result:
+                result['condition'] = entity['name']
+                if entity['icd10']:
+                    result['icd10'] = entity['icd10']
+            elif entity['type'] == 'symptom' and entity['name'] not in symptoms:
+                symptoms.append(entity['name'])
+        medicines = [entity['name'] for entity in entities if entity['type'] == 'medicine']
+        if medicines:
+            result['treatment'] = ', '.join(dict.fromkeys(medicines))
+        
         if symptoms:
             result['symptoms'] = ', '.join(symptoms)
+        if entities:
+            result['entities'] = entities
         
         return result if result else None
     
@@ -453,28 +452,9 @@ What diagnosis would you like to record?""",
         
         # Extract patient identifier from message
         patient_name = self._extract_patient_name(message)
+        patient_id = self._extract_patient_id(message)
         
-        if patient_name:
-            return {
-                'response': f"""📊 **Patient History for {patient_name}**
-
-I can show you:
-- Previous appointments and diagnoses
-- Current and past prescriptions
-- Medical test results
-- Treatment history
-- Emergency visits
-
-What specific information would you like to see?""",
-                'type': 'patient_history_options',
-                'actions': [
-                    {'type': 'view_appointments_history', 'label': 'Appointment History'},
-                    {'type': 'view_prescriptions_history', 'label': 'Prescription History'},
-                    {'type': 'view_test_results', 'label': 'Test Results'},
-                    {'type': 'view_diagnoses', 'label': 'Previous Diagnoses'}
-                ]
-            }
-        else:
+        if not patient_name and not patient_id:
             return {
                 'response': """Which patient's history would you like to review?
 
@@ -487,6 +467,114 @@ Please specify the patient name or select from your patient list.
                     {'type': 'enter_patient_name', 'label': 'Enter Patient Name'}
                 ]
             }
+        
+        try:
+            doctor_id = user_info['user_id']
+            if patient_id is None:
+                patients = await api_client.get_patients(token, doctor_id)
+                patient = next(
+                    (p for p in patients if str(p.get('name', '')).lower() == patient_name.lower()),
+                    None
+                )
+                if patient is None:
+                    return {
+                        'response': f"I couldn't find **{patient_name}** among your patients. Please check the name or select from your patient list.",
+                        'type': 'patient_not_found',
+                        'actions': [
+                            {'type': 'select_from_list', 'label': 'Select from Patient List'}
+                        ]
+                    }
+                patient_id = str(patient.get('id'))
+            
+            # Appointments, prescriptions and reports are independent reads
+            fan_out = self._fan_out('patient_history')
+            fan_out.add('appointments', lambda: api_client.get_appointments(token, doctor_id, 'DOCTOR'), default=[])
+            fan_out.add('prescriptions', lambda: api_client.get_prescriptions(token, patient_id), default=[])
+            fan_out.add('reports', lambda: api_client.get_medical_reports(token, patient_id), default=[])
+            result = await fan_out.run()
+            
+            appointments = [
+                apt for apt in result.get('appointments')
+                if str(apt.get('patientId')) == patient_id or (patient_name and apt.get('patientName') == patient_name)
+            ]
+            appointments.sort(key=lambda x: (x.get('appointmentDate', ''), x.get('appointmentTime', '')), reverse=True)
+            prescriptions = result.get('prescriptions')
+            reports = result.get('reports')
+            
+            response = f"📊 **Patient History for {patient_name or f'ID {patient_id}'}**\n\n"
+            
+            response += "📅 **Appointments:**\n"
+            if 'appointments' in result.missing:
+                response += "   _Temporarily unavailable_\n"
+            for apt in appointments[:5]:
+                response += f"   • {apt.get('appointmentDate', 'TBD')} - {apt.get('reason', 'General consultation')} ({apt.get('status', 'Scheduled')})\n"
+            if not appointments and 'appointments' not in result.missing:
+                response += "   No appointments on record\n"
+            
+            response += "\n💊 **Prescriptions:**\n"
+            if 'prescriptions' in result.missing:
+                response += "   _Temporarily unavailable_\n"
+            for prescription in prescriptions[:5]:
+                response += f"   • {prescription.get('medicationName', 'Unknown')} - {prescription.get('dosage', 'As prescribed')}, {prescription.get('frequency', 'As directed')}\n"
+            if not prescriptions and 'prescriptions' not in result.missing:
+                response += "   No prescriptions on record\n"
+            
+            response += "\n🧪 **Medical Reports:**\n"
+            if 'reports' in result.missing:
+                response += "   _Temporarily unavailable_\n"
+            for report in reports[:5]:
+                response += f"   • {report.get('reportType', 'General Report')} ({report.get('reportDate', 'Unknown date')})\n"
+            if not reports and 'reports' not in result.missing:
+                response += "   No reports on record\n"
+            
+            return {
+                'response': response,
+                'type': 'patient_history',
+                'data': {
+                    'patient_id': patient_id,
+                    'appointments': appointments,
+                    'prescriptions': prescriptions,
+                    'reports': reports,
+                    'partial': result.missing
+                },
+                'actions': [
+                    {'type': 'view_appointments_history', 'label': 'Appointment History'},
+                    {'type': 'view_prescriptions_history', 'label': 'Prescription History'},
+                    {'type': 'view_test_results', 'label': 'Test Results'},
+                    {'type': 'view_diagnoses', 'label': 'Previous Diagnoses'}
+                ]
+            }
+            
+        except Exception as e:
+            logger.error(f"Error fetching patient history: {str(e)}")
+            return {
+                'response': "I'm having trouble accessing this patient's history. Please try again later.",
+                'type': 'error'
+            }
+    
+    def _fan_out(self, name: str) -> FanOut:
+        """Concurrent backend reads for one reply, bounded by the fan-out deadline"""
+        return FanOut(settings.spring_boot_fanout_deadline_ms / 1000, name=name)
+    
+    @staticmethod
+    def _next_appointments(appointments: List[Dict]) -> Dict[str, Dict]:
+        """Earliest upcoming appointment per patient, keyed by patient id and by name"""
+        today = datetime.now().strftime('%Y-%m-%d')
+        next_visits = {}
+        upcoming = sorted(
+            (apt for apt in appointments if apt.get('appointmentDate', '') >= today),
+            key=lambda x: (x.get('appointmentDate', ''), x.get('appointmentTime', ''))
+        )
+        for apt in upcoming:
+            for key in (apt.get('patientId'), apt.get('patientName')):
+                if key is not None:
+                    next_visits.setdefault(str(key), apt)
+        return next_visits
+    
+    def _extract_patient_id(self, message: str) -> Optional[str]:
+        """Extract an explicit patient ID such as "ID 123" from message"""
+        match = re.search(r'\bid\b\s*[:#]?\s*(\w+)', message, re.IGNORECASE)
+        return match.group(1) if match else None
     
     def _extract_patient_name(self, message: str) -> Optional[str]:
         """Extract patient name from message"""
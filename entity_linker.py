@@ -0,0 +1,504 @@
+"""
+Medical Entity Linking for MedReserve AI
+Links disease, symptom, medicine, check item and department mentions to the ReMeDi knowledge base
+"""
+
+import asyncio
+import json
+import mmap
+import os
+import re
+import struct
+import time
+from array import array
+from collections import deque
+from functools import lru_cache
+from typing import Any, Dict, List, Optional, Tuple
+from loguru import logger
+from config import settings
+
+
+ENTITY_TYPES = ('disease', 'symptom', 'medicine', 'check_item', 'department')
+
+# Source files under the ReMeDi Intermediate_file directory
+KNOWLEDGE_FILE = 'knowledge.json'
+ICD_NAMES_FILE = 'disease_icd_10'
+SURFACE_FILES = {
+    'disease': 'disease_new.txt',
+    'symptom': 'symptom_new.txt',
+    'medicine': 'medicine_new.txt',
+    'check_item': 'check_item_new.txt'
+}
+ALIAS_FILES = {
+    'disease': 'disease_match.json',
+    'medicine': 'medicine_match.json',
+    'check_item': 'check_item_match.json'
+}
+
+# magic, version, cells, entities, strings, blob bytes, reserved
+INDEX_MAGIC = b'MRENTIDX'
+INDEX_VERSION = 1
+INDEX_HEADER = struct.Struct('<8s6I')
+# type, name, ICD-10 codes, departments (string ids; -1 when absent)
+ENTITY_FIELDS = 4
+
+# Mentions inside a sentence or list, e.g. "甲氨蝶呤片，依托考昔片", are not single entities
+SEPARATORS = re.compile(r'[，,、；;。/\s]')
+PARENTHESES = re.compile(r'[（(]([^）)]*)[）)]')
+
+# Terms and mentions may not start or end inside an ASCII word
+WORD_BYTES = frozenset(b'abcdefghijklmnopqrstuvwxyz0123456789')
+
+
+class LinkedEntity:
+    """One mention in a message and the knowledge base entity it links to"""
+
+    __slots__ = ('type', 'name', 'text', 'icd10_codes', 'departments')
+
+    def __init__(self, type: str, name: str, text: str, icd10_codes: Tuple[str, ...], departments: Tuple[str, ...]):
+        self.type = type
+        self.name = name
+        self.text = text
+        self.icd10_codes = icd10_codes
+        self.departments = departments
+
+    @property
+    def icd10(self) -> Optional[str]:
+        return self.icd10_codes[0] if self.icd10_codes else None
+
+    def to_dict(self) -> Dict[str, Any]:
+        return {
+            'type': self.type,
+            'name': self.name,
+            'text': self.text,
+            'icd10': self.icd10,
+            'departments': list(self.departments)
+        }
+
+
+def _usable(term: str, canonical: bool) -> bool:
+    """Whether a dictionary term is safe to match as a mention
+
+    ReMeDi surface forms are Chinese; its ASCII-only entries are abbreviations
+    such as 'i', 'call' or 'ct' that collide with English words. Single
+    characters are only kept for knowledge base names such as 痔.
+    """
+    if not term or term.isascii() or SEPARATORS.search(term):
+        return False
+    return canonical or len(term) >= 2
+
+
+def _name_variants(name: str) -> List[str]:
+    """ICD-10 names as written in messages: 流行性乙型脑炎（日本脑炎） -> both names"""
+    variants = [name]
+    inner = PARENTHESES.findall(name)
+    if inner:
+        variants.append(PARENTHESES.sub('', name))
+        variants.extend(inner)
+    head = SEPARATORS.split(name)[0]
+    if head != name:
+        variants.append(head)
+    return [variant.strip() for variant in variants]
+
+
+def collect_terms(data_dir: str, alias_min_score: float) -> Tuple[List[Tuple[str, str, List[str], List[str]]], Dict[str, int]]:
+    """Entities (type, name, ICD-10 codes, departments) and lowercased surface term -> entity index
+
+    When sources disagree the first registration of a term wins, in order:
+    knowledge base names, department names, ICD-10 names, *_match.json aliases
+    scoring at least alias_min_score, then the *_new.txt dialogue vocabularies.
+    """
+    entities: List[Tuple[str, str, List[str], List[str]]] = []
+    ids: Dict[Tuple[str, str], int] = {}
+    terms: Dict[str, int] = {}
+
+    def entity(entity_type: str, name: str) -> int:
+        key = (entity_type, name)
+        if key not in ids:
+            ids[key] = len(entities)
+            entities.append((entity_type, name, [], []))
+        return ids[key]
+
+    def register(term: str, entity_id: int, canonical: bool = False):
+        term = term.strip().lower()
+        if _usable(term, canonical) and term not in terms:
+            terms[term] = entity_id
+
+    def read(name: str) -> str:
+        with open(os.path.join(data_dir, name), encoding='utf-8') as f:
+            return f.read()
+
+    knowledge = json.loads(read(KNOWLEDGE_FILE))
+    departments = []
+    for entity_type in ('disease', 'symptom', 'check_item', 'medicine'):
+        for head, relation, value in knowledge.get(entity_type, []):
+            entity_id = entity(entity_type, head)
+            _, _, codes, depts = entities[entity_id]
+            if relation == 'ICD-10' and value not in codes:
+                codes.append(value)
+            elif relation == '所属科室' and value not in depts:
+                depts.append(value)
+                if value not in departments:
+                    departments.append(value)
+        for (head_type, head), entity_id in list(ids.items()):
+            if head_type == entity_type:
+                register(head, entity_id, canonical=True)
+
+    for department in departments:
+        entity_id = entity('department', department)
+        entities[entity_id][3].append(department)
+        register(department, entity_id, canonical=True)
+
+    for name in read(ICD_NAMES_FILE).splitlines():
+        name = name.strip()
+        if name:
+            entity_id = entity('disease', name)
+            for variant in _name_variants(name):
+                register(variant, entity_id, canonical=True)
+
+    vocabularies = {
+        entity_type: [term.strip() for term in read(file_name).split(',')]
+        for entity_type, file_name in SURFACE_FILES.items()
+    }
+    vocabulary_types: Dict[str, str] = {}
+    for entity_type, vocabulary in vocabularies.items():
+        for term in vocabulary:
+            vocabulary_types.setdefault(term.lower(), entity_type)
+
+    for entity_type, file_name in ALIAS_FILES.items():
+        for alias, match in json.loads(read(file_name)).items():
+            # [score, canonical], or [count, score, canonical] for medicines
+            score, name = match[-2], match[-1]
+            alias = alias.strip().lower()
+            if not name or score < alias_min_score or not _usable(name, True) or alias in terms:
+                continue
+            # Nearest-name matches also pair 感冒 with 感冒药 and 高血压 with 恶性高血压:
+            # keep a term of another type's vocabulary, and never narrow a term to a subtype
+            if vocabulary_types.get(alias, entity_type) != entity_type or alias in name.lower():
+                continue
+            register(alias, entity(entity_type, name))
+
+    for entity_type, vocabulary in vocabularies.items():
+        for term in vocabulary:
+            if _usable(term.lower(), False) and term.lower() not in terms:
+                register(term, entity(entity_type, term))
+
+    return entities, terms
+
+
+def _double_array(terms: Dict[bytes, int]) -> Tuple[array, array, array]:
+    """Byte trie packed into base/check/value arrays
+
+    The child of cell s on byte c is t = base[s] + c + 1 when check[t] == s;
+    value[t] is the entity index + 1 of a term ending at t, else 0. Cell 0 is
+    the root.
+    """
+    children: List[Dict[int, int]] = [{}]
+    output: List[int] = [0]
+    for term, entity_id in terms.items():
+        node = 0
+        for byte in term:
+            nxt = children[node].get(byte)
+            if nxt is None:
+                nxt = len(children)
+                children[node][byte] = nxt
+                children.append({})
+                output.append(0)
+            node = nxt
+        output[node] = entity_id + 1
+
+    base = array('i', [0])
+    check = array('i', [-2])
+    value = array('i', [0])
+    used = bytearray(b'\x01')
+    first_free = 1
+    queue = deque([(0, 0)])
+    while queue:
+        node, cell = queue.popleft()
+        labels = sorted(children[node])
+        if not labels:
+            continue
+        # Try offsets that put the first label on a free cell; find() skips used cells in C
+        free = first_free
+        while True:
+            free = used.find(0, free)
+            if free < 0:
+                free = len(used)
+            offset = free - labels[0] - 1
+            needed = offset + labels[-1] + 2 - len(used)
+            if needed > 0:
+                used.extend(bytes(needed))
+                base.extend([0] * needed)
+                check.extend([-1] * needed)
+                value.extend([0] * needed)
+            if offset >= 0 and not any(used[offset + label + 1] for label in labels):
+                break
+            free += 1
+        base[cell] = offset
+        for label in labels:
+            child = children[node][label]
+            target = offset + label + 1
+            used[target] = 1
+            check[target] = cell
+            value[target] = output[child]
+            queue.append((child, target))
+        first_free = used.find(0, first_free)
+        if first_free < 0:
+            first_free = len(used)
+    return base, check, value
+
+
+def build_entity_index(data_dir: str, path: str, alias_min_score: float) -> Dict[str, int]:
+    """Compile the dictionaries into the binary index at path (written atomically)"""
+    entities, terms = collect_terms(data_dir, alias_min_score)
+    base, check, value = _double_array({term.encode('utf-8'): entity_id for term, entity_id in terms.items()})
+
+    strings: Dict[str, int] = {}
+
+    def string(text: str) -> int:
+        if not text:
+            return -1
+        if text not in strings:
+            strings[text] = len(strings)
+        return strings[text]
+
+    records = array('i')
+    for entity_type, name, codes, departments in entities:
+        records.extend([ENTITY_TYPES.index(entity_type), string(name), string('|'.join(codes)), string('|'.join(departments))])
+
+    offsets = array('I', [0])
+    blob = bytearray()
+    for text in strings:
+        blob += text.encode('utf-8')
+        offsets.append(len(blob))
+
+    for part in (base, check, value, records):
+        if part.itemsize != 4:
+            raise RuntimeError("entity index requires 4-byte C ints")
+    directory = os.path.dirname(path)
+    if directory:
+        os.makedirs(directory, exist_ok=True)
+    # Workers starting together may all build; each writes its own file and the last rename wins
+    tmp_path = f"{path}.{os.getpid()}.tmp"
+    try:
+        with open(tmp_path, 'wb') as f:
+            f.write(INDEX_HEADER.pack(INDEX_MAGIC, INDEX_VERSION, len(base), len(entities), len(strings), len(blob), 0))
+            for part in (base, check, value, records, offsets):
+                f.write(part.tobytes())
+            f.write(blob)
+        os.replace(tmp_path, path)
+    except BaseException:
+        if os.path.exists(tmp_path):
+            os.unlink(tmp_path)
+        raise
+    return {'terms': len(terms), 'entities': len(entities), 'cells': len(base), 'bytes': os.path.getsize(path)}
+
+
+class EntityIndex:
+    """Read-only view of a binary index, memory-mapped so pages load on first touch"""
+
+    def __init__(self, path: str):
+        with open(path, 'rb') as f:
+            self._mmap = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ)
+        magic, version, cells, entities, strings, blob_size, _ = INDEX_HEADER.unpack_from(self._mmap, 0)
+        if magic != INDEX_MAGIC or version != INDEX_VERSION:
+            self._mmap.close()
+            raise ValueError(f"Not an entity index (version {INDEX_VERSION}): {path}")
+
+        view = memoryview(self._mmap)
+        position = INDEX_HEADER.size
+
+        def section(count: int, fmt: str) -> memoryview:
+            nonlocal position
+            part = view[position:position + count * 4].cast(fmt)
+            position += count * 4
+            return part
+
+        self.base = section(cells, 'i')
+        self.check = section(cells, 'i')
+        self.value = section(cells, 'i')
+        self.records = section(entities * ENTITY_FIELDS, 'i')
+        self.offsets = section(strings + 1, 'I')
+        self.blob = view[position:position + blob_size]
+        self.cells = cells
+        self.entities = entities
+        self.size = len(self._mmap)
+        self._entity_cache: Dict[int, Tuple[str, str, Tuple[str, ...], Tuple[str, ...]]] = {}
+
+    def string(self, index: int) -> str:
+        if index < 0:
+            return ''
+        return bytes(self.blob[self.offsets[index]:self.offsets[index + 1]]).decode('utf-8')
+
+    def entity(self, index: int) -> Tuple[str, str, Tuple[str, ...], Tuple[str, ...]]:
+        """(type, name, ICD-10 codes, departments), decoded once per entity"""
+        cached = self._entity_cache.get(index)
+        if cached is None:
+            entity_type, name, codes, departments = self.records[index * ENTITY_FIELDS:(index + 1) * ENTITY_FIELDS]
+            codes, departments = self.string(codes), self.string(departments)
+            cached = (
+                ENTITY_TYPES[entity_type],
+                self.string(name),
+                tuple(codes.split('|')) if codes else (),
+                tuple(departments.split('|')) if departments else ()
+            )
+            self._entity_cache[index] = cached
+        return cached
+
+    def close(self):
+        for part in (self.base, self.check, self.value, self.records, self.offsets, self.blob):
+            part.release()
+        self._mmap.close()
+
+
+class EntityLinker:
+    """Leftmost-longest dictionary matching against the prebuilt index
+
+    start() rebuilds the index off the event loop when it is missing or older
+    than the dictionaries, which takes a few seconds; build it at deploy time
+    with `python entity_linker.py` to skip that. Messages never trigger a build:
+    until an index exists, linking finds nothing and the keyword paths answer.
+    """
+
+    def __init__(self, index_path: str, data_dir: str, alias_min_score: float, cache_size: int = 1024):
+        self.index_path = index_path
+        self.data_dir = data_dir
+        self.alias_min_score = alias_min_score
+        self.index: Optional[EntityIndex] = None
+        self._failed = False
+        self._missing_logged = False
+        self.scans = 0
+        self.mentions = 0
+        self.link = lru_cache(maxsize=cache_size)(self._link)
+
+    def _stale(self) -> bool:
+        if not os.path.exists(self.index_path):
+            return True
+        if not os.path.isdir(self.data_dir):
+            return False
+        built = os.path.getmtime(self.index_path)
+        sources = [KNOWLEDGE_FILE, ICD_NAMES_FILE, *SURFACE_FILES.values(), *ALIAS_FILES.values()]
+        return any(
+            os.path.getmtime(os.path.join(self.data_dir, name)) > built
+            for name in sources if os.path.exists(os.path.join(self.data_dir, name))
+        )
+
+    async def start(self):
+        """Build a missing or stale index off the event loop, then open it"""
+        if not settings.enable_entity_linking or self.index is not None:
+            return
+        try:
+            if self._stale():
+                started = time.perf_counter()
+                built = await asyncio.to_thread(build_entity_index, self.data_dir, self.index_path, self.alias_min_score)
+                logger.warning(
+                    f"Built entity index {self.index_path} in {time.perf_counter() - started:.1f}s "
+                    f"({built['terms']} terms, {built['entities']} entities)"
+                )
+        except Exception as e:
+            # An older index, if any, is still better than none
+            logger.error(f"Failed to build entity index {self.index_path}: {str(e)}")
+        self.load()
+
+    def load(self) -> bool:
+        """Open the index if it exists; False if unavailable"""
+        if self.index is not None:
+            return True
+        if self._failed or not settings.enable_entity_linking:
+            return False
+        if not os.path.exists(self.index_path):
+            if not self._missing_logged:
+                self._missing_logged = True
+                logger.warning(f"No entity index at {self.index_path}; linking is off until it is built")
+            return False
+        try:
+            self.index = EntityIndex(self.index_path)
+            logger.info(f"Entity index mapped from {self.index_path} ({self.index.entities} entities)")
+            return True
+        except Exception as e:
+            # Don't retry on every message; the keyword paths keep working
+            self._failed = True
+            logger.error(f"Entity linking unavailable: {str(e)}")
+            return False
+
+    def _link(self, text: str) -> Tuple[LinkedEntity, ...]:
+        if not self.load():
+            return ()
+        index = self.index
+        base, check, value = index.base, index.check, index.value
+        cells = index.cells
+        data = text.lower().encode('utf-8', 'surrogatepass')
+        length = len(data)
+        mentions = []
+        start = 0
+        while start < length:
+            byte = data[start]
+            # Only start on a character boundary, and not inside an ASCII word
+            if 0x80 <= byte < 0xC0 or (byte in WORD_BYTES and start and data[start - 1] in WORD_BYTES):
+                start += 1
+                continue
+            cell, position = 0, start
+            end = found = 0
+            while position < length:
+                target = base[cell] + data[position] + 1
+                if target >= cells or check[target] != cell:
+                    break
+                cell = target
+                position += 1
+                if value[cell] and not (
+                    data[position - 1] in WORD_BYTES and position < length and data[position] in WORD_BYTES
+                ):
+                    end, found = position, value[cell]
+            if found:
+                entity_type, name, codes, departments = index.entity(found - 1)
+                surface = data[start:end].decode('utf-8', 'surrogatepass')
+                mentions.append(LinkedEntity(entity_type, name, surface, codes, departments))
+                start = end
+            else:
+                start += 1
+        self.scans += 1
+        self.mentions += len(mentions)
+        return tuple(mentions)
+
+    def close(self):
+        self.link.cache_clear()
+        if self.index is not None:
+            self.index.close()
+            self.index = None
+
+    def get_stats(self) -> Dict[str, Any]:
+        info = self.link.cache_info()
+        return {
+            'loaded': self.index is not None,
+            'entities': self.index.entities if self.index else 0,
+            'cells': self.index.cells if self.index else 0,
+            'index_bytes': self.index.size if self.index else 0,
+            'scans': self.scans,
+            'mentions': self.mentions,
+            'cache_hits': info.hits
+        }
+
+
+# Global linker instance; built or refreshed by start() in the application lifespan
+entity_linker = EntityLinker(
+    settings.entity_index_path,
+    settings.entity_data_dir,
+    settings.entity_alias_min_score
+)
+
+
+if __name__ == "__main__":
+    import argparse
+
+    parser = argparse.ArgumentParser(description="Build the binary entity index from the ReMeDi dictionaries")
+    parser.add_argument('--data-dir', default=settings.entity_data_dir)
+    parser.add_argument('--out', default=settings.entity_index_path)
+    parser.add_argument('--alias-min-score', type=float, default=settings.entity_alias_min_score)
+    args = parser.parse_args()
+
+    started = time.perf_counter()
+    built = build_entity_index(args.data_dir, args.out, args.alias_min_score)
+    print(
+        f"✅ {args.out}: {built['terms']} terms -> {built['entities']} entities, "
+        f"{built['cells']} cells, {built['bytes'] / 1024:.0f} KiB in {time.perf_counter() - started:.1f}s"
+    )
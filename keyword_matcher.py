@@ -0,0 +1,164 @@
+"""
+Keyword Matching for MedReserve AI
+Aho-Corasick automaton that finds every intent, emergency and specialization keyword in one pass
+"""
+
+from collections import deque
+from functools import lru_cache
+from typing import Any, Callable, Dict, Iterable, List, Optional, Sequence, Tuple
+
+
+class KeywordTable:
+    """Ordered keyword groups; when several groups match, the earliest one wins
+
+    Mirrors a chain of `if any(keyword in text ...)` checks: each group is one
+    check, and its result is what that check would have returned.
+    """
+
+    def __init__(self, name: str, groups: Sequence[Tuple[Any, Iterable[str]]]):
+        self.name = name
+        self.results = [result for result, _ in groups]
+        self.keywords = [list(keywords) for _, keywords in groups]
+        # Set by KeywordMatcher: this table's groups occupy bits [offset, offset + len)
+        self.offset = 0
+        self._mask = (1 << len(groups)) - 1
+
+    def first(self, hits: int) -> Optional[Any]:
+        """Result of the highest-priority group present in hits"""
+        matched = (hits >> self.offset) & self._mask
+        if not matched:
+            return None
+        return self.results[(matched & -matched).bit_length() - 1]
+
+    def hit(self, hits: int, index: int) -> bool:
+        return bool(hits >> (self.offset + index) & 1)
+
+
+class KeywordMatcher:
+    """One automaton over the keywords of several tables
+
+    scan() walks the text once and returns a bitmask with one bit per group,
+    which every table can resolve without rescanning. Matching is plain
+    substring matching on normalize(text), like `keyword in text.lower()`.
+    Recent scans are memoized on the text as passed in, so the several lookups
+    made for one message share a single pass and a single normalization.
+
+    The automaton steps in Python once per byte, while `keyword in text` runs
+    in C, so from long_text characters on it is cheaper to test each distinct
+    keyword with str containment (same result, see tests/test_keyword_matcher.py).
+    """
+
+    def __init__(
+        self,
+        tables: Iterable[KeywordTable],
+        normalize: Callable[[str], str] = str.lower,
+        cache_size: int = 1024,
+        long_text: int = 64
+    ):
+        self.tables: Dict[str, KeywordTable] = {}
+        patterns: Dict[bytes, int] = {}
+        bit = 0
+        for table in tables:
+            table.offset = bit
+            for keywords in table.keywords:
+                for keyword in keywords:
+                    key = self._encode(keyword)
+                    patterns[key] = patterns.get(key, 0) | (1 << bit)
+                bit += 1
+            self.tables[table.name] = table
+
+        # An empty keyword is contained in every text
+        self._always = patterns.pop(b'', 0)
+        self._compile(patterns)
+        self.normalize = normalize
+        self.long_text = long_text
+        self._keywords = [(pattern.decode('utf-8', 'surrogatepass'), bits) for pattern, bits in patterns.items()]
+        self.long_scans = 0
+        self.scan = lru_cache(maxsize=cache_size)(self._scan)
+
+    @staticmethod
+    def _encode(text: str) -> bytes:
+        # UTF-8 keeps substring matches identical to str matching, with a byte-sized alphabet
+        return text.encode('utf-8', 'surrogatepass')
+
+    def _compile(self, patterns: Dict[bytes, int]):
+        """Build the trie, then fold failure links into a flat transition table"""
+        goto: List[Dict[int, int]] = [{}]
+        out: List[int] = [0]
+        for pattern, bits in patterns.items():
+            state = 0
+            for byte in pattern:
+                nxt = goto[state].get(byte)
+                if nxt is None:
+                    nxt = len(goto)
+                    goto[state][byte] = nxt
+                    goto.append({})
+                    out.append(0)
+                state = nxt
+            out[state] |= bits
+
+        fail = [0] * len(goto)
+        delta: List[Dict[int, int]] = [dict(goto[0])]
+        delta.extend({} for _ in range(len(goto) - 1))
+        queue = deque(goto[0].values())
+        while queue:
+            state = queue.popleft()
+            # Patterns ending at the failure state also end here
+            out[state] |= out[fail[state]]
+            delta[state] = dict(delta[fail[state]])
+            for byte, nxt in goto[state].items():
+                fail[nxt] = delta[fail[state]].get(byte, 0)
+                delta[state][byte] = nxt
+                queue.append(nxt)
+
+        # Bytes that occur in no keyword share one class, which always leads back to the root
+        alphabet = sorted({byte for pattern in patterns for byte in pattern})
+        codes = {byte: code for code, byte in enumerate(alphabet)}
+        other = min(len(alphabet), 255)
+        width = len(alphabet) + 1
+        self._classes = bytes(codes.get(byte, other) for byte in range(256))
+
+        # States are stored premultiplied by the row width, so a step is one list lookup
+        self._trans = [0] * (len(goto) * width)
+        self._out = [0] * (len(goto) * width)
+        for state, row in enumerate(delta):
+            base = state * width
+            self._out[base] = out[state]
+            for byte, nxt in row.items():
+                self._trans[base + codes[byte]] = nxt * width
+        self.states = len(goto)
+
+    def _scan(self, text: str) -> int:
+        text = self.normalize(text)
+        if len(text) >= self.long_text:
+            return self._scan_long(text)
+        trans = self._trans
+        out = self._out
+        state = 0
+        hits = self._always
+        for code in self._encode(text).translate(self._classes):
+            state = trans[state + code]
+            hits |= out[state]
+        return hits
+
+    def _scan_long(self, text: str) -> int:
+        self.long_scans += 1
+        hits = self._always
+        for keyword, bits in self._keywords:
+            # Skip keywords whose groups are already known to match
+            if bits & ~hits and keyword in text:
+                hits |= bits
+        return hits
+
+    def first(self, table: str, text: str) -> Optional[Any]:
+        return self.tables[table].first(self.scan(text))
+
+    def get_stats(self) -> Dict[str, Any]:
+        info = self.scan.cache_info()
+        return {
+            'states': self.states,
+            'groups': sum(len(table.results) for table in self.tables.values()),
+            'scans': info.misses,
+            'long_scans': self.long_scans,
+            'cache_hits': info.hits
+        }
@@ -16,6 +16,11 @@ from loguru import logger
 
 from config import settings
 from chat_router import router as chat_router
+from realtime_chat import connection_manager
+from utils import api_client, message_ids
+from conversation_state import conversation_store
+from nlu_engine import intent_engine
+from entity_linker import entity_linker
 
 
 # Configure logging
@@ -49,10 +54,31 @@ async def lifespan(app: FastAPI):
     os.makedirs(settings.upload_directory, exist_ok=True)
     logger.info(f"Upload directory: {settings.upload_directory}")
     
+    # Open the pooled Spring Boot API client
+    await api_client.start()
+    
+    # Load the NLU intent model when enabled (keyword intents otherwise)
+    await intent_engine.start()
+    
+    # Build the entity index if missing or stale (off the event loop), then map it
+    await entity_linker.start()
+    
+    # Lease a message ID worker id when several workers share Redis
+    await message_ids.start()
+    
+    # Start real-time chat services (durable chat log)
+    await connection_manager.start()
+    
     yield
     
     # Shutdown
     logger.info("🛑 Shutting down MedReserve AI Chatbot System")
+    await connection_manager.shutdown()
+    await message_ids.close()
+    await api_client.close()
+    await conversation_store.close()
+    intent_engine.close()
+    entity_linker.close()
 
 
 # Create FastAPI application
@@ -350,5 +376,6 @@ if __name__ == "__main__":
         log_level=settings.log_level.lower(),
         access_log=True,
         ws_ping_interval=settings.websocket_ping_interval,
-        ws_ping_timeout=settings.websocket_ping_timeout
+        ws_ping_timeout=settings.websocket_ping_timeout,
+        ws_per_message_deflate=settings.websocket_per_message_deflate
     )
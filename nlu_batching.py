@@ -0,0 +1,151 @@
+"""
+NLU Micro-batching for MedReserve AI
+Groups concurrent intent predictions into shared forward passes run off the event loop
+"""
+
+import asyncio
+import time
+from concurrent.futures import ThreadPoolExecutor
+from typing import Any, Callable, Dict, List, Optional, Tuple
+from loguru import logger
+
+
+# Batched model call: texts -> one result per text, in order
+PredictBatch = Callable[[List[str]], List[Any]]
+
+
+class MicroBatcher:
+    """Collects predictions for up to `window` seconds or `max_batch` items per forward pass
+
+    Requests are grouped by length bucket (`bucket_width` characters, capped at
+    `max_length`) so a batch is padded to similar lengths. Forward passes run in
+    a small thread pool; ONNX Runtime and torch release the GIL while computing.
+    While every worker is busy, requests keep accumulating and go out together
+    as soon as one frees up, so batches grow with load instead of queueing.
+    """
+
+    def __init__(
+        self,
+        predict: PredictBatch,
+        window: float = 0.002,
+        max_batch: int = 16,
+        bucket_width: int = 16,
+        max_length: int = 64,
+        workers: int = 1
+    ):
+        self.predict = predict
+        self.window = window
+        self.max_batch = max_batch
+        self.bucket_width = bucket_width
+        self.max_length = max_length
+        self.workers = workers
+        self._executor = ThreadPoolExecutor(max_workers=workers, thread_name_prefix='nlu')
+
+        # bucket -> [(text, future, enqueued_at)]
+        self._buckets: Dict[int, List[Tuple[str, asyncio.Future, float]]] = {}
+        self._timer: Optional[asyncio.TimerHandle] = None
+        # The window passed while every worker was busy
+        self._due = False
+        self.in_flight = 0
+
+        self.requests = 0
+        self.batched = 0
+        self.batches = 0
+        self.batch_errors = 0
+        self.batch_sizes: Dict[int, int] = {}
+        self.queue_seconds = 0.0
+
+    async def submit(self, text: str) -> Any:
+        """Result for one text, computed in a shared batch"""
+        loop = asyncio.get_running_loop()
+        future = loop.create_future()
+        bucket = min(len(text), self.max_length) // self.bucket_width
+        items = self._buckets.setdefault(bucket, [])
+        items.append((text, future, time.perf_counter()))
+        self.requests += 1
+
+        if len(items) >= self.max_batch:
+            self._dispatch(bucket)
+        elif self._timer is None and not self._due:
+            self._timer = loop.call_later(self.window, self._on_window)
+        return await future
+
+    def _on_window(self):
+        self._timer = None
+        self._due = True
+        self._dispatch_ready()
+
+    def _dispatch_ready(self):
+        """Send full buckets, and every bucket once the window has passed"""
+        for bucket in list(self._buckets):
+            if self.in_flight >= self.workers:
+                return
+            if self._due or len(self._buckets[bucket]) >= self.max_batch:
+                self._dispatch(bucket)
+        if not self._buckets:
+            self._due = False
+        elif self._timer is None and not self._due:
+            # Leftovers of an oversized bucket still get their window
+            self._timer = asyncio.get_running_loop().call_later(self.window, self._on_window)
+
+    def _dispatch(self, bucket: int):
+        if self.in_flight >= self.workers:
+            return
+        items = self._buckets.get(bucket)
+        if not items:
+            return
+        batch, rest = items[:self.max_batch], items[self.max_batch:]
+        if rest:
+            self._buckets[bucket] = rest
+        else:
+            del self._buckets[bucket]
+        # Callers that went away (request cancelled) need no inference
+        batch = [item for item in batch if not item[1].done()]
+        if batch:
+            self.in_flight += 1
+            asyncio.create_task(self._run(batch))
+
+    async def _run(self, batch: List[Tuple[str, asyncio.Future, float]]):
+        started = time.perf_counter()
+        try:
+            self.batches += 1
+            self.batched += len(batch)
+            self.batch_sizes[len(batch)] = self.batch_sizes.get(len(batch), 0) + 1
+            self.queue_seconds += sum(started - enqueued for _, _, enqueued in batch)
+            texts = [text for text, _, _ in batch]
+            results = await asyncio.get_running_loop().run_in_executor(self._executor, self.predict, texts)
+            for (_, future, _), result in zip(batch, results):
+                if not future.done():
+                    future.set_result(result)
+        except Exception as e:
+            self.batch_errors += 1
+            logger.error(f"NLU batch of {len(batch)} failed: {str(e)}")
+            for _, future, _ in batch:
+                if not future.done():
+                    future.set_exception(e)
+        finally:
+            self.in_flight -= 1
+            self._dispatch_ready()
+
+    def close(self):
+        if self._timer is not None:
+            self._timer.cancel()
+            self._timer = None
+        for items in self._buckets.values():
+            for _, future, _ in items:
+                if not future.done():
+                    future.cancel()
+        self._buckets.clear()
+        self._executor.shutdown(wait=False)
+
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'requests': self.requests,
+            'batches': self.batches,
+            'batch_errors': self.batch_errors,
+            'avg_batch_size': round(self.batched / self.batches, 2) if self.batches else 0.0,
+            'batch_sizes': dict(sorted(self.batch_sizes.items())),
+            'avg_queue_ms': round(self.queue_seconds / self.batched * 1000, 2) if self.batched else 0.0,
+            'queued': sum(len(items) for items in self._buckets.values()),
+            'in_flight': self.in_flight
+        }
@@ -0,0 +1,253 @@
+"""
+NLU Intent Engine for MedReserve AI
+CPU inference for the exported BERT intent classifier; keyword intents remain the fallback
+"""
+
+import asyncio
+import json
+import os
+import time
+from abc import ABC, abstractmethod
+from collections import deque
+from typing import Any, Dict, List, Optional
+from loguru import logger
+from config import settings
+from nlu_batching import MicroBatcher
+
+
+# Model labels (dialogue act + slot, see Medical-Dialogue-main/model/BERT/nlu.py) that
+# correspond to a chatbot intent; anything else falls back to keyword matching
+PATIENT_LABEL_INTENTS = {
+    'Inquire department': 'doctor_info',
+    'Inquire medical_place': 'doctor_info',
+    'Inquire medicine': 'view_prescriptions',
+    'Inquire medicine_category': 'view_prescriptions',
+    'Inquire dose': 'view_prescriptions',
+    'Inquire frequency': 'view_prescriptions',
+    'Inquire side_effect': 'view_prescriptions',
+    'Inquire check_item': 'view_reports'
+}
+
+DOCTOR_LABEL_INTENTS = {
+    'Inform medicine': 'add_prescription',
+    'Inform medicine_category': 'add_prescription',
+    'Inform dose': 'add_prescription',
+    'Inform frequency': 'add_prescription',
+    'Inform disease': 'add_diagnosis',
+    'Inform treatment': 'add_diagnosis',
+    'Inquire disease_history': 'patient_history',
+    'Inform disease_history': 'patient_history'
+}
+
+ROLE_LABEL_INTENTS = {'PATIENT': PATIENT_LABEL_INTENTS, 'DOCTOR': DOCTOR_LABEL_INTENTS}
+
+
+class IntentModel(ABC):
+    """Exported multi-label classifier: tokenizer.json, labels.json and the model file
+
+    predict() takes a batch of texts and returns one probability per label for each,
+    padding the batch only to its longest member.
+    """
+
+    def __init__(self, model_dir: str, max_tokens: int, threads: int):
+        from tokenizers import Tokenizer
+
+        self.model_dir = model_dir
+        self.max_tokens = max_tokens
+        self.threads = threads
+        with open(os.path.join(model_dir, 'labels.json'), encoding='utf-8') as f:
+            self.labels: List[str] = json.load(f)
+        self.tokenizer = Tokenizer.from_file(os.path.join(model_dir, 'tokenizer.json'))
+        self.tokenizer.enable_truncation(max_tokens)
+        self.tokenizer.no_padding()
+
+    def encode(self, texts: List[str]):
+        """input_ids, attention_mask and token_type_ids as int64 arrays of shape (batch, longest)"""
+        import numpy as np
+
+        encodings = self.tokenizer.encode_batch(texts)
+        width = max(len(encoding.ids) for encoding in encodings)
+        input_ids = np.zeros((len(texts), width), dtype=np.int64)
+        attention_mask = np.zeros((len(texts), width), dtype=np.int64)
+        token_type_ids = np.zeros((len(texts), width), dtype=np.int64)
+        for row, encoding in enumerate(encodings):
+            length = len(encoding.ids)
+            input_ids[row, :length] = encoding.ids
+            attention_mask[row, :length] = 1
+            token_type_ids[row, :length] = encoding.type_ids
+        return input_ids, attention_mask, token_type_ids
+
+    @abstractmethod
+    def predict(self, texts: List[str]) -> List[List[float]]:
+        """Label probabilities for each text"""
+
+
+class ONNXIntentModel(IntentModel):
+    """ONNX Runtime session over model.int8.onnx (dynamic int8 quantized) or model.onnx"""
+
+    def __init__(self, model_dir: str, max_tokens: int, threads: int):
+        super().__init__(model_dir, max_tokens, threads)
+        import onnxruntime as ort
+
+        path = os.path.join(model_dir, 'model.int8.onnx')
+        if not os.path.exists(path):
+            path = os.path.join(model_dir, 'model.onnx')
+        options = ort.SessionOptions()
+        options.graph_optimization_level = ort.GraphOptimizationLevel.ORT_ENABLE_ALL
+        options.execution_mode = ort.ExecutionMode.ORT_SEQUENTIAL
+        # Workers each run their own session; oversubscribing cores hurts tail latency
+        options.intra_op_num_threads = threads
+        options.inter_op_num_threads = 1
+        self.session = ort.InferenceSession(path, options, providers=['CPUExecutionProvider'])
+        self.path = path
+
+    def predict(self, texts: List[str]) -> List[List[float]]:
+        input_ids, attention_mask, token_type_ids = self.encode(texts)
+        (probs,) = self.session.run(['probs'], {
+            'input_ids': input_ids,
+            'attention_mask': attention_mask,
+            'token_type_ids': token_type_ids
+        })
+        return probs.tolist()
+
+
+class TorchScriptIntentModel(IntentModel):
+    """TorchScript module model.int8.pt, quantized (dynamic int8 Linear layers) at export"""
+
+    def __init__(self, model_dir: str, max_tokens: int, threads: int):
+        super().__init__(model_dir, max_tokens, threads)
+        import torch
+
+        torch.set_num_threads(threads)
+        self.path = os.path.join(model_dir, 'model.int8.pt')
+        self.module = torch.jit.load(self.path, map_location='cpu').eval()
+        self._torch = torch
+
+    def predict(self, texts: List[str]) -> List[List[float]]:
+        torch = self._torch
+        input_ids, attention_mask, token_type_ids = self.encode(texts)
+        with torch.inference_mode():
+            probs = self.module(
+                torch.from_numpy(input_ids),
+                torch.from_numpy(attention_mask),
+                torch.from_numpy(token_type_ids)
+            )
+        return probs.tolist()
+
+
+MODEL_BACKENDS = {'onnx': ONNXIntentModel, 'torchscript': TorchScriptIntentModel}
+
+
+def load_intent_model(model_dir: str, backend: str, max_tokens: int, threads: int) -> IntentModel:
+    if backend not in MODEL_BACKENDS:
+        raise ValueError(f"Unknown NLP backend: {backend}")
+    return MODEL_BACKENDS[backend](model_dir, max_tokens, threads)
+
+
+class IntentEngine:
+    """Model-based intents when enabled and loaded; callers fall back to keywords on None"""
+
+    def __init__(self):
+        self.model: Optional[IntentModel] = None
+        self.batcher: Optional[MicroBatcher] = None
+        self.threshold = settings.nlp_threshold
+        self.predictions = 0
+        self.model_intents = 0
+        self.errors = 0
+        # Recent inference latencies (seconds) for percentile stats
+        self._latencies: deque = deque(maxlen=2048)
+
+    async def start(self):
+        """Load the exported model off the event loop; on failure keep keyword intents"""
+        if not settings.enable_nlp or self.model is not None:
+            return
+        if not settings.nlp_model_path:
+            logger.warning("ENABLE_NLP is set but NLP_MODEL_PATH is not; using keyword intents")
+            return
+        try:
+            self.model = await asyncio.to_thread(
+                load_intent_model,
+                settings.nlp_model_path,
+                settings.nlp_backend,
+                settings.nlp_max_tokens,
+                settings.nlp_threads
+            )
+            # First run allocates buffers; keep it out of request latency
+            await asyncio.to_thread(self.model.predict, ['warm up'])
+            # Concurrent chat messages share forward passes
+            self.batcher = MicroBatcher(
+                self.model.predict,
+                window=settings.nlp_batch_window_ms / 1000,
+                max_batch=settings.nlp_batch_max,
+                max_length=settings.nlp_max_tokens,
+                workers=settings.nlp_inference_workers
+            )
+            logger.info(f"NLU intent model loaded from {self.model.path} ({len(self.model.labels)} labels)")
+        except ImportError as e:
+            self.model = None
+            logger.error(f"ENABLE_NLP is set but {e.name or e} is not installed "
+                         f"(pip install -r requirements-nlp.txt); using keyword intents")
+        except Exception as e:
+            self.model = None
+            logger.error(f"Failed to load NLU intent model, using keyword intents: {str(e)}")
+
+    def close(self):
+        if self.batcher is not None:
+            self.batcher.close()
+            self.batcher = None
+        self.model = None
+
+    @property
+    def ready(self) -> bool:
+        return self.batcher is not None
+
+    def resolve(self, probs: List[float], role: str) -> Optional[str]:
+        """Chatbot intent for the most probable mapped label above the threshold"""
+        mapping = ROLE_LABEL_INTENTS.get(role, PATIENT_LABEL_INTENTS)
+        best, best_prob = None, self.threshold
+        for label, prob in zip(self.model.labels, probs):
+            intent = mapping.get(label)
+            if intent is not None and prob >= best_prob:
+                best, best_prob = intent, prob
+        return best
+
+    async def predict_intent(self, message: str, role: str) -> Optional[str]:
+        if self.batcher is None:
+            return None
+        started = time.perf_counter()
+        try:
+            probs = await self.batcher.submit(message)
+        except Exception as e:
+            self.errors += 1
+            logger.error(f"NLU inference failed, using keyword intent: {str(e)}")
+            return None
+        self._latencies.append(time.perf_counter() - started)
+        self.predictions += 1
+        intent = self.resolve(probs, role)
+        if intent is not None:
+            self.model_intents += 1
+        return intent
+
+    def get_stats(self) -> Dict[str, Any]:
+        latencies = sorted(self._latencies)
+
+        def percentile(p: float) -> float:
+            if not latencies:
+                return 0.0
+            return round(latencies[min(len(latencies) - 1, int(p * len(latencies)))] * 1000, 2)
+
+        return {
+            'enabled': settings.enable_nlp,
+            'loaded': self.ready,
+            'backend': settings.nlp_backend if self.ready else None,
+            'predictions': self.predictions,
+            'model_intents': self.model_intents,
+            'errors': self.errors,
+            'p50_ms': percentile(0.50),
+            'p99_ms': percentile(0.99),
+            'batching': self.batcher.get_stats() if self.batcher else None
+        }
+
+
+# Global engine instance
+intent_engine = IntentEngine()
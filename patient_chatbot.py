@@ -8,6 +8,7 @@ from datetime import datetime, timedelta
 from typing import Dict, List, Optional, Any
 from loguru import logger
 from utils import MessageProcessor, api_client, JWTHandler
+from conversation_state import ConversationStore, conversation_store
 from config import settings
 
 
@@ -15,7 +16,7 @@ class PatientChatbot:
     """Intelligent chatbot for patient interactions"""
     
     def __init__(self):
-        self.conversation_states = {}  # Store conversation state per user
+        self.conversation_store = conversation_store  # Multi-step state, expires when idle
         self.message_processor = MessageProcessor()
     
     async def process_message(
@@ -23,16 +24,19 @@ class PatientChatbot:
         message: str,
         user_token: str,
         user_id: str,
-        conversation_id: str
+        conversation_id: Optional[str]
     ) -> Dict[str, Any]:
-        """Process patient message and generate response"""
+        """Process patient message and generate response
+        
+        Without a conversation_id every message is handled on its own and no state is kept.
+        """
         
         try:
             # Get user information from token
             user_info = JWTHandler.get_user_from_token(user_token)
             
             # Extract intent from message
-            intent = self.message_processor.extract_intent(message)
+            intent = await self.message_processor.classify_intent(message, 'PATIENT')
             
             # Check for emergency
             if self.message_processor.is_emergency(message):
@@ -92,12 +96,13 @@ Please let me know how I can assist you further.""",
         message: str,
         token: str,
         user_info: Dict,
-        conversation_id: str
+        conversation_id: Optional[str]
     ) -> Dict[str, Any]:
         """Handle appointment booking process"""
         
         # Get or initialize conversation state
-        state = self.conversation_states.get(conversation_id, {})
+        state_key = ConversationStore.key('patient', user_info['user_id'], conversation_id) if conversation_id else None
+        state = await self.conversation_store.get(state_key) if state_key else {}
         
         # Extract information from message
         specialization = self.message_processor.extract_specialization(message)
@@ -109,7 +114,8 @@ Please let me know how I can assist you further.""",
             if specialization:
                 state['specialization'] = specialization
                 state['booking_step'] = 'doctor_selection'
-                self.conversation_states[conversation_id] = state
+                if state_key:
+                    await self.conversation_store.set(state_key, state)
                 
                 # Get available doctors
                 try:
@@ -168,6 +174,9 @@ Which type of doctor would you like to see? For example:
         elif state.get('booking_step') == 'doctor_selection':
             # Step 2: Select doctor and get availability
             # This would continue the booking flow...
+            # The date and time pickers finish the booking, so the chat flow is done:
+            # the next booking request starts over instead of landing here again
+            await self.conversation_store.delete(state_key)
             return {
                 'response': "Please select a preferred date and time for your appointment. I can check availability for the next 30 days.",
                 'type': 'datetime_selection',
@@ -225,7 +234,7 @@ Would you like me to help you book a new appointment?""",
         message: str,
         token: str,
         user_info: Dict,
-        conversation_id: str
+        conversation_id: Optional[str]
     ) -> Dict[str, Any]:
         """Handle appointment cancellation or rescheduling"""
         
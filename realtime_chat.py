@@ -5,44 +5,217 @@ Handles WebSocket connections for doctor-patient communication
 
 import json
 import asyncio
+from collections import deque
 from datetime import datetime
 from typing import Dict, List, Set, Optional, Any
 from fastapi import WebSocket, WebSocketDisconnect
 from loguru import logger
-from utils import JWTHandler
+from utils import JWTHandler, message_ids
 from config import settings
+from chat_history import MessageHistoryStore, page_cursors
+from chat_log import ChatLog
+from chat_backplane import Backplane, create_backplane, room_topic, user_topic
+from chat_typing import TypingCoalescer
+from chat_receipts import ReceiptAggregator
+from chat_heartbeat import HeartbeatMonitor
+from chat_codec import MessageCodec, Payload, json_codec
+from timer_wheel import TimerWheel
+
+
+# Message types that may be discarded when a client falls behind
+DROPPABLE_MESSAGE_TYPES = {'typing_indicator'}
+
+# Queue depth beyond which droppable messages are discarded
+DROP_WATERMARK = int(settings.websocket_send_queue_size * settings.websocket_drop_typing_watermark)
+
+# Close code for heartbeat clients that stopped answering pings
+IDLE_CLOSE_CODE = 1001
+
+
+class ConnectionWriter:
+    """Bounded outbound queue for one WebSocket
+    
+    The writer task only exists while payloads are pending, so an idle
+    connection costs a small slotted object and an empty deque.
+    """
+    
+    __slots__ = (
+        'websocket', 'user_id', 'connection_id', 'codec', 'pending', 'task', 'closed', 'on_failure',
+        'last_activity', 'ping_sent_at', 'heartbeat'
+    )
+    
+    def __init__(self, websocket: WebSocket, user_id: str, connection_id: str, codec: MessageCodec, on_failure):
+        self.websocket = websocket
+        self.user_id = user_id
+        self.connection_id = connection_id
+        self.codec = codec
+        self.pending: deque = deque()
+        self.task: Optional[asyncio.Task] = None
+        self.closed = False
+        self.on_failure = on_failure
+        self.last_activity = 0.0
+        self.ping_sent_at = 0.0
+        self.heartbeat = None
+    
+    def offer(self, payload: Payload, droppable: bool = False) -> bool:
+        """Enqueue encoded payload without blocking; returns False if the queue overflowed"""
+        if self.closed:
+            return True
+        
+        # Typing indicators are the first thing to go under backpressure
+        if droppable and len(self.pending) >= DROP_WATERMARK:
+            return True
+        if len(self.pending) >= settings.websocket_send_queue_size:
+            return False
+        
+        self.pending.append(payload)
+        if self.task is None:
+            self.task = asyncio.create_task(self._drain())
+        return True
+    
+    async def _drain(self):
+        """Write queued payloads to the socket one at a time, then exit"""
+        try:
+            send = self.websocket.send_bytes if self.codec.binary else self.websocket.send_text
+            while self.pending:
+                await send(self.pending.popleft())
+            self.task = None
+        except asyncio.CancelledError:
+            raise
+        except Exception as e:
+            logger.error(f"Error sending message to {self.user_id}: {str(e)}")
+            # Remove broken connection
+            self.on_failure(self.user_id, self.connection_id)
+    
+    def close(self, code: Optional[int] = None):
+        """Stop the writer task and optionally close the socket"""
+        self.closed = True
+        self.pending.clear()
+        if self.task is not None and self.task is not asyncio.current_task():
+            self.task.cancel()
+        if code is not None:
+            asyncio.create_task(self._close_socket(code))
+    
+    async def _close_socket(self, code: int):
+        """Close socket without letting a stalled peer block the caller"""
+        try:
+            await asyncio.wait_for(self.websocket.close(code=code), timeout=settings.websocket_ping_timeout)
+        except Exception:
+            pass
 
 
 class ConnectionManager:
     """Manages WebSocket connections for real-time chat"""
     
     def __init__(self):
-        # Store active connections by user_id
-        self.active_connections: Dict[str, WebSocket] = {}
+        # Store active connections by user_id, one writer per device
+        self.active_connections: Dict[str, Dict[str, ConnectionWriter]] = {}
+        self.connection_count = 0
         
         # Store chat rooms (doctor-patient pairs)
         self.chat_rooms: Dict[str, Set[str]] = {}
         
+        # Reverse index of chat_rooms (user_id -> room_ids), kept in sync by
+        # the room membership methods so per-user lookups never scan every room
+        self.user_rooms: Dict[str, Set[str]] = {}
+        
         # Store user information
         self.user_info: Dict[str, Dict[str, Any]] = {}
         
-        # Store message history (in production, use database)
-        self.message_history: Dict[str, List[Dict[str, Any]]] = {}
+        # Store message history: hot tail in memory, durable copy on local disk
+        self.message_history = MessageHistoryStore(
+            settings.max_conversation_history,
+            settings.max_total_history_messages
+        )
+        self.chat_log: Optional[ChatLog] = None
+        if settings.chat_log_enabled:
+            self.chat_log = ChatLog(
+                settings.chat_log_directory,
+                shards=settings.chat_log_shards,
+                segment_max_bytes=settings.chat_log_segment_bytes,
+                fsync_interval=settings.chat_log_fsync_interval_ms / 1000,
+                retention_seconds=settings.chat_log_retention_days * 86400,
+                room_depth=settings.chat_log_room_depth,
+                compaction_interval=settings.chat_log_compaction_interval,
+                # Workers sharing the directory each write their own slot
+                per_node=settings.chat_backplane == 'redis'
+            )
+        
+        # Cross-node fan-out; only sockets on this node are written directly
+        self.backplane: Backplane = create_backplane()
+        
+        # Shared timer wheel for per-user timeouts (typing expiry, heartbeats)
+        self.timer_wheel = TimerWheel(tick=0.1)
+        self.heartbeat = HeartbeatMonitor(
+            self.timer_wheel,
+            self._send_ping,
+            self._reap_idle,
+            interval=settings.websocket_ping_interval,
+            timeout=settings.websocket_ping_timeout
+        )
+        self.typing = TypingCoalescer(
+            self.timer_wheel,
+            self._emit_typing_indicator,
+            interval=settings.typing_indicator_interval_ms / 1000,
+            ttl=settings.typing_indicator_ttl
+        )
+        
+        # Read/delivered receipts collapsed to per-user high-water marks
+        self.receipts = ReceiptAggregator(
+            self._emit_message_status,
+            flush_interval=settings.receipt_flush_interval_ms / 1000
+        )
     
-    async def connect(self, websocket: WebSocket, user_id: str, token: str):
-        """Accept WebSocket connection and authenticate user"""
+    async def start(self):
+        """Start background services (called from the application lifespan)"""
+        if self.chat_log:
+            await self.chat_log.start()
+        await self.backplane.start(self._on_backplane_envelope)
+        self.timer_wheel.start()
+        self.receipts.start()
+    
+    async def shutdown(self):
+        """Flush and stop background services"""
+        await self.receipts.stop()
+        await self.timer_wheel.stop()
+        await self.backplane.close()
+        if self.chat_log:
+            await self.chat_log.close()
+    
+    async def connect(
+        self,
+        websocket: WebSocket,
+        user_id: str,
+        token: str,
+        codec: MessageCodec = json_codec,
+        heartbeat: bool = False
+    ) -> str:
+        """Accept WebSocket connection and authenticate user; returns the connection id
+        
+        Only connections opened with heartbeat get JSON pings and are reaped
+        when they go unanswered.
+        """
         try:
             # Authenticate user
             user_info = JWTHandler.get_user_from_token(token)
             
             # Accept connection
-            await websocket.accept()
-            
-            # Store connection and user info
-            self.active_connections[user_id] = websocket
+            await websocket.accept(subprotocol=codec.subprotocol)
+            
+            # Store connection alongside the user's other devices
+            connection_id = message_ids.next_message_id('conn')
+            writer = ConnectionWriter(websocket, user_id, connection_id, codec, self._drop_broken)
+            first_device = user_id not in self.active_connections
+            self.active_connections.setdefault(user_id, {})[connection_id] = writer
+            if first_device:
+                self._watch_user(user_id, True)
+            if heartbeat:
+                self.heartbeat.watch(writer)
+            self.connection_count += 1
+            self.backplane.set_presence(user_id, True)
             self.user_info[user_id] = user_info
             
-            logger.info(f"User {user_id} ({user_info.get('role')}) connected to chat")
+            logger.info(f"User {user_id} ({user_info.get('role')}) connected to chat as {connection_id}")
             
             # Send connection confirmation
             await self.send_personal_message({
@@ -53,89 +226,297 @@ class ConnectionManager:
                     'role': user_info.get('role'),
                     'name': user_info.get('full_name')
                 },
+                'connection_id': connection_id,
                 'timestamp': datetime.now().isoformat()
-            }, user_id)
+            }, user_id, connection_id)
             
-            return user_info
+            return connection_id
             
         except Exception as e:
             logger.error(f"Error connecting user {user_id}: {str(e)}")
             await websocket.close(code=1008, reason="Authentication failed")
             raise
     
-    def disconnect(self, user_id: str):
-        """Remove user from active connections"""
-        if user_id in self.active_connections:
+    def disconnect(self, user_id: str, connection_id: Optional[str] = None):
+        """Remove one device (or, without connection_id, every device) of a user
+        
+        Room membership is only released once the user has no devices left.
+        """
+        connections = self.active_connections.get(user_id)
+        if connections is not None:
+            if connection_id is None:
+                writers = list(connections.values())
+                connections.clear()
+            else:
+                writer = connections.pop(connection_id, None)
+                writers = [writer] if writer is not None else []
+            
+            for writer in writers:
+                self.heartbeat.unwatch(writer)
+                writer.close()
+                self.connection_count -= 1
+                self.backplane.set_presence(user_id, False)
+            
+            if connections:
+                logger.info(f"Connection {connection_id} of user {user_id} closed, {len(connections)} remaining")
+                return
             del self.active_connections[user_id]
+            self._watch_user(user_id, False)
         
         if user_id in self.user_info:
             del self.user_info[user_id]
         
-        # Remove from chat rooms
-        rooms_to_remove = []
-        for room_id, participants in self.chat_rooms.items():
-            if user_id in participants:
-                participants.remove(user_id)
-                if len(participants) == 0:
-                    rooms_to_remove.append(room_id)
-        
-        for room_id in rooms_to_remove:
-            del self.chat_rooms[room_id]
+        self.typing.clear_user(user_id, self.user_rooms.get(user_id, ()))
+        asyncio.create_task(self._release_rooms(user_id))
         
         logger.info(f"User {user_id} disconnected from chat")
     
-    async def send_personal_message(self, message: Dict[str, Any], user_id: str):
-        """Send message to specific user"""
+    async def _release_rooms(self, user_id: str):
+        """Remove user from chat rooms on every node unless a device is still connected"""
+        try:
+            if user_id in self.active_connections or await self.backplane.is_present(user_id):
+                return
+        except Exception as e:
+            logger.error(f"Presence check failed for {user_id}: {str(e)}")
         if user_id in self.active_connections:
-            try:
-                websocket = self.active_connections[user_id]
-                await websocket.send_text(json.dumps(message))
-            except Exception as e:
-                logger.error(f"Error sending message to {user_id}: {str(e)}")
-                # Remove broken connection
-                self.disconnect(user_id)
+            return
+        
+        self._remove_from_all_rooms(user_id)
+        self.backplane.publish({'kind': 'membership', 'action': 'disconnect', 'user_id': user_id})
     
-    async def send_room_message(self, message: Dict[str, Any], room_id: str, exclude_user: Optional[str] = None):
-        """Send message to all users in a chat room"""
-        if room_id in self.chat_rooms:
-            participants = self.chat_rooms[room_id].copy()
-            if exclude_user:
-                participants.discard(exclude_user)
-            
-            for user_id in participants:
-                await self.send_personal_message(message, user_id)
+    def touch(self, user_id: str, connection_id: str):
+        """Record inbound activity on a connection for the heartbeat"""
+        writer = self.active_connections.get(user_id, {}).get(connection_id)
+        if writer is not None:
+            self.heartbeat.touch(writer)
+    
+    def _send_ping(self, writer: ConnectionWriter):
+        """Heartbeat callback: ask an idle client to prove it is still there"""
+        writer.offer(writer.codec.encode({'type': 'ping', 'timestamp': datetime.now().isoformat()}))
+    
+    def _drop_broken(self, user_id: str, connection_id: str):
+        """Writer callback: a send failed, so the socket is gone"""
+        self.heartbeat.reaped['broken'] += 1
+        self.disconnect(user_id, connection_id)
+    
+    def _reap_idle(self, writer: ConnectionWriter):
+        """Heartbeat callback: close a connection that did not answer a ping"""
+        logger.warning(f"Connection {writer.connection_id} of user {writer.user_id} timed out, closing")
+        writer.close(code=IDLE_CLOSE_CODE)
+        self.disconnect(writer.user_id, writer.connection_id)
+    
+    def _remove_from_all_rooms(self, user_id: str):
+        """Drop user from every room, deleting rooms left empty"""
+        for room_id in self.user_rooms.pop(user_id, set()):
+            participants = self.chat_rooms.get(room_id)
+            if participants is None:
+                continue
+            participants.discard(user_id)
+            if len(participants) == 0:
+                del self.chat_rooms[room_id]
+                self.receipts.forget_room(room_id)
+            self._refresh_room_interest(room_id)
+    
+    def _watch_user(self, user_id: str, interested: bool):
+        """Follow the backplane topics of a user, and of their rooms, while they are connected here"""
+        self.backplane.watch(user_topic(user_id), interested)
+        for room_id in self.user_rooms.get(user_id, ()):
+            if interested:
+                self.backplane.watch(room_topic(room_id), True)
+            else:
+                self._refresh_room_interest(room_id)
+    
+    def _refresh_room_interest(self, room_id: str):
+        """Receive a room's transient traffic (typing, receipts) only while one of
+        its participants is connected here; persisted messages reach every node"""
+        participants = self.chat_rooms.get(room_id, ())
+        self.backplane.watch(
+            room_topic(room_id),
+            any(user_id in self.active_connections for user_id in participants)
+        )
+    
+    async def send_personal_message(self, message: Dict[str, Any], user_id: str, connection_id: Optional[str] = None):
+        """Send message to every device of a user, or only to connection_id"""
+        if user_id in self.active_connections:
+            self._enqueue(message, user_id, connection_id)
+        elif connection_id is None and await self.backplane.is_present(user_id):
+            self.backplane.publish({'kind': 'user', 'user_id': user_id, 'message': message}, user_topic(user_id))
+    
+    def _enqueue(
+        self,
+        message: Dict[str, Any],
+        user_id: str,
+        connection_id: Optional[str] = None,
+        payloads: Optional[Dict[MessageCodec, Payload]] = None
+    ):
+        """Queue message on the user's writers and apply the overflow policy
+        
+        payloads caches one encoding per codec, shared across a fan-out.
+        """
+        connections = self.active_connections.get(user_id)
+        if not connections:
+            return
+        
+        if connection_id is not None:
+            writer = connections.get(connection_id)
+            writers = (writer,) if writer is not None else ()
+        else:
+            writers = tuple(connections.values())
+        
+        if payloads is None:
+            payloads = {}
+        message_type = message.get('type')
+        droppable = message_type in DROPPABLE_MESSAGE_TYPES
+        for writer in writers:
+            payload = payloads.get(writer.codec)
+            if payload is None:
+                payload = payloads[writer.codec] = writer.codec.encode(message)
+            if writer.offer(payload, droppable):
+                continue
+            
+            if settings.websocket_overflow_policy == 'disconnect':
+                logger.warning(f"Send queue overflow for {user_id} ({writer.connection_id}), disconnecting slow client")
+                writer.close(code=1013)
+                self.heartbeat.reaped['slow'] += 1
+                self.disconnect(user_id, writer.connection_id)
+            else:
+                logger.warning(f"Send queue overflow for {user_id} ({writer.connection_id}), dropping {message_type} message")
+    
+    async def send_room_message(
+        self,
+        message: Dict[str, Any],
+        room_id: str,
+        exclude_user: Optional[str] = None,
+        persist: bool = False
+    ):
+        """Send message to all users in a chat room; persist also stores it on
+        every other node, so any node can serve the room's history"""
+        if room_id not in self.chat_rooms:
+            return
+        
+        participants = self.chat_rooms[room_id].copy()
+        if exclude_user:
+            participants.discard(exclude_user)
+        
+        envelope = {
+            'kind': 'room',
+            'room_id': room_id,
+            'exclude_user': exclude_user,
+            'persist': persist,
+            'message': message
+        }
+        if persist:
+            # Replicated on the shared channel: storage must not depend on who is connected where
+            self.backplane.publish(envelope)
+        elif any(user_id not in self.active_connections for user_id in participants):
+            # Transient traffic only goes to nodes serving a participant
+            self.backplane.publish(envelope, room_topic(room_id))
+        
+        self._deliver_local(message, participants)
+    
+    def _deliver_local(self, message: Dict[str, Any], user_ids):
+        """Queue message for the given users connected to this node, encoding it once per codec"""
+        payloads: Dict[MessageCodec, Payload] = {}
+        for user_id in user_ids:
+            if user_id in self.active_connections:
+                self._enqueue(message, user_id, payloads=payloads)
+    
+    def _on_backplane_envelope(self, envelope: Dict[str, Any]):
+        """Apply an envelope published by another node"""
+        kind = envelope.get('kind')
+        
+        if kind == 'user':
+            self._deliver_local(envelope['message'], [envelope['user_id']])
+        
+        elif kind == 'room':
+            room_id = envelope['room_id']
+            message = envelope['message']
+            if envelope.get('persist'):
+                self._store_message(room_id, message, replicated=True)
+            if message.get('type') == 'message_status':
+                # Keep read pointers in step with the node that aggregated the receipt
+                self.receipts.record(room_id, message['user_id'], message['message_id'], message['status'], relay=False)
+            participants = self.chat_rooms.get(room_id, set())
+            exclude_user = envelope.get('exclude_user')
+            self._deliver_local(
+                envelope['message'],
+                [user_id for user_id in participants if user_id != exclude_user]
+            )
+        
+        elif kind == 'broadcast':
+            self._deliver_local(envelope['message'], list(self.active_connections))
+        
+        elif kind == 'membership':
+            action = envelope.get('action')
+            if action == 'join':
+                for user_id in envelope['user_ids']:
+                    self._join(envelope['room_id'], user_id)
+            elif action == 'leave':
+                self._leave(envelope['room_id'], envelope['user_id'])
+            elif action == 'disconnect' and envelope['user_id'] not in self.active_connections:
+                self._remove_from_all_rooms(envelope['user_id'])
     
     def create_chat_room(self, doctor_id: str, patient_id: str) -> str:
         """Create or get existing chat room for doctor-patient pair"""
         # Create room ID (consistent regardless of order)
         room_id = f"chat_{min(doctor_id, patient_id)}_{max(doctor_id, patient_id)}"
         
-        if room_id not in self.chat_rooms:
-            self.chat_rooms[room_id] = set()
-            self.message_history[room_id] = []
-        
-        # Add participants
-        self.chat_rooms[room_id].add(doctor_id)
-        self.chat_rooms[room_id].add(patient_id)
+        # Add participants here and on every other node
+        self._join(room_id, doctor_id)
+        self._join(room_id, patient_id)
+        self.backplane.publish({
+            'kind': 'membership',
+            'action': 'join',
+            'room_id': room_id,
+            'user_ids': [doctor_id, patient_id]
+        })
         
         logger.info(f"Chat room {room_id} created/updated for doctor {doctor_id} and patient {patient_id}")
         return room_id
     
     def join_room(self, user_id: str, room_id: str):
         """Add user to chat room"""
-        if room_id not in self.chat_rooms:
-            self.chat_rooms[room_id] = set()
-            self.message_history[room_id] = []
-        
-        self.chat_rooms[room_id].add(user_id)
+        self._join(room_id, user_id)
+        self.backplane.publish({'kind': 'membership', 'action': 'join', 'room_id': room_id, 'user_ids': [user_id]})
         logger.info(f"User {user_id} joined room {room_id}")
     
     def leave_room(self, user_id: str, room_id: str):
         """Remove user from chat room"""
-        if room_id in self.chat_rooms and user_id in self.chat_rooms[room_id]:
-            self.chat_rooms[room_id].remove(user_id)
+        if self._leave(room_id, user_id):
+            self.backplane.publish({'kind': 'membership', 'action': 'leave', 'room_id': room_id, 'user_id': user_id})
             logger.info(f"User {user_id} left room {room_id}")
     
+    def _join(self, room_id: str, user_id: str):
+        """Add user to a room (creating it) and to the user -> rooms index"""
+        if room_id not in self.chat_rooms:
+            self.chat_rooms[room_id] = set()
+            self.message_history.ensure_room(room_id)
+        
+        self.chat_rooms[room_id].add(user_id)
+        self.user_rooms.setdefault(user_id, set()).add(room_id)
+        if user_id in self.active_connections:
+            self.backplane.watch(room_topic(room_id), True)
+    
+    def _leave(self, room_id: str, user_id: str) -> bool:
+        """Remove user from a room; returns False if they were not a member"""
+        if room_id not in self.chat_rooms or user_id not in self.chat_rooms[room_id]:
+            return False
+        
+        self.chat_rooms[room_id].remove(user_id)
+        self._discard_user_room(user_id, room_id)
+        if not self.chat_rooms[room_id]:
+            self.receipts.forget_room(room_id)
+        self._refresh_room_interest(room_id)
+        return True
+    
+    def _discard_user_room(self, user_id: str, room_id: str):
+        """Drop room from the user -> rooms index"""
+        rooms = self.user_rooms.get(user_id)
+        if rooms is not None:
+            rooms.discard(room_id)
+            if not rooms:
+                del self.user_rooms[user_id]
+    
     async def handle_chat_message(self, message_data: Dict[str, Any], sender_id: str):
         """Handle incoming chat message"""
         try:
@@ -163,19 +544,14 @@ class ConnectionManager:
                 'sender_role': sender_info.get('role', 'UNKNOWN'),
                 'content': content,
                 'timestamp': datetime.now().isoformat(),
-                'message_id': f"msg_{datetime.now().timestamp()}"
+                'message_id': message_ids.next_message_id('msg')
             }
             
             # Store message in history
-            if room_id in self.message_history:
-                self.message_history[room_id].append(chat_message)
-                
-                # Keep only last 100 messages per room
-                if len(self.message_history[room_id]) > 100:
-                    self.message_history[room_id] = self.message_history[room_id][-100:]
+            self._store_message(room_id, chat_message)
             
             # Send to all participants in the room
-            await self.send_room_message(chat_message, room_id)
+            await self.send_room_message(chat_message, room_id, persist=True)
             
             logger.info(f"Chat message sent in room {room_id} by {sender_id}")
             
@@ -189,28 +565,80 @@ class ConnectionManager:
     async def handle_typing_indicator(self, data: Dict[str, Any], user_id: str):
         """Handle typing indicator"""
         room_id = data.get('room_id')
-        is_typing = data.get('is_typing', False)
+        is_typing = bool(data.get('is_typing', False))
         
         if room_id:
-            typing_message = {
-                'type': 'typing_indicator',
-                'room_id': room_id,
-                'user_id': user_id,
-                'user_name': self.user_info.get(user_id, {}).get('full_name', 'Unknown'),
-                'is_typing': is_typing,
-                'timestamp': datetime.now().isoformat()
-            }
-            
-            # Send to other participants (exclude sender)
-            await self.send_room_message(typing_message, room_id, exclude_user=user_id)
+            # Coalesced: only transitions and periodic refreshes reach the room
+            await self.typing.update(room_id, user_id, is_typing)
     
-    async def get_chat_history(self, room_id: str, user_id: str, limit: int = 50) -> List[Dict[str, Any]]:
-        """Get chat history for a room"""
+    async def _emit_typing_indicator(self, room_id: str, user_id: str, is_typing: bool):
+        """Send a typing state update to the other participants of a room"""
+        typing_message = {
+            'type': 'typing_indicator',
+            'room_id': room_id,
+            'user_id': user_id,
+            'user_name': self.user_info.get(user_id, {}).get('full_name', 'Unknown'),
+            'is_typing': is_typing,
+            'timestamp': datetime.now().isoformat()
+        }
+        
+        # Send to other participants (exclude sender)
+        await self.send_room_message(typing_message, room_id, exclude_user=user_id)
+    
+    async def get_chat_history(
+        self,
+        room_id: str,
+        user_id: str,
+        limit: int = 50,
+        before: Optional[str] = None,
+        after: Optional[str] = None
+    ) -> List[Dict[str, Any]]:
+        """Get a page of chat history for a room, oldest first
+        
+        `before` returns the newest messages older than that message ID,
+        `after` the oldest messages newer than it; neither returns the tail.
+        Raises ValueError for a cursor that is not a message ID.
+        """
         if room_id not in self.chat_rooms or user_id not in self.chat_rooms[room_id]:
             return []
         
-        history = self.message_history.get(room_id, [])
-        return history[-limit:] if limit else history
+        before_seq = self._parse_cursor(before)
+        after_seq = self._parse_cursor(after)
+        
+        # Serve from memory unless the window runs past the oldest resident message
+        resident, truncated = self.message_history.page(room_id, limit, before_seq, after_seq)
+        if self.chat_log and truncated and self.chat_log.count(room_id) > len(resident):
+            history = self.chat_log.page(room_id, limit, before_seq, after_seq)
+            if before_seq is None and after_seq is None:
+                # Only warm the tail; older pages would displace recent messages
+                self.message_history.load(room_id, history)
+            return self.receipts.annotate(room_id, history)
+        
+        return self.receipts.annotate(room_id, resident)
+    
+    @staticmethod
+    def _parse_cursor(cursor: Optional[str]) -> Optional[int]:
+        if cursor is None:
+            return None
+        sequence = message_ids.parse(cursor)
+        if sequence is None:
+            raise ValueError(f"Invalid history cursor: {cursor}")
+        return sequence
+    
+    def _store_message(self, room_id: str, message: Dict[str, Any], replicated: bool = False):
+        """Append message to the room's in-memory tail and the durable log
+        
+        Replicas from other nodes are always kept; the sending node checked the room.
+        """
+        if not replicated and room_id not in self.chat_rooms and room_id not in self.message_history:
+            return
+        
+        self.message_history.append(room_id, message)
+        if self.chat_log:
+            try:
+                self.chat_log.append(room_id, message)
+            except Exception as e:
+                logger.error(f"Error writing message to chat log for room {room_id}: {str(e)}")
     
     async def handle_file_share(self, data: Dict[str, Any], sender_id: str):
         """Handle file sharing in chat"""
@@ -243,15 +671,14 @@ class ConnectionManager:
                     'thumbnail': file_info.get('thumbnail')
                 },
                 'timestamp': datetime.now().isoformat(),
-                'message_id': f"file_{datetime.now().timestamp()}"
+                'message_id': message_ids.next_message_id('file')
             }
             
             # Store in message history
-            if room_id in self.message_history:
-                self.message_history[room_id].append(file_message)
+            self._store_message(room_id, file_message)
             
             # Send to all participants
-            await self.send_room_message(file_message, room_id)
+            await self.send_room_message(file_message, room_id, persist=True)
             
             logger.info(f"File shared in room {room_id} by {sender_id}: {file_info.get('name')}")
             
@@ -269,22 +696,46 @@ class ConnectionManager:
             message_id = data.get('message_id')
             status = data.get('status')  # 'delivered', 'read'
             
-            if room_id and message_id and status:
-                status_message = {
-                    'type': 'message_status',
-                    'room_id': room_id,
-                    'message_id': message_id,
-                    'status': status,
-                    'user_id': user_id,
-                    'timestamp': datetime.now().isoformat()
-                }
-                
-                # Send to other participants
-                await self.send_room_message(status_message, room_id, exclude_user=user_id)
+            if not (room_id and message_id and status):
+                return
+            if room_id not in self.chat_rooms or user_id not in self.chat_rooms[room_id]:
+                return
+            latest = self._latest_sequence(room_id)
+            if latest is None:
+                return
+            
+            # Relayed in batches as the user's latest position in the room
+            self.receipts.record(room_id, user_id, message_id, status, latest=latest)
                 
         except Exception as e:
             logger.error(f"Error handling message status: {str(e)}")
     
+    def _latest_sequence(self, room_id: str) -> Optional[int]:
+        """Sequence of the newest message stored for a room, in memory or in the log"""
+        candidates = []
+        latest = self.message_history.latest(room_id)
+        if latest is not None:
+            candidates.append(message_ids.parse(latest.get('message_id')))
+        if self.chat_log:
+            candidates.append(self.chat_log.latest_sequence(room_id))
+        candidates = [sequence for sequence in candidates if sequence is not None]
+        return max(candidates) if candidates else None
+    
+    async def _emit_message_status(self, room_id: str, user_id: str, status: str, message_id: str):
+        """Send a user's read/delivered high-water mark to the other participants"""
+        status_message = {
+            'type': 'message_status',
+            'room_id': room_id,
+            'message_id': message_id,
+            'status': status,
+            'user_id': user_id,
+            'cumulative': True,  # applies to every earlier message in the room too
+            'timestamp': datetime.now().isoformat()
+        }
+        
+        # Send to other participants
+        await self.send_room_message(status_message, room_id, exclude_user=user_id)
+    
     def get_active_users(self) -> List[Dict[str, Any]]:
         """Get list of currently active users"""
         return [
@@ -299,10 +750,11 @@ class ConnectionManager:
     
     def get_user_rooms(self, user_id: str) -> List[str]:
         """Get all chat rooms a user is part of"""
-        return [
-            room_id for room_id, participants in self.chat_rooms.items()
-            if user_id in participants
-        ]
+        return list(self.user_rooms.get(user_id, ()))
+    
+    def is_room_member(self, user_id: str, room_id: str) -> bool:
+        """Check room membership without materializing the user's room list"""
+        return room_id in self.user_rooms.get(user_id, ())
     
     async def broadcast_system_message(self, message: str, message_type: str = 'system'):
         """Broadcast system message to all connected users"""
@@ -312,8 +764,8 @@ class ConnectionManager:
             'timestamp': datetime.now().isoformat()
         }
         
-        for user_id in self.active_connections.keys():
-            await self.send_personal_message(system_message, user_id)
+        self.backplane.publish({'kind': 'broadcast', 'message': system_message})
+        self._deliver_local(system_message, list(self.active_connections))
     
     async def send_notification(self, user_id: str, notification: Dict[str, Any]):
         """Send notification to specific user"""
@@ -334,8 +786,13 @@ class ChatMessageHandler:
     """Handles different types of chat messages"""
     
     @staticmethod
-    async def handle_websocket_message(websocket: WebSocket, user_id: str, message_data: Dict[str, Any]):
-        """Route WebSocket message to appropriate handler"""
+    async def handle_websocket_message(
+        websocket: WebSocket,
+        user_id: str,
+        message_data: Dict[str, Any],
+        connection_id: Optional[str] = None
+    ):
+        """Route WebSocket message to appropriate handler; direct replies go to the sending device"""
         try:
             message_type = message_data.get('type')
             
@@ -356,13 +813,26 @@ class ChatMessageHandler:
                 if room_id:
                     connection_manager.join_room(user_id, room_id)
                     
-                    # Send chat history
-                    history = await connection_manager.get_chat_history(room_id, user_id)
+                    # Send chat history, optionally a page around the client's cursor
+                    try:
+                        history = await connection_manager.get_chat_history(
+                            room_id,
+                            user_id,
+                            before=message_data.get('before'),
+                            after=message_data.get('after')
+                        )
+                    except ValueError as e:
+                        await connection_manager.send_personal_message({
+                            'type': 'error',
+                            'message': str(e)
+                        }, user_id, connection_id)
+                        return
                     await connection_manager.send_personal_message({
                         'type': 'chat_history',
                         'room_id': room_id,
-                        'messages': history
-                    }, user_id)
+                        'messages': history,
+                        **page_cursors(history)
+                    }, user_id, connection_id)
             
             elif message_type == 'leave_room':
                 room_id = message_data.get('room_id')
@@ -374,24 +844,28 @@ class ChatMessageHandler:
                 await connection_manager.send_personal_message({
                     'type': 'active_users',
                     'users': active_users
-                }, user_id)
+                }, user_id, connection_id)
+            
+            elif message_type == 'pong':
+                # Reply to a server heartbeat; the endpoint already recorded the activity
+                pass
             
             elif message_type == 'ping':
                 await connection_manager.send_personal_message({
                     'type': 'pong',
                     'timestamp': datetime.now().isoformat()
-                }, user_id)
+                }, user_id, connection_id)
             
             else:
                 logger.warning(f"Unknown message type: {message_type}")
                 await connection_manager.send_personal_message({
                     'type': 'error',
                     'message': f'Unknown message type: {message_type}'
-                }, user_id)
+                }, user_id, connection_id)
                 
         except Exception as e:
             logger.error(f"Error handling WebSocket message: {str(e)}")
             await connection_manager.send_personal_message({
                 'type': 'error',
                 'message': 'Failed to process message'
-            }, user_id)
+            }, user_id, connection_id)
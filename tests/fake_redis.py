@@ -0,0 +1,169 @@
+"""
+In-memory stand-in for the parts of redis.asyncio used by the chat backplane
+and the API cache: strings with expiry, hashes, pipelines and pub/sub.
+"""
+
+import asyncio
+import fnmatch
+import time
+from typing import Any, Dict, List, Optional, Set
+
+
+def _bytes(value: Any) -> bytes:
+    if isinstance(value, bytes):
+        return value
+    return str(value).encode('utf-8')
+
+
+class FakeRedisServer:
+    """State shared by every client connected to the same fake server"""
+
+    def __init__(self):
+        self.strings: Dict[str, bytes] = {}
+        self.expires: Dict[str, float] = {}
+        self.hashes: Dict[str, Dict[str, int]] = {}
+        self.subscriptions: Dict[str, Set['FakePubSub']] = {}
+        self.published = 0
+
+    def expire_now(self, key: str):
+        """Simulate a TTL running out"""
+        self.strings.pop(key, None)
+        self.expires.pop(key, None)
+
+    def _live(self, key: str) -> bool:
+        deadline = self.expires.get(key)
+        if deadline is not None and deadline <= time.monotonic():
+            self.expire_now(key)
+        return key in self.strings
+
+    def deliver(self, channel: str, data: bytes) -> int:
+        self.published += 1
+        receivers = list(self.subscriptions.get(channel, ()))
+        for pubsub in receivers:
+            pubsub.queue.put_nowait({'type': 'message', 'channel': _bytes(channel), 'data': data})
+        return len(receivers)
+
+
+class FakeRedis:
+    def __init__(self, server: Optional[FakeRedisServer] = None):
+        self.server = server or FakeRedisServer()
+        self.closed = False
+
+    async def set(self, key: str, value: Any, ex: Optional[float] = None, nx: bool = False):
+        return self._set(key, value, ex, nx)
+
+    def _set(self, key, value, ex=None, nx=False):
+        if nx and self.server._live(key):
+            return None
+        self.server.strings[key] = _bytes(value)
+        if ex is not None:
+            self.server.expires[key] = time.monotonic() + ex
+        else:
+            self.server.expires.pop(key, None)
+        return True
+
+    async def get(self, key: str) -> Optional[bytes]:
+        return self.server.strings.get(key) if self.server._live(key) else None
+
+    async def setex(self, key: str, ttl: float, value: Any):
+        return self._set(key, value, ttl)
+
+    async def mget(self, keys: List[str]) -> List[Optional[bytes]]:
+        return [self.server.strings.get(key) if self.server._live(key) else None for key in keys]
+
+    async def delete(self, *keys: str) -> int:
+        return self._delete(*keys)
+
+    def _delete(self, *keys):
+        removed = 0
+        for key in keys:
+            key = key.decode('utf-8') if isinstance(key, bytes) else key
+            removed += key in self.server.strings or key in self.server.hashes
+            self.server.expire_now(key)
+            self.server.hashes.pop(key, None)
+        return removed
+
+    async def scan_iter(self, match: str = '*'):
+        for key in list(self.server.strings):
+            if self.server._live(key) and fnmatch.fnmatchcase(key, match):
+                yield _bytes(key)
+
+    async def hkeys(self, key: str) -> List[bytes]:
+        return [_bytes(field) for field in self.server.hashes.get(key, {})]
+
+    async def hdel(self, key: str, *fields: str) -> int:
+        return self._hdel(key, *fields)
+
+    def _hdel(self, key, *fields):
+        values = self.server.hashes.get(key, {})
+        removed = sum(1 for field in fields if values.pop(field, None) is not None)
+        if not values:
+            self.server.hashes.pop(key, None)
+        return removed
+
+    def _hincrby(self, key, field, amount):
+        values = self.server.hashes.setdefault(key, {})
+        values[field] = values.get(field, 0) + amount
+        return values[field]
+
+    async def publish(self, channel: str, data: Any) -> int:
+        return self.server.deliver(channel, _bytes(data))
+
+    def pipeline(self, transaction: bool = True) -> 'FakePipeline':
+        return FakePipeline(self)
+
+    def pubsub(self, ignore_subscribe_messages: bool = False) -> 'FakePubSub':
+        return FakePubSub(self.server)
+
+    async def close(self):
+        self.closed = True
+
+
+class FakePipeline:
+    def __init__(self, client: FakeRedis):
+        self.client = client
+        self.commands = []
+
+    def publish(self, channel, data):
+        self.commands.append(lambda: self.client.server.deliver(channel, _bytes(data)))
+
+    def hincrby(self, key, field, amount=1):
+        self.commands.append(lambda: self.client._hincrby(key, field, amount))
+
+    def hdel(self, key, *fields):
+        self.commands.append(lambda: self.client._hdel(key, *fields))
+
+    def delete(self, *keys):
+        self.commands.append(lambda: self.client._delete(*keys))
+
+    def setex(self, key, ttl, value):
+        self.commands.append(lambda: self.client._set(key, value, ttl))
+
+    async def execute(self):
+        results = [command() for command in self.commands]
+        self.commands = []
+        return results
+
+
+class FakePubSub:
+    def __init__(self, server: FakeRedisServer):
+        self.server = server
+        self.channels: Set[str] = set()
+        self.queue: asyncio.Queue = asyncio.Queue()
+
+    async def subscribe(self, *channels: str):
+        for channel in channels:
+            self.channels.add(channel)
+            self.server.subscriptions.setdefault(channel, set()).add(self)
+
+    async def unsubscribe(self, *channels: str):
+        for channel in channels:
+            self.channels.discard(channel)
+            self.server.subscriptions.get(channel, set()).discard(self)
+
+    async def listen(self):
+        while True:
+            yield await self.queue.get()
+
+    async def close(self):
+        await self.unsubscribe(*list(self.channels))
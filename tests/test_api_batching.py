@@ -0,0 +1,161 @@
+"""
+Backend read batching tests against a stub backend that counts upstream
+calls: concurrent identical reads share one call, bulk loads batch, and
+cancelled backend calls never leave waiters hanging.
+"""
+
+import asyncio
+
+import pytest
+
+from api_batching import BatchLoadCancelled, BatchLoader
+from utils import SpringBootAPIClient
+
+
+class StubBackend:
+    """Answers after a short delay, or never while `hang` is set"""
+
+    def __init__(self, delay: float = 0.01, hang: bool = False):
+        self.delay = delay
+        self.hang = hang
+        self.calls = 0
+        self.keys = []
+
+    async def load_one(self, key):
+        self.calls += 1
+        self.keys.append(key)
+        if self.hang:
+            await asyncio.Event().wait()
+        await asyncio.sleep(self.delay)
+        return f'value:{key}'
+
+    async def load_many(self, keys):
+        self.calls += 1
+        self.keys.append(list(keys))
+        if self.hang:
+            await asyncio.Event().wait()
+        await asyncio.sleep(self.delay)
+        return {key: f'value:{key}' for key in keys}
+
+
+class StubResponse:
+    status_code = 200
+
+    def __init__(self, url):
+        self.url = url
+
+    def raise_for_status(self):
+        pass
+
+    def json(self):
+        return [{'url': self.url}]
+
+
+class CountingHTTPClient:
+    """Stands in for httpx.AsyncClient"""
+
+    def __init__(self):
+        self.calls = 0
+
+    async def request(self, method, url, **kwargs):
+        self.calls += 1
+        await asyncio.sleep(0.01)
+        return StubResponse(url)
+
+    async def aclose(self):
+        pass
+
+
+async def settle(rounds: int = 5):
+    for _ in range(rounds):
+        await asyncio.sleep(0)
+
+
+@pytest.mark.asyncio
+async def test_concurrent_reads_of_a_key_share_one_call():
+    backend = StubBackend()
+    loader = BatchLoader('stub', backend.load_one, concurrency=4)
+
+    results = await asyncio.gather(*(loader.load(f'k{n % 5}') for n in range(100)))
+
+    assert results == [f'value:k{n % 5}' for n in range(100)]
+    assert backend.calls == 5
+    stats = loader.get_stats()
+    assert stats['deduplicated'] == 95
+    assert stats['pending_keys'] == 0 and stats['tasks'] == 0
+
+
+@pytest.mark.asyncio
+async def test_bulk_loads_send_one_batch_per_window():
+    backend = StubBackend()
+    loader = BatchLoader('stub', backend.load_one, backend.load_many, window=0.005, max_batch=100)
+
+    results = await asyncio.gather(*(loader.load(n % 40) for n in range(200)))
+
+    assert results == [f'value:{n % 40}' for n in range(200)]
+    assert backend.calls == 1
+    assert sorted(backend.keys[0]) == list(range(40))
+
+
+@pytest.mark.asyncio
+async def test_api_client_collapses_identical_user_reads():
+    client = SpringBootAPIClient()
+    client.base_url = 'http://backend'
+    http = CountingHTTPClient()
+    client.client = http
+
+    appointments = await asyncio.gather(*(
+        client.get_appointments('token', f'patient_{n % 3}', 'PATIENT') for n in range(30)
+    ))
+
+    assert http.calls == 3
+    assert appointments[4] == [{'url': 'http://backend/appointments/patient/patient_1'}]
+
+
+@pytest.mark.asyncio
+async def test_cancelled_backend_call_fails_its_waiters():
+    backend = StubBackend(hang=True)
+    loader = BatchLoader('stub', backend.load_one)
+    waiters = [asyncio.create_task(loader.load('k')) for _ in range(3)]
+    await settle()
+    assert backend.calls == 1 and len(loader._tasks) == 1
+
+    next(iter(loader._tasks)).cancel()
+    for waiter in waiters:
+        with pytest.raises(BatchLoadCancelled):
+            await asyncio.wait_for(waiter, 1.0)
+    assert loader.get_stats()['pending_keys'] == 0
+    assert not loader._tasks
+
+
+@pytest.mark.asyncio
+async def test_close_fails_queued_and_in_flight_loads():
+    backend = StubBackend(hang=True)
+    loader = BatchLoader('stub', backend.load_one, backend.load_many, window=10.0, max_batch=2)
+    in_flight = [asyncio.create_task(loader.load(key)) for key in ('a', 'b')]
+    queued = asyncio.create_task(loader.load('c'))
+    await settle()
+    assert backend.calls == 1
+
+    await loader.close()
+
+    for waiter in in_flight + [queued]:
+        with pytest.raises(BatchLoadCancelled):
+            await asyncio.wait_for(waiter, 1.0)
+    assert backend.calls == 1
+    assert loader.get_stats()['pending_keys'] == 0
+
+
+@pytest.mark.asyncio
+async def test_cancelled_waiter_does_not_cancel_the_shared_call():
+    backend = StubBackend(delay=0.05)
+    loader = BatchLoader('stub', backend.load_one)
+    first = asyncio.create_task(loader.load('k'))
+    second = asyncio.create_task(loader.load('k'))
+    await asyncio.sleep(0.01)
+
+    first.cancel()
+    with pytest.raises(asyncio.CancelledError):
+        await first
+    assert await second == 'value:k'
+    assert backend.calls == 1
@@ -0,0 +1,84 @@
+"""
+Read-through cache tests: copies handed to callers and invalidations
+shared between workers through an in-memory Redis.
+"""
+
+import asyncio
+
+import pytest
+
+from api_cache import ReadThroughCache
+from fake_redis import FakeRedis, FakeRedisServer
+
+
+class FakeRedisCache(ReadThroughCache):
+    def __init__(self, server: FakeRedisServer):
+        super().__init__('availability', ttl=60, stale_ttl=300, redis_url='redis://fake')
+        self.server = server
+
+    def _get_redis(self):
+        if self._redis is None:
+            self._redis = FakeRedis(self.server)
+        return self._redis
+
+
+async def settle(rounds: int = 20):
+    for _ in range(rounds):
+        await asyncio.sleep(0)
+
+
+def counting_loader(calls, value):
+    async def load():
+        calls.append(1)
+        return value
+    return load
+
+
+@pytest.mark.asyncio
+async def test_callers_get_copies():
+    cache = ReadThroughCache('doctors', ttl=60, stale_ttl=300)
+    calls = []
+    first = await cache.get('*', counting_loader(calls, [{'id': 1, 'slots': ['09:00']}]))
+    first[0]['slots'].append('10:00')
+
+    second = await cache.get('*', counting_loader(calls, []))
+    assert second == [{'id': 1, 'slots': ['09:00']}]
+    assert len(calls) == 1
+
+
+@pytest.mark.asyncio
+async def test_invalidation_reaches_other_workers():
+    server = FakeRedisServer()
+    worker_a, worker_b = FakeRedisCache(server), FakeRedisCache(server)
+    await worker_a.start()
+    await worker_b.start()
+    await settle()
+
+    calls = []
+    await worker_a.get('d1:2025-01-01', counting_loader(calls, {'slots': ['09:00']}))
+    await worker_b.get('d1:2025-01-01', counting_loader(calls, {'slots': ['09:00']}))
+    assert len(calls) == 1  # worker b read the shared tier
+
+    worker_a.invalidate('d1:2025-01-01')
+    assert len(worker_a._tasks) == 1
+    await settle()
+
+    assert worker_b.invalidations_received == 1
+    assert 'd1:2025-01-01' not in worker_b._entries
+    assert worker_a._redis_key('d1:2025-01-01') not in server.strings
+    fresh = await worker_b.get('d1:2025-01-01', counting_loader(calls, {'slots': []}))
+    assert fresh == {'slots': []}
+
+    await worker_a.close()
+    await worker_b.close()
+
+
+@pytest.mark.asyncio
+async def test_close_waits_for_pending_invalidations():
+    server = FakeRedisServer()
+    cache = FakeRedisCache(server)
+    await cache.get('d2:2025-01-01', counting_loader([], {'slots': ['11:00']}))
+    cache.invalidate()
+    await cache.close()
+    assert not cache._tasks
+    assert not server.strings
@@ -0,0 +1,186 @@
+"""
+Backend resilience tests against a fault-injecting stub of the Spring Boot API:
+failures open the breaker and shrink the limit, cancelled calls do neither, and
+a half-open probe is never left reserved, and calls admitted before the breaker
+opened cannot decide its state.
+"""
+
+import asyncio
+import time
+
+import httpx
+import pytest
+
+from api_fanout import FanOut
+from api_resilience import AIMDLimiter, BackendUnavailable, CircuitBreaker, EndpointGuard
+from utils import SpringBootAPIClient
+
+
+class StubResponse:
+    def __init__(self, status_code: int):
+        self.status_code = status_code
+        self.text = ''
+
+    def raise_for_status(self):
+        if self.status_code >= 400:
+            raise httpx.HTTPStatusError(f'HTTP {self.status_code}', request=None, response=self)
+
+    def json(self):
+        return {'status': self.status_code}
+
+
+class FaultyBackend:
+    """Stands in for httpx.AsyncClient; each endpoint answers per its configured fault"""
+
+    def __init__(self, faults):
+        self.faults = faults
+        self.calls = 0
+
+    async def request(self, method, url, **kwargs):
+        self.calls += 1
+        fault = self.faults[url.rsplit('/', 1)[-1]]
+        if fault == 'hang':
+            await asyncio.Event().wait()
+        if fault == 'refuse':
+            raise httpx.ConnectError('connection refused')
+        return StubResponse(fault)
+
+
+def make_client(faults) -> SpringBootAPIClient:
+    client = SpringBootAPIClient()
+    client.base_url = 'http://backend'
+    client.client = FaultyBackend(faults)
+    return client
+
+
+@pytest.mark.asyncio
+async def test_backend_failures_open_breaker_and_halve_limit():
+    client = make_client({'broken': 503, 'down': 'refuse'})
+    guard = client._guard('GET', '/broken')
+    limit = guard.limiter.limit
+
+    for _ in range(guard.breaker.failure_threshold):
+        with pytest.raises(Exception):
+            await client.make_request('GET', '/broken', 'token')
+    assert guard.breaker.state == CircuitBreaker.OPEN
+    assert guard.limiter.limit < limit
+
+    calls = client.client.calls
+    with pytest.raises(BackendUnavailable):
+        await client.make_request('GET', '/broken', 'token')
+    assert client.client.calls == calls
+
+    with pytest.raises(Exception):
+        await client.make_request('GET', '/down', 'token')
+    assert client._guard('GET', '/down').breaker.failures == 1
+
+
+@pytest.mark.asyncio
+async def test_cancelled_calls_are_neutral():
+    client = make_client({'slow': 'hang'})
+    guard = client._guard('GET', '/slow')
+    limit = guard.limiter.limit
+
+    for _ in range(guard.breaker.failure_threshold * 2):
+        task = asyncio.create_task(client.make_request('GET', '/slow', 'token'))
+        await asyncio.sleep(0)
+        task.cancel()
+        with pytest.raises(asyncio.CancelledError):
+            await task
+
+    assert guard.breaker.state == CircuitBreaker.CLOSED
+    assert guard.breaker.failures == 0
+    assert guard.limiter.limit == limit
+    assert guard.limiter.in_flight == 0
+    assert guard.cancelled == guard.breaker.failure_threshold * 2
+    assert client.in_flight == 0
+
+
+@pytest.mark.asyncio
+async def test_fan_out_siblings_cancelled_by_required_failure_stay_healthy():
+    client = make_client({'required': 500, 'optional': 'hang'})
+    optional = client._guard('GET', '/optional')
+
+    for _ in range(optional.breaker.failure_threshold):
+        fan_out = FanOut(deadline=5.0)
+        fan_out.add('required', lambda: client.make_request('GET', '/required', 'token'), required=True)
+        fan_out.add('optional', lambda: client.make_request('GET', '/optional', 'token'))
+        with pytest.raises(Exception):
+            await fan_out.run()
+
+    assert optional.breaker.state == CircuitBreaker.CLOSED
+    assert optional.breaker.failures == 0
+    assert optional.limiter.in_flight == 0
+
+
+@pytest.mark.asyncio
+async def test_cancelled_probe_waiting_for_a_slot_is_released():
+    guard = EndpointGuard('GET /stub', CircuitBreaker(1, 0.0), AIMDLimiter(1, 1, 1, 1.0, 5.0))
+    # One call holds the only slot, then the backend fails and the breaker opens
+    guard.breaker.record(False, await guard.acquire())
+    assert guard.breaker.state == CircuitBreaker.OPEN
+
+    probe = asyncio.create_task(guard.acquire())
+    await asyncio.sleep(0)
+    assert guard.breaker.probing and guard.limiter.waiting == 1
+    probe.cancel()
+    with pytest.raises(asyncio.CancelledError):
+        await probe
+    assert not guard.breaker.probing
+    assert guard.limiter.waiting == 0
+
+    # The slot frees up and the next caller gets to probe
+    guard.limiter.release(0.0, True)
+    generation = await guard.acquire()
+    assert guard.breaker.probing
+    guard.release(0.0, True, generation)
+    assert guard.breaker.state == CircuitBreaker.CLOSED
+
+
+@pytest.mark.asyncio
+async def test_late_outcomes_from_before_the_breaker_opened_are_ignored():
+    guard = EndpointGuard('GET /stub', CircuitBreaker(2, 60.0), AIMDLimiter(4, 1, 4, 10.0, 5.0))
+    before = [await guard.acquire() for _ in range(4)]
+    guard.release(0.0, False, before[0])
+    guard.release(0.0, False, before[1])
+    assert guard.breaker.state == CircuitBreaker.OPEN
+
+    # A slow success admitted while closed finishes after the breaker opened
+    guard.release(0.0, True, before[2])
+    assert guard.breaker.state == CircuitBreaker.OPEN
+    with pytest.raises(BackendUnavailable):
+        await guard.acquire()
+
+    # Another finishes while the probe is out: the probe alone decides
+    guard.breaker.opened_at -= guard.breaker.reset_timeout
+    probe = await guard.acquire()
+    guard.release(0.0, True, before[3])
+    assert guard.breaker.state == CircuitBreaker.HALF_OPEN and guard.breaker.probing
+    with pytest.raises(BackendUnavailable):
+        await guard.acquire()
+
+    guard.release(0.0, False, probe)
+    assert guard.breaker.state == CircuitBreaker.OPEN
+    assert guard.get_stats()['stale_outcomes'] == 2
+    assert guard.limiter.in_flight == 0
+
+
+@pytest.mark.asyncio
+async def test_cancelled_probe_in_flight_lets_the_next_one_through():
+    client = make_client({'flaky': 'hang'})
+    guard = client._guard('GET', '/flaky')
+    guard.breaker.state = CircuitBreaker.OPEN
+    guard.breaker.opened_at = time.monotonic() - guard.breaker.reset_timeout
+
+    task = asyncio.create_task(client.make_request('GET', '/flaky', 'token'))
+    await asyncio.sleep(0)
+    assert guard.breaker.probing
+    task.cancel()
+    with pytest.raises(asyncio.CancelledError):
+        await task
+
+    assert guard.breaker.state == CircuitBreaker.HALF_OPEN
+    assert not guard.breaker.probing
+    client.client.faults['flaky'] = 200
+    assert await client.make_request('GET', '/flaky', 'token') == {'status': 200}
+    assert guard.breaker.state == CircuitBreaker.CLOSED
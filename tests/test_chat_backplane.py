@@ -0,0 +1,351 @@
+"""
+Chat backplane tests against an in-memory Redis: topic routing, presence
+expiry of crashed workers, malformed payloads, write failures, the outbox
+bound, and per-node chat log slots.
+"""
+
+import asyncio
+
+import pytest
+
+from chat_backplane import InProcessBackplane, InProcessHub, RedisBackplane, _dumps, room_topic, user_topic
+from chat_log import ChatLog
+from fake_redis import FakeRedis, FakeRedisServer
+
+
+class FakeRedisBackplane(RedisBackplane):
+    def __init__(self, server: FakeRedisServer, node_id: str):
+        super().__init__('redis://fake', 'test:chat', node_id=node_id, presence_ttl=30)
+        self.server = server
+
+    def _connect(self):
+        return FakeRedis(self.server)
+
+
+async def settle(rounds: int = 20):
+    """Let the backplane write and read loops run"""
+    for _ in range(rounds):
+        await asyncio.sleep(0)
+
+
+async def start_node(server: FakeRedisServer, node_id: str):
+    received = []
+    backplane = FakeRedisBackplane(server, node_id)
+    await backplane.start(received.append)
+    await settle()
+    return backplane, received
+
+
+async def crash(backplane: RedisBackplane):
+    """Stop a node without its close() cleanup"""
+    for task in backplane._tasks:
+        task.cancel()
+    await settle()
+
+
+@pytest.mark.asyncio
+async def test_topic_envelopes_reach_only_subscribed_nodes():
+    server = FakeRedisServer()
+    a, _ = await start_node(server, 'a')
+    b, b_received = await start_node(server, 'b')
+    c, c_received = await start_node(server, 'c')
+
+    b.watch(room_topic('room1'), True)
+    await settle()
+    a.publish({'kind': 'room', 'room_id': 'room1', 'message': {'content': 'hi'}}, room_topic('room1'))
+    a.publish({'kind': 'broadcast', 'message': {'content': 'all'}})
+    await settle()
+
+    assert [envelope['kind'] for envelope in b_received] == ['room', 'broadcast']
+    assert [envelope['kind'] for envelope in c_received] == ['broadcast']
+
+    b.watch(room_topic('room1'), False)
+    await settle()
+    a.publish({'kind': 'room', 'room_id': 'room1', 'message': {}}, room_topic('room1'))
+    await settle()
+    assert len(b_received) == 2
+
+    for node in (a, b, c):
+        await node.close()
+
+
+@pytest.mark.asyncio
+async def test_malformed_payload_does_not_drop_subscription():
+    server = FakeRedisServer()
+    a, _ = await start_node(server, 'a')
+    b, b_received = await start_node(server, 'b')
+
+    server.deliver('test:chat', b'{not json')
+    server.deliver('test:chat', _dumps({'kind': 'broadcast', 'origin': 'a', 'message': {}}))
+    await settle()
+
+    assert b.decode_errors == 1
+    assert [envelope['kind'] for envelope in b_received] == ['broadcast']
+
+    a.publish({'kind': 'broadcast', 'message': {}})
+    await settle()
+    assert len(b_received) == 2
+
+    await a.close()
+    await b.close()
+
+
+@pytest.mark.asyncio
+async def test_subscriptions_recover_from_failed_writes():
+    server = FakeRedisServer()
+    a, _ = await start_node(server, 'a')
+    b, b_received = await start_node(server, 'b')
+
+    # The pipeline and the pub/sub connection each fail once
+    pipeline, subscribe = b.redis.pipeline, b._pubsub.subscribe
+    failures = {'pipeline': 1, 'subscribe': 1}
+
+    def failing_pipeline(transaction=True):
+        pipe = pipeline(transaction)
+        if failures['pipeline']:
+            failures['pipeline'] -= 1
+
+            async def execute():
+                raise ConnectionError('write failed')
+            pipe.execute = execute
+        return pipe
+
+    async def failing_subscribe(*channels):
+        if failures['subscribe']:
+            failures['subscribe'] -= 1
+            raise ConnectionError('subscribe failed')
+        await subscribe(*channels)
+
+    b.redis.pipeline = failing_pipeline
+    b._pubsub.subscribe = failing_subscribe
+
+    b.set_presence('u1', True)
+    b.watch(room_topic('room1'), True)
+    b.watch(room_topic('room2'), True)
+    b.watch(room_topic('room2'), False)
+    await asyncio.sleep(2.2)
+
+    assert failures == {'pipeline': 0, 'subscribe': 0}
+    assert b.topics == {room_topic('room1')}
+    assert b._pubsub.channels == {'test:chat', 'test:chat:room:room1'}
+    assert not b._unsynced
+    a.publish({'kind': 'room', 'room_id': 'room1', 'message': {}}, room_topic('room1'))
+    await settle()
+    assert [envelope['room_id'] for envelope in b_received] == ['room1']
+
+    await a.close()
+    await b.close()
+
+
+@pytest.mark.asyncio
+async def test_full_outbox_drops_publishes_but_keeps_presence_and_topics():
+    backplane = RedisBackplane('redis://unused', 'test:chat', node_id='a', outbox_limit=3)
+    for _ in range(5):
+        backplane.publish({'kind': 'broadcast', 'message': {}})
+    backplane.set_presence('u1', True)
+    backplane.watch(room_topic('room1'), True)
+
+    assert backplane.dropped == 2
+    assert [command[0] for command in list(backplane._outbox._queue)] == ['publish'] * 3 + ['presence', 'subscribe']
+    assert backplane.get_stats()['queued'] == 5
+
+
+@pytest.mark.asyncio
+async def test_presence_of_crashed_node_expires():
+    server = FakeRedisServer()
+    a, _ = await start_node(server, 'a')
+    b, _ = await start_node(server, 'b')
+
+    a.set_presence('patient_1', True)
+    await settle()
+    assert await b.is_present('patient_1')
+
+    await crash(a)
+    assert await b.is_present('patient_1')
+
+    server.expire_now(a._alive_key(a.instance))
+    assert not await b.is_present('patient_1')
+    # The dead instance's field is cleaned up on the way
+    assert server.hashes.get(b._presence_key('patient_1')) is None
+
+    await b.close()
+
+
+@pytest.mark.asyncio
+async def test_restarted_node_with_same_id_does_not_inherit_presence():
+    server = FakeRedisServer()
+    first, _ = await start_node(server, 'worker-1')
+    first.set_presence('doctor_1', True)
+    await settle()
+    await crash(first)
+    server.expire_now(first._alive_key(first.instance))
+
+    restarted, _ = await start_node(server, 'worker-1')
+    other, _ = await start_node(server, 'worker-2')
+    assert restarted.instance != first.instance
+    assert not await other.is_present('doctor_1')
+
+    await restarted.close()
+    await other.close()
+
+
+@pytest.mark.asyncio
+async def test_close_clears_presence_and_liveness():
+    server = FakeRedisServer()
+    a, _ = await start_node(server, 'a')
+    b, _ = await start_node(server, 'b')
+    a.set_presence('patient_2', True)
+    await settle()
+
+    await a.close()
+    assert not await b.is_present('patient_2')
+    assert a._alive_key(a.instance) not in server.strings
+
+    await b.close()
+
+
+@pytest.mark.asyncio
+async def test_in_process_topics_follow_watch():
+    hub = InProcessHub()
+    received = {'a': [], 'b': []}
+    a = InProcessBackplane('a', hub)
+    b = InProcessBackplane('b', hub)
+    await a.start(received['a'].append)
+    await b.start(received['b'].append)
+
+    b.watch(user_topic('u1'), True)
+    a.publish({'kind': 'user', 'user_id': 'u1', 'message': {}}, user_topic('u1'))
+    a.publish({'kind': 'user', 'user_id': 'u2', 'message': {}}, user_topic('u2'))
+    await settle()
+    assert [envelope['user_id'] for envelope in received['b']] == ['u1']
+
+    await b.close()
+    assert user_topic('u1') not in hub.topics
+    await a.close()
+
+
+def test_chat_log_workers_claim_separate_slots(tmp_path):
+    first = ChatLog(str(tmp_path), shards=1, per_node=True)
+    second = ChatLog(str(tmp_path), shards=1, per_node=True)
+    first.open()
+    second.open()
+    assert first.directory != second.directory
+
+    first.append('room', {'room_id': 'room', 'message_id': 'msg_1'})
+    second.append('room', {'room_id': 'room', 'message_id': 'msg_2'})
+    assert [m['message_id'] for m in first.tail('room')] == ['msg_1']
+    assert [m['message_id'] for m in second.tail('room')] == ['msg_2']
+    asyncio.run(first.close())
+    asyncio.run(second.close())
+
+    # A restarted worker reuses a free slot and recovers its history
+    restarted = ChatLog(str(tmp_path), shards=1, per_node=True)
+    restarted.open()
+    assert restarted.directory == first.directory
+    assert [m['message_id'] for m in restarted.tail('room')] == ['msg_1']
+    asyncio.run(restarted.close())
+
+
+def test_chat_log_directory_has_one_writer(tmp_path):
+    first = ChatLog(str(tmp_path), shards=1)
+    first.open()
+    with pytest.raises(RuntimeError):
+        ChatLog(str(tmp_path), shards=1).open()
+    asyncio.run(first.close())
+
+
+class RecordingSocket:
+    def __init__(self):
+        self.sent = []
+
+    async def send_text(self, payload):
+        self.sent.append(payload)
+
+    send_bytes = send_text
+
+    async def close(self, code: int = 1000):
+        pass
+
+
+@pytest.mark.asyncio
+async def test_nodes_follow_rooms_of_their_connected_users():
+    from chat_codec import json_codec
+    from config import settings
+    from realtime_chat import ConnectionManager, ConnectionWriter
+
+    settings.chat_log_enabled = False
+    hub = InProcessHub()
+    nodes = []
+    for node_id in ('a', 'b', 'c'):
+        manager = ConnectionManager()
+        manager.backplane = InProcessBackplane(node_id, hub)
+        await manager.backplane.start(manager._on_backplane_envelope)
+        nodes.append(manager)
+    a, b, c = nodes
+
+    def connect(manager, user_id):
+        socket = RecordingSocket()
+        manager.active_connections[user_id] = {'c0': ConnectionWriter(socket, user_id, 'c0', json_codec, manager._drop_broken)}
+        manager._watch_user(user_id, True)
+        return socket
+
+    connect(a, 'doctor_1')
+    patient_socket = connect(b, 'patient_1')
+    room_id = a.create_chat_room('doctor_1', 'patient_1')
+    await settle()
+    assert set(hub.topics[room_topic(room_id)]) == {'a', 'b'}
+
+    await a.handle_chat_message({'room_id': room_id, 'content': 'hello'}, 'doctor_1')
+    await settle()
+    assert any(b'hello' in _bytes(payload) for payload in patient_socket.sent)
+    # Node c serves nobody in the room, yet keeps the message so it can serve history
+    assert len(b.message_history.tail(room_id)) == 1
+    assert len(c.message_history.tail(room_id)) == 1
+
+    # Transient room traffic still only reaches nodes serving a participant
+    received = []
+    c.backplane.hub.subscribers['c'] = received.append
+    await a.send_room_message({'type': 'typing_indicator', 'room_id': room_id}, room_id, exclude_user='doctor_1')
+    await settle()
+    assert received == []
+    c.backplane.hub.subscribers['c'] = c._on_backplane_envelope
+
+    b.disconnect('patient_1')
+    await settle()
+    assert set(hub.topics[room_topic(room_id)]) == {'a'}
+
+    for manager in nodes:
+        await manager.backplane.close()
+
+
+def _bytes(payload):
+    return payload.encode('utf-8') if isinstance(payload, str) else payload
+
+
+@pytest.mark.asyncio
+async def test_history_is_served_by_a_node_that_never_had_a_participant():
+    from config import settings
+    from realtime_chat import ConnectionManager
+
+    settings.chat_log_enabled = False
+    hub = InProcessHub()
+    nodes = []
+    for node_id in ('a', 'b'):
+        manager = ConnectionManager()
+        manager.backplane = InProcessBackplane(node_id, hub)
+        await manager.backplane.start(manager._on_backplane_envelope)
+        nodes.append(manager)
+    a, b = nodes
+
+    room_id = a.create_chat_room('doctor_1', 'patient_1')
+    await settle()
+    for content in ('one', 'two', 'three'):
+        await a.handle_chat_message({'room_id': room_id, 'content': content}, 'doctor_1')
+    await settle()
+
+    # The patient reconnects to node b, which never served either participant
+    history = await b.get_chat_history(room_id, 'patient_1')
+    assert [message['content'] for message in history] == ['one', 'two', 'three']
+
+    for manager in nodes:
+        await manager.backplane.close()
@@ -0,0 +1,68 @@
+"""
+Heartbeat tests through ConnectionManager.connect: JSON pings and idle
+reaping apply only to clients that connected with heartbeat=true.
+"""
+
+import asyncio
+import json
+
+import pytest
+
+import chat_heartbeat
+from chat_backplane import InProcessBackplane, InProcessHub
+from config import settings
+from realtime_chat import IDLE_CLOSE_CODE, ConnectionManager
+from utils import JWTHandler
+
+
+class Clock:
+    def __init__(self):
+        self.now = 0.0
+
+    def monotonic(self) -> float:
+        return self.now
+
+
+class RecordingSocket:
+    def __init__(self):
+        self.sent = []
+        self.closed_with = None
+
+    async def accept(self, subprotocol=None):
+        pass
+
+    async def send_text(self, payload):
+        self.sent.append(json.loads(payload))
+
+    async def close(self, code: int = 1000, reason: str = ''):
+        self.closed_with = code
+
+
+@pytest.mark.asyncio
+async def test_only_clients_that_opt_in_are_pinged_and_reaped(monkeypatch):
+    monkeypatch.setattr(settings, 'chat_log_enabled', False)
+    monkeypatch.setattr(JWTHandler, 'get_user_from_token', staticmethod(lambda token: {'role': 'patient'}))
+    clock = Clock()
+    monkeypatch.setattr(chat_heartbeat, 'time', clock)
+
+    manager = ConnectionManager()
+    manager.backplane = InProcessBackplane('a', InProcessHub())
+    plain, opted_in = RecordingSocket(), RecordingSocket()
+    await manager.connect(plain, 'patient_1', 'token')
+    await manager.connect(opted_in, 'patient_2', 'token', heartbeat=True)
+    assert manager.heartbeat.get_stats()['watched'] == 1
+
+    wheel = manager.timer_wheel
+    for _ in range(round((settings.websocket_ping_interval + settings.websocket_ping_timeout + 1) / wheel.tick)):
+        clock.now += wheel.tick
+        wheel.advance()
+        await asyncio.sleep(0)
+
+    assert any(frame['type'] == 'ping' for frame in opted_in.sent)
+    assert opted_in.closed_with == IDLE_CLOSE_CODE
+    assert 'patient_2' not in manager.active_connections
+
+    assert not any(frame['type'] == 'ping' for frame in plain.sent)
+    assert plain.closed_with is None
+    assert 'patient_1' in manager.active_connections
+    assert manager.heartbeat.reaped['idle'] == 1
@@ -0,0 +1,124 @@
+"""
+Durable chat log tests: history past the default page size survives
+compaction, retention expires records rather than whole rooms, and a failing
+disk does not stop group commit.
+"""
+
+import asyncio
+import errno
+import os
+from datetime import datetime, timedelta
+
+import pytest
+
+import chat_log
+from chat_log import ChatLog
+
+
+def message(room_id: str, number: int, age_days: float = 0.0):
+    written = datetime.now() - timedelta(days=age_days)
+    return {
+        'room_id': room_id,
+        'message_id': f'msg_{number}',
+        'content': f'message {number}',
+        'timestamp': written.isoformat()
+    }
+
+
+async def maintain(log: ChatLog):
+    """One pass of the maintenance loop"""
+    for shard in log.shards:
+        log._expire_segments(shard)
+        await log._expire_records(shard)
+        await log._compact_shard(shard)
+
+
+def reopen(log: ChatLog, **options) -> ChatLog:
+    for shard in log.shards:
+        shard.close()
+    os.close(log._lock)
+    reopened = ChatLog(log.directory, shards=log.shard_count, **options)
+    reopened.open()
+    return reopened
+
+
+@pytest.mark.asyncio
+async def test_history_past_room_depth_survives_compaction(tmp_path):
+    options = dict(segment_max_bytes=8192, retention_seconds=30 * 86400, room_depth=100)
+    log = ChatLog(str(tmp_path), shards=1, **options)
+    log.open()
+    for number in range(1, 3001):
+        log.append('room1', message('room1', number))
+
+    assert len(log.shards[0].segments) > 10
+    await maintain(log)
+    assert log.compactions == 0
+    assert log.count('room1') == 3000
+
+    oldest = log.page('room1', before=101)
+    assert [entry['message_id'] for entry in oldest] == [f'msg_{number}' for number in range(1, 101)]
+
+    log = reopen(log, **options)
+    assert log.count('room1') == 3000
+    assert len(log.tail('room1')) == 100
+
+
+@pytest.mark.asyncio
+async def test_retention_expires_old_records_and_compaction_reclaims_them(tmp_path):
+    options = dict(segment_max_bytes=1 << 20, retention_seconds=30 * 86400)
+    log = ChatLog(str(tmp_path), shards=1, **options)
+    log.open()
+    for number in range(1, 301):
+        log.append('room1', message('room1', number, age_days=40))
+    for number in range(301, 351):
+        log.append('room1' if number % 2 else 'room2', message('room1' if number % 2 else 'room2', number))
+    shard = log.shards[0]
+    log._seal(shard.roll())
+    log.append('room1', message('room1', 351))
+    sealed_bytes = os.path.getsize(shard.path(0))
+
+    # Recovery takes segment ages from the records, not from this run's appends
+    log = reopen(log, **options)
+    shard = log.shards[0]
+    assert log.count('room1') == 326
+    await maintain(log)
+
+    assert log.expired_records == 300
+    assert log.compactions == 1
+    assert os.path.getsize(shard.path(0)) < sealed_bytes // 5
+    assert [entry['message_id'] for entry in log.page('room1', limit=3)] == ['msg_347', 'msg_349', 'msg_351']
+    assert log.page('room1', limit=1000)[0]['message_id'] == 'msg_301'
+    assert log.count('room2') == 25
+
+    log = reopen(log, **options)
+    assert log.count('room1') == 26
+    assert log.count('room2') == 25
+
+
+@pytest.mark.asyncio
+async def test_flush_loop_survives_write_errors(tmp_path, monkeypatch):
+    log = ChatLog(str(tmp_path), shards=2, fsync_interval=0.01)
+    await log.start()
+    failures = [3]
+    fsync = os.fsync
+
+    def failing_fsync(descriptor):
+        if failures[0]:
+            failures[0] -= 1
+            raise OSError(errno.ENOSPC, 'No space left on device')
+        fsync(descriptor)
+
+    monkeypatch.setattr(chat_log.os, 'fsync', failing_fsync)
+    log.append('room1', message('room1', 1))
+    await asyncio.sleep(0.5)
+
+    stats = log.get_stats()
+    assert stats['flush_errors'] == 3
+    assert stats['last_flush_error'] is None
+    assert stats['fsyncs'] >= 1
+    assert not any(shard.dirty for shard in log.shards)
+
+    log.append('room1', message('room1', 2))
+    await asyncio.sleep(0.1)
+    assert not any(shard.dirty for shard in log.shards)
+    await log.close()
@@ -0,0 +1,89 @@
+"""
+Typing coalescer tests on a manually advanced timer wheel: one expiry timer
+per typing user across stop/start cycles, and stop frames on disconnect.
+"""
+
+import asyncio
+
+import pytest
+
+import chat_typing
+from chat_typing import TypingCoalescer
+from timer_wheel import TimerWheel
+
+
+class Clock:
+    def __init__(self):
+        self.now = 0.0
+
+    def monotonic(self) -> float:
+        return self.now
+
+
+def make_coalescer(monkeypatch):
+    clock = Clock()
+    monkeypatch.setattr(chat_typing, 'time', clock)
+    frames = []
+
+    async def emit(room_id, user_id, is_typing):
+        frames.append((room_id, user_id, is_typing))
+
+    wheel = TimerWheel(tick=0.1, slots=64)
+    return TypingCoalescer(wheel, emit, interval=1.0, ttl=3.0), wheel, clock, frames
+
+
+def armed(wheel: TimerWheel) -> int:
+    return sum(not handle.cancelled for slot in wheel.slots for handle in slot)
+
+
+def run_for(wheel: TimerWheel, clock: Clock, seconds: float):
+    for _ in range(round(seconds / wheel.tick)):
+        clock.now += wheel.tick
+        wheel.advance()
+
+
+@pytest.mark.asyncio
+async def test_stop_start_cycles_keep_one_timer(monkeypatch):
+    coalescer, wheel, clock, frames = make_coalescer(monkeypatch)
+
+    for _ in range(50):
+        await coalescer.update('room1', 'patient_1', True)
+        await coalescer.update('room1', 'patient_1', False)
+        run_for(wheel, clock, 0.2)
+    await coalescer.update('room1', 'patient_1', True)
+    assert armed(wheel) == 1
+
+    # Cancelled timers leave the wheel once their slot comes round
+    run_for(wheel, clock, 2.9)
+    assert wheel.pending == 1
+
+    # Keystrokes push the deadline out; the one timer re-arms itself
+    for _ in range(10):
+        await coalescer.update('room1', 'patient_1', True)
+        run_for(wheel, clock, 1.0)
+        assert armed(wheel) == 1
+
+    run_for(wheel, clock, 4.0)
+    await asyncio.sleep(0)
+    assert wheel.pending == 0
+    assert coalescer.expired == 1
+    assert frames[-1] == ('room1', 'patient_1', False)
+    assert not coalescer.states
+
+
+@pytest.mark.asyncio
+async def test_disconnect_tells_rooms_typing_stopped(monkeypatch):
+    coalescer, wheel, clock, frames = make_coalescer(monkeypatch)
+    await coalescer.update('room1', 'patient_1', True)
+    await coalescer.update('room2', 'patient_1', True)
+    frames.clear()
+
+    coalescer.clear_user('patient_1', ['room1', 'room2', 'room3'])
+    await asyncio.sleep(0)
+
+    assert sorted(frames) == [('room1', 'patient_1', False), ('room2', 'patient_1', False)]
+    run_for(wheel, clock, 4.0)
+    await asyncio.sleep(0)
+    assert wheel.pending == 0
+    assert coalescer.expired == 0
+    assert len(frames) == 2
@@ -0,0 +1,51 @@
+"""
+Conversation state tests: a booking keeps state only under a client-chosen
+conversation_id and clears it when the chat part of the flow ends.
+"""
+
+import pytest
+
+import patient_chatbot as patient_module
+from conversation_state import ConversationStore, MemoryConversationStore
+from patient_chatbot import PatientChatbot
+
+USER = {'user_id': 'patient_1', 'role': 'PATIENT'}
+
+
+@pytest.fixture
+def chatbot(monkeypatch):
+    async def get_doctors(token, specialization=None):
+        return [{'id': 'doctor_1', 'name': 'Smith', 'experience': 10}]
+
+    monkeypatch.setattr(patient_module.api_client, 'get_doctors', get_doctors)
+    bot = PatientChatbot()
+    bot.conversation_store = MemoryConversationStore(idle_ttl=60, max_entries=100)
+    return bot
+
+
+@pytest.mark.asyncio
+async def test_booking_state_is_cleared_when_flow_ends(chatbot):
+    store = chatbot.conversation_store
+    key = ConversationStore.key('patient', USER['user_id'], 'c1')
+
+    reply = await chatbot._handle_appointment_booking('book a cardiology visit', 'token', USER, 'c1')
+    assert reply['type'] == 'doctor_selection'
+    assert (await store.get(key))['booking_step'] == 'doctor_selection'
+
+    reply = await chatbot._handle_appointment_booking('Dr. Smith please', 'token', USER, 'c1')
+    assert reply['type'] == 'datetime_selection'
+    assert await store.get(key) == {}
+
+    # A later booking in the same conversation starts over
+    reply = await chatbot._handle_appointment_booking('book a dermatology visit', 'token', USER, 'c1')
+    assert reply['type'] == 'doctor_selection'
+
+
+@pytest.mark.asyncio
+async def test_no_state_without_conversation_id(chatbot):
+    store = chatbot.conversation_store
+    for _ in range(2):
+        reply = await chatbot._handle_appointment_booking('book a cardiology visit', 'token', USER, None)
+        assert reply['type'] == 'doctor_selection'
+    assert store.writes == 0
+    assert store.get_stats()['conversations'] == 0
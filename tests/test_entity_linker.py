@@ -0,0 +1,65 @@
+"""
+Entity linker startup tests: messages never build the index, start() builds
+it off the event loop, and concurrent builds do not share a temporary file.
+"""
+
+import asyncio
+import os
+
+import pytest
+
+import entity_linker as entity_module
+from config import settings
+from entity_linker import EntityLinker, build_entity_index
+
+
+def make_linker(tmp_path) -> EntityLinker:
+    return EntityLinker(str(tmp_path / 'entity_index.bin'), settings.entity_data_dir, settings.entity_alias_min_score)
+
+
+def test_messages_do_not_build_the_index(tmp_path, monkeypatch):
+    def build(*args):
+        raise AssertionError("built on the request path")
+
+    monkeypatch.setattr(entity_module, 'build_entity_index', build)
+    linker = make_linker(tmp_path)
+    assert linker.link('我最近胃疼，吃了奥美拉唑') == ()
+    assert linker.link('头痛') == ()
+    assert not os.path.exists(linker.index_path)
+
+
+@pytest.mark.asyncio
+async def test_start_builds_off_the_event_loop(tmp_path, monkeypatch):
+    on_loop = []
+
+    def build(*args):
+        try:
+            asyncio.get_running_loop()
+            on_loop.append(True)
+        except RuntimeError:
+            on_loop.append(False)
+        return build_entity_index(*args)
+
+    monkeypatch.setattr(entity_module, 'build_entity_index', build)
+    linker = make_linker(tmp_path)
+    await linker.start()
+    assert on_loop == [False]
+    assert linker.get_stats()['loaded']
+    assert [entity.type for entity in linker.link('吃了奥美拉唑')] == ['medicine']
+    assert os.listdir(tmp_path) == ['entity_index.bin']
+    linker.close()
+
+
+def test_builds_write_per_process_temporary_files(tmp_path, monkeypatch):
+    path = str(tmp_path / 'entity_index.bin')
+    renamed = []
+    replace = os.replace
+
+    def recording_replace(source, target):
+        renamed.append(source)
+        replace(source, target)
+
+    monkeypatch.setattr(os, 'replace', recording_replace)
+    build_entity_index(settings.entity_data_dir, path, settings.entity_alias_min_score)
+    assert renamed == [f"{path}.{os.getpid()}.tmp"]
+    assert os.listdir(tmp_path) == ['entity_index.bin']
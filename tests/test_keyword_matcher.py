@@ -0,0 +1,97 @@
+"""
+Keyword matcher parity tests: both scan paths (the automaton for short texts,
+str containment for long ones) against the chain of `any(keyword in text)`
+checks the tables stand for, on random messages mixing keywords, fragments,
+case changes and non-ASCII text.
+"""
+
+import random
+
+import pytest
+
+from keyword_matcher import KeywordMatcher, KeywordTable
+from utils import PATIENT_INTENT_KEYWORDS, SPECIALIZATION_ALIASES, MessageProcessor, keyword_matcher
+
+NOISE = ['hello', 'the', 'pain', 'I', 'need', 'Heart', 'CARDIOLOGY', 'earth', 'meeting', '  ',
+         'ÉMERGENCY', 'İ', 'dr.', 'x', '🚑', 'héart', '心脏内科', '\ud800']
+
+
+def reference_first(table: KeywordTable, text: str):
+    """What the chain of if/any checks returns for the table"""
+    for result, keywords in zip(table.results, table.keywords):
+        if any(keyword in text for keyword in keywords):
+            return result
+    return None
+
+
+def random_messages(count: int, max_words: int, seed: int):
+    words = list(NOISE)
+    for table in keyword_matcher.tables.values():
+        for keywords in table.keywords:
+            words.extend(keywords)
+    rng = random.Random(seed)
+    for _ in range(count):
+        parts = []
+        for _ in range(rng.randint(0, max_words)):
+            word = rng.choice(words)
+            if rng.random() < 0.3:
+                word = word[:rng.randint(0, len(word))]
+            if rng.random() < 0.2:
+                word = word.upper()
+            parts.append(word)
+        yield rng.choice([' ', '', '-']).join(parts) + rng.choice(['', ' ', '\n'])
+
+
+def forced(long_text: int) -> KeywordMatcher:
+    """A matcher over the application's tables that always takes one scan path"""
+    return KeywordMatcher([
+        KeywordTable(table.name, list(zip(table.results, table.keywords)))
+        for table in keyword_matcher.tables.values()
+    ], normalize=keyword_matcher.normalize, long_text=long_text)
+
+
+@pytest.mark.parametrize('long_text', [0, 10 ** 9])
+def test_scan_paths_match_substring_checks(long_text):
+    matcher = forced(long_text)
+    for message in random_messages(3000, 40, seed=long_text):
+        text = matcher.normalize(message)
+        for name, table in matcher.tables.items():
+            assert matcher.first(name, message) == reference_first(table, text), (name, message)
+
+
+def test_message_processor_matches_substring_checks():
+    tables = keyword_matcher.tables
+    for message in random_messages(3000, 150, seed=7):
+        text = message.lower().strip()
+        assert MessageProcessor.extract_intent(message) == (reference_first(tables['patient_intent'], text) or 'general_chat')
+        assert MessageProcessor.extract_doctor_intent(message) == (reference_first(tables['doctor_intent'], text) or 'general_chat')
+        assert MessageProcessor.is_emergency(message) == any(keyword in text for keyword in PATIENT_INTENT_KEYWORDS[-1][1])
+        specialization = reference_first(tables['specialization'], text)
+        if specialization:
+            assert MessageProcessor.extract_specialization(message) == specialization
+
+
+def test_earlier_groups_win():
+    assert MessageProcessor.extract_intent('Please book an URGENT appointment') == 'book_appointment'
+    assert MessageProcessor.is_emergency('Please book an URGENT appointment')
+    assert MessageProcessor.extract_doctor_intent('my patients with a critical condition') == 'view_patients'
+    assert MessageProcessor.extract_specialization('cardiology for my heart and skin') == 'Cardiology'
+    assert MessageProcessor.extract_specialization('a rash on my skin') == SPECIALIZATION_ALIASES['skin']
+
+
+def test_lookups_for_one_message_share_a_scan():
+    message = '  I have chest pain, can I see a heart doctor today?\n'
+    keyword_matcher.scan.cache_clear()
+    MessageProcessor.extract_intent(message)
+    MessageProcessor.is_emergency(message)
+    MessageProcessor.extract_specialization(message)
+    MessageProcessor.extract_doctor_intent(message)
+    assert keyword_matcher.get_stats()['scans'] == 1
+
+
+def test_long_messages_take_the_substring_path():
+    message = 'i have been feeling tired lately ' * 30 + 'and need to cancel'
+    before = keyword_matcher.long_scans
+    assert MessageProcessor.extract_intent(message + ' ') == 'modify_appointment'
+    assert keyword_matcher.long_scans == before + 1
+    assert not MessageProcessor.is_emergency(message + ' ')
@@ -0,0 +1,93 @@
+"""
+Hashed Timing Wheel for MedReserve AI
+One driver task for many timers, with O(1) schedule and cancel
+"""
+
+import asyncio
+from typing import Any, Callable, List, Optional
+from loguru import logger
+
+
+class TimerHandle:
+    """A scheduled callback; cancel() is O(1) and takes effect when its slot is reached"""
+
+    __slots__ = ('rounds', 'callback', 'args', 'cancelled')
+
+    def __init__(self, rounds: int, callback: Callable[..., Any], args: tuple):
+        self.rounds = rounds
+        self.callback = callback
+        self.args = args
+        self.cancelled = False
+
+    def cancel(self):
+        self.cancelled = True
+
+
+class TimerWheel:
+    """Hashed timing wheel driven by a single asyncio task"""
+
+    def __init__(self, tick: float = 0.1, slots: int = 512):
+        self.tick = tick
+        self.slots: List[List[TimerHandle]] = [[] for _ in range(slots)]
+        self.cursor = 0
+        self.pending = 0
+        self.fired = 0
+        self._task: Optional[asyncio.Task] = None
+
+    def schedule(self, delay: float, callback: Callable[..., Any], *args) -> TimerHandle:
+        """Run callback(*args) after roughly `delay` seconds (rounded up to a tick)"""
+        ticks = max(1, int(-(-delay // self.tick)))
+        rounds, offset = divmod(ticks, len(self.slots))
+        if offset == 0:
+            # A full revolution lands on the current slot, processed next round
+            rounds, offset = rounds - 1, len(self.slots)
+
+        handle = TimerHandle(rounds, callback, args)
+        self.slots[(self.cursor + offset) % len(self.slots)].append(handle)
+        self.pending += 1
+        return handle
+
+    def start(self):
+        if self._task is None:
+            self._task = asyncio.create_task(self._run())
+
+    async def stop(self):
+        if self._task is not None:
+            self._task.cancel()
+            try:
+                await self._task
+            except asyncio.CancelledError:
+                pass
+            self._task = None
+
+    async def _run(self):
+        loop = asyncio.get_running_loop()
+        next_tick = loop.time()
+        while True:
+            next_tick += self.tick
+            await asyncio.sleep(max(0.0, next_tick - loop.time()))
+            self.advance()
+
+    def advance(self):
+        """Move to the next slot and fire its due timers"""
+        self.cursor = (self.cursor + 1) % len(self.slots)
+        slot = self.slots[self.cursor]
+        if not slot:
+            return
+
+        # Callbacks may schedule a full revolution ahead, into this same slot
+        remaining: List[TimerHandle] = []
+        self.slots[self.cursor] = remaining
+        for handle in slot:
+            if handle.cancelled:
+                self.pending -= 1
+            elif handle.rounds > 0:
+                handle.rounds -= 1
+                remaining.append(handle)
+            else:
+                self.pending -= 1
+                self.fired += 1
+                try:
+                    handle.callback(*handle.args)
+                except Exception as e:
+                    logger.error(f"Timer callback failed: {str(e)}")
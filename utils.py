@@ -2,20 +2,144 @@
 Utility functions for MedReserve AI Chatbot System
 """
 
+import asyncio
+import gzip
+import hashlib
 import json
+import math
+import os
+import random
 import re
+import socket
+import time
+import uuid
+from collections import OrderedDict
 from datetime import datetime, timedelta
-from typing import Optional, Dict, Any, List
+from typing import Optional, Dict, Any, List, Tuple
 import httpx
 import jwt
 from fastapi import HTTPException, status
 from loguru import logger
 from config import settings
+from api_cache import ReadThroughCache
+from api_batching import BatchLoader
+from api_resilience import AIMDLimiter, CircuitBreaker, EndpointGuard
+from keyword_matcher import KeywordMatcher, KeywordTable
+from nlu_engine import intent_engine
+from entity_linker import entity_linker
+
+try:
+    import brotli
+except ImportError:  # Brotli is only offered when the package is installed
+    brotli = None
+
+
+class VerifiedTokenCache:
+    """Bounded LRU of decoded JWT claims keyed by a hash of the token
+    
+    Entries never outlive the token's exp claim, nor max_ttl seconds, so a
+    hit is only ever returned for a token that jwt.decode would still accept.
+    """
+    
+    def __init__(self, max_entries: int, max_ttl: float):
+        self.max_entries = max_entries
+        self.max_ttl = max_ttl
+        # token hash -> (claims, valid_until wall-clock seconds)
+        self._entries: OrderedDict = OrderedDict()
+        # subject -> token hashes, for revoking every token of a user
+        self._by_subject: Dict[str, set] = {}
+        
+        self.hits = 0
+        self.misses = 0
+        self.revoked = 0
+    
+    @staticmethod
+    def _key(token: str) -> bytes:
+        return hashlib.blake2b(token.encode('utf-8'), digest_size=16).digest()
+    
+    def get(self, token: str) -> Optional[Dict[str, Any]]:
+        key = self._key(token)
+        entry = self._entries.get(key)
+        if entry is None:
+            self.misses += 1
+            return None
+        
+        claims, valid_until = entry
+        if time.time() >= valid_until:
+            self._remove(key)
+            self.misses += 1
+            return None
+        
+        self._entries.move_to_end(key)
+        self.hits += 1
+        return claims
+    
+    def put(self, token: str, claims: Dict[str, Any]):
+        if self.max_entries <= 0:
+            return
+        
+        valid_until = time.time() + self.max_ttl
+        exp = claims.get('exp')
+        if isinstance(exp, (int, float)):
+            valid_until = min(valid_until, exp)
+        
+        key = self._key(token)
+        self._remove(key)
+        self._entries[key] = (claims, valid_until)
+        subject = claims.get('sub')
+        if subject is not None:
+            self._by_subject.setdefault(str(subject), set()).add(key)
+        
+        while len(self._entries) > self.max_entries:
+            self._remove(next(iter(self._entries)))
+    
+    def _remove(self, key: bytes):
+        entry = self._entries.pop(key, None)
+        if entry is None:
+            return
+        subject = entry[0].get('sub')
+        if subject is not None:
+            keys = self._by_subject.get(str(subject))
+            if keys is not None:
+                keys.discard(key)
+                if not keys:
+                    del self._by_subject[str(subject)]
+    
+    def revoke_token(self, token: str):
+        """Drop a single token, e.g. on logout"""
+        key = self._key(token)
+        if key in self._entries:
+            self._remove(key)
+            self.revoked += 1
+    
+    def revoke_subject(self, subject: str):
+        """Drop every cached token of a user, e.g. on password change or role update"""
+        for key in list(self._by_subject.get(str(subject), ())):
+            self._remove(key)
+            self.revoked += 1
+    
+    def clear(self):
+        """Drop everything, e.g. after rotating the signing key"""
+        self._entries.clear()
+        self._by_subject.clear()
+    
+    def get_stats(self) -> Dict[str, Any]:
+        lookups = self.hits + self.misses
+        return {
+            'entries': len(self._entries),
+            'hits': self.hits,
+            'misses': self.misses,
+            'hit_rate': round(self.hits / lookups, 4) if lookups else 0.0,
+            'revoked': self.revoked
+        }
 
 
 class JWTHandler:
     """JWT token handling utilities"""
     
+    # Claims of recently verified tokens, so repeat requests skip the signature check
+    token_cache = VerifiedTokenCache(settings.jwt_cache_size, settings.jwt_cache_ttl)
+    
     @staticmethod
     def decode_token(token: str) -> Dict[str, Any]:
         """Decode JWT token and extract user information"""
@@ -24,19 +148,24 @@ class JWTHandler:
             if token.startswith('Bearer '):
                 token = token[7:]
             
+            cached = JWTHandler.token_cache.get(token)
+            if cached is not None:
+                return dict(cached)
+            
             payload = jwt.decode(
                 token,
                 settings.jwt_secret_key,
                 algorithms=[settings.jwt_algorithm]
             )
             
-            return payload
+            JWTHandler.token_cache.put(token, payload)
+            return dict(payload)
         except jwt.ExpiredSignatureError:
             raise HTTPException(
                 status_code=status.HTTP_401_UNAUTHORIZED,
                 detail="Token has expired"
             )
-        except jwt.JWTError:
+        except jwt.InvalidTokenError:
             raise HTTPException(
                 status_code=status.HTTP_401_UNAUTHORIZED,
                 detail="Invalid token"
@@ -59,12 +188,323 @@ class JWTHandler:
         return user_info
 
 
+def default_node_id() -> str:
+    """Identifier of this worker process"""
+    return settings.chat_node_id or f"{socket.gethostname()}-{os.getpid()}"
+
+
+class MessageIdGenerator:
+    """Snowflake-style message IDs: milliseconds | worker id | sequence
+    
+    IDs are unique across workers (distinct worker ids), sortable by creation
+    time, and never go backwards when the wall clock steps back. Generation is
+    lock-free; call it from the event loop thread.
+    
+    The worker id comes from MESSAGE_ID_WORKER_ID. Without it a single worker
+    uses 0, and workers sharing the Redis backplane lease a free id in Redis at
+    startup (see start()).
+    """
+    
+    EPOCH_MS = 1704067200000  # 2024-01-01T00:00:00Z
+    WORKER_BITS = 10
+    SEQUENCE_BITS = 12
+    SEQUENCE_MASK = (1 << SEQUENCE_BITS) - 1
+    MAX_WORKERS = 1 << WORKER_BITS
+    MAX_ID = (1 << 63) - 1
+    
+    # Renew or release a lease only while this process still holds it
+    RENEW_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('expire', KEYS[1], ARGV[2]) end return 0"
+    RELEASE_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0"
+    
+    def __init__(self, worker_id: Optional[int] = None):
+        if worker_id is not None and not 0 <= worker_id < self.MAX_WORKERS:
+            raise ValueError(f"Message ID worker id must be 0-{self.MAX_WORKERS - 1}, got {worker_id}")
+        self.configured = worker_id is not None
+        self._assign(worker_id or 0)
+        self._last_ms = -1
+        self._sequence = 0
+        
+        self.redis = None
+        self._lease_key: Optional[str] = None
+        self._lease_token = uuid.uuid4().hex
+        self._lease_task: Optional[asyncio.Task] = None
+    
+    def _assign(self, worker_id: int):
+        self.worker_id = worker_id
+        self._worker_bits = worker_id << self.SEQUENCE_BITS
+    
+    # Worker id leasing
+    
+    async def start(self):
+        """Lease a worker id when several workers share Redis and none was configured
+        
+        Raises RuntimeError if no id can be leased: colliding IDs are worse than
+        a worker that does not start.
+        """
+        if self.configured or settings.chat_backplane != 'redis':
+            return
+        
+        import redis.asyncio as aioredis
+        
+        self.redis = aioredis.from_url(settings.redis_url)
+        try:
+            worker_id = await self._acquire_lease()
+        except Exception as e:
+            raise RuntimeError(f"Could not lease a message ID worker id: {str(e)}") from e
+        if worker_id is None:
+            raise RuntimeError(f"All {self.MAX_WORKERS} message ID worker ids are leased; set MESSAGE_ID_WORKER_ID")
+        self._lease_task = asyncio.create_task(self._renew_loop())
+    
+    async def close(self):
+        if self._lease_task is not None:
+            self._lease_task.cancel()
+            try:
+                await self._lease_task
+            except asyncio.CancelledError:
+                pass
+            self._lease_task = None
+        
+        if self.redis is not None:
+            try:
+                if self._lease_key:
+                    await self.redis.eval(self.RELEASE_SCRIPT, 1, self._lease_key, self._lease_token)
+            except Exception as e:
+                logger.error(f"Failed to release message ID worker id {self.worker_id}: {str(e)}")
+            await self.redis.close()
+            self.redis = None
+    
+    def _lease_name(self, worker_id: int) -> str:
+        return f"{settings.chat_backplane_channel}:worker-id:{worker_id}"
+    
+    async def _acquire_lease(self) -> Optional[int]:
+        """Claim the first free worker id with SET NX; returns None if all are taken"""
+        offset = random.randrange(self.MAX_WORKERS)
+        for step in range(self.MAX_WORKERS):
+            worker_id = (offset + step) % self.MAX_WORKERS
+            key = self._lease_name(worker_id)
+            if await self.redis.set(key, self._lease_token, nx=True, ex=settings.message_id_lease_ttl):
+                self._lease_key = key
+                self._assign(worker_id)
+                logger.info(f"Leased message ID worker id {worker_id}")
+                return worker_id
+        return None
+    
+    async def _renew_loop(self):
+        """Extend the lease; if it was lost (e.g. Redis restarted), lease a new id"""
+        while True:
+            await asyncio.sleep(settings.message_id_lease_ttl / 3)
+            try:
+                renewed = await self.redis.eval(
+                    self.RENEW_SCRIPT, 1, self._lease_key, self._lease_token, settings.message_id_lease_ttl
+                )
+                if not renewed:
+                    logger.warning(f"Lost message ID worker id {self.worker_id}, leasing a new one")
+                    if await self._acquire_lease() is None:
+                        logger.error("No free message ID worker id; will retry")
+            except asyncio.CancelledError:
+                raise
+            except Exception as e:
+                logger.error(f"Message ID worker id renewal failed: {str(e)}")
+    
+    def next_id(self) -> int:
+        """Next ID; within one millisecond up to 4096 IDs, then borrows the next millisecond"""
+        now = int(time.time() * 1000) - self.EPOCH_MS
+        if now > self._last_ms:
+            self._last_ms = now
+            self._sequence = 0
+        else:
+            # Same millisecond, or the clock stepped back: keep counting from the last one
+            self._sequence = (self._sequence + 1) & self.SEQUENCE_MASK
+            if self._sequence == 0:
+                self._last_ms += 1
+        
+        return (self._last_ms << (self.WORKER_BITS + self.SEQUENCE_BITS)) | self._worker_bits | self._sequence
+    
+    def next_message_id(self, prefix: str = 'msg') -> str:
+        return f"{prefix}_{self.next_id()}"
+    
+    @staticmethod
+    def parse(message_id: Optional[str]) -> Optional[int]:
+        """Sortable integer for a message ID such as 'msg_123'
+        
+        Legacy timestamp IDs ('msg_1712345678.123456') map to microseconds,
+        which always sort before Snowflake IDs.
+        """
+        if not message_id:
+            return None
+        
+        value = str(message_id).rsplit('_', 1)[-1]
+        try:
+            sequence = int(value)
+        except ValueError:
+            try:
+                micros = float(value) * 1_000_000
+            except ValueError:
+                return None
+            # 'inf', 'nan' and '1e400' are not IDs
+            if not math.isfinite(micros):
+                return None
+            sequence = int(micros)
+        
+        if not 0 <= sequence <= MessageIdGenerator.MAX_ID:
+            return None
+        return sequence
+
+
+class ResponseCompressor:
+    """Content-Encoding negotiation and compression for large JSON responses"""
+    
+    def __init__(self, min_bytes: int, gzip_level: int, brotli_quality: int):
+        self.min_bytes = min_bytes
+        self.gzip_level = gzip_level
+        self.brotli_quality = brotli_quality
+        
+        self.responses = 0
+        self.bytes_in = 0
+        self.bytes_out = 0
+        self.cpu_seconds = 0.0
+    
+    def choose_encoding(self, accept_encoding: Optional[str]) -> Optional[str]:
+        """Preferred encoding the client accepts: brotli, then gzip"""
+        if not accept_encoding:
+            return None
+        
+        accepted = set()
+        for part in accept_encoding.lower().split(','):
+            name, _, params = part.partition(';')
+            params = params.replace(' ', '')
+            if params.startswith('q='):
+                try:
+                    if float(params[2:]) <= 0:
+                        continue
+                except ValueError:
+                    continue
+            accepted.add(name.strip())
+        
+        if brotli is not None and 'br' in accepted:
+            return 'br'
+        if 'gzip' in accepted or '*' in accepted:
+            return 'gzip'
+        return None
+    
+    def compress(self, body: bytes, encoding: Optional[str]) -> Tuple[bytes, Optional[str]]:
+        """Compressed body and its Content-Encoding, or the body unchanged when small"""
+        if encoding is None or len(body) < self.min_bytes:
+            return body, None
+        
+        started = time.process_time()
+        if encoding == 'br':
+            compressed = brotli.compress(body, quality=self.brotli_quality)
+        else:
+            compressed = gzip.compress(body, compresslevel=self.gzip_level, mtime=0)
+        self.cpu_seconds += time.process_time() - started
+        
+        self.responses += 1
+        self.bytes_in += len(body)
+        self.bytes_out += len(compressed)
+        return compressed, encoding
+    
+    def get_stats(self) -> Dict[str, Any]:
+        return {
+            'responses': self.responses,
+            'bytes_in': self.bytes_in,
+            'bytes_out': self.bytes_out,
+            'bytes_saved': self.bytes_in - self.bytes_out,
+            'ratio': round(self.bytes_out / self.bytes_in, 4) if self.bytes_in else 0.0,
+            'cpu_seconds': round(self.cpu_seconds, 4)
+        }
+
+
 class SpringBootAPIClient:
-    """Client for communicating with Spring Boot backend"""
+    """Client for communicating with Spring Boot backend
+    
+    One pooled keep-alive client is shared by all requests; start() and close()
+    are called from the application lifespan.
+    """
+    
+    WRITE_METHODS = ('POST', 'PUT', 'DELETE')
     
     def __init__(self):
         self.base_url = settings.spring_boot_base_url
-        self.timeout = 30.0
+        self.read_timeout = settings.spring_boot_read_timeout
+        self.write_timeout = settings.spring_boot_write_timeout
+        self.client: Optional[httpx.AsyncClient] = None
+        self.in_flight = 0
+        self._idle: Optional[asyncio.Event] = None
+        
+        # Circuit breaker and adaptive concurrency limit per endpoint group
+        self.guards: Dict[str, EndpointGuard] = {}
+        
+        # Doctor directory and slots change slowly; shared by all users
+        cache_redis_url = settings.redis_url if settings.api_cache_redis else None
+        self.doctor_cache = ReadThroughCache(
+            'doctors',
+            settings.doctor_cache_ttl,
+            settings.api_cache_stale_ttl,
+            settings.api_cache_max_entries,
+            cache_redis_url
+        )
+        self.availability_cache = ReadThroughCache(
+            'availability',
+            settings.availability_cache_ttl,
+            settings.api_cache_stale_ttl,
+            settings.api_cache_max_entries,
+            cache_redis_url
+        )
+        
+        # Per-user list reads: identical concurrent requests share one call.
+        # The backend has no bulk read endpoints, so distinct reads are only
+        # bounded in concurrency rather than batched.
+        self.user_reads = BatchLoader(
+            'user_reads',
+            self._load_user_read,
+            concurrency=settings.spring_boot_read_concurrency
+        )
+    
+    async def start(self):
+        """Open the shared connection pool"""
+        if self.client is not None:
+            return
+        
+        http2 = settings.spring_boot_http2
+        if http2:
+            try:
+                import h2  # noqa: F401
+            except ImportError:
+                logger.warning("h2 is not installed, using HTTP/1.1 for the Spring Boot API")
+                http2 = False
+        
+        self.client = httpx.AsyncClient(
+            http2=http2,
+            limits=httpx.Limits(
+                max_connections=settings.spring_boot_max_connections,
+                max_keepalive_connections=settings.spring_boot_max_keepalive,
+                keepalive_expiry=settings.spring_boot_keepalive_expiry
+            ),
+            timeout=httpx.Timeout(self.read_timeout, connect=settings.spring_boot_connect_timeout)
+        )
+        await self.doctor_cache.start()
+        await self.availability_cache.start()
+        logger.info(f"Spring Boot API client pool started (http2={http2})")
+    
+    async def close(self):
+        """Let in-flight requests finish (up to the write timeout), then close pooled connections"""
+        client = self.client
+        if client is None:
+            return
+        
+        if self.in_flight:
+            logger.info(f"Waiting for {self.in_flight} Spring Boot API requests to finish")
+            try:
+                await asyncio.wait_for(self._idle.wait(), timeout=self.write_timeout)
+            except asyncio.TimeoutError:
+                logger.warning(f"Closing Spring Boot API client with {self.in_flight} requests in flight")
+        
+        await self.user_reads.close()
+        self.client = None
+        await client.aclose()
+        await self.doctor_cache.close()
+        await self.availability_cache.close()
     
     async def make_request(
         self,
@@ -72,9 +512,13 @@ class SpringBootAPIClient:
         endpoint: str,
         token: str,
         data: Optional[Dict] = None,
-        params: Optional[Dict] = None
+        params: Optional[Dict] = None,
+        timeout: Optional[float] = None
     ) -> Dict[str, Any]:
-        """Make authenticated request to Spring Boot API"""
+        """Make authenticated request to Spring Boot API
+        
+        timeout overrides the read/write default for slow endpoints.
+        """
         
         headers = {
             'Authorization': f'Bearer {token}',
@@ -82,23 +526,45 @@ class SpringBootAPIClient:
         }
         
         url = f"{self.base_url}{endpoint}"
+        method = method.upper()
+        if method != 'GET' and method not in self.WRITE_METHODS:
+            raise ValueError(f"Unsupported HTTP method: {method}")
+        if timeout is None:
+            timeout = self.write_timeout if method in self.WRITE_METHODS else self.read_timeout
         
+        if self.client is None:
+            # Used outside the application lifespan (scripts, tests)
+            await self.start()
+        
+        # Fails fast with 503 while the endpoint's breaker is open or its limit is reached
+        guard = self._guard(method, endpoint)
+        generation = await guard.acquire()
+        healthy = False
+        cancelled = False
+        started = time.perf_counter()
+        
+        if self._idle is None:
+            self._idle = asyncio.Event()
+        self.in_flight += 1
+        self._idle.clear()
         try:
-            async with httpx.AsyncClient(timeout=self.timeout) as client:
-                if method.upper() == 'GET':
-                    response = await client.get(url, headers=headers, params=params)
-                elif method.upper() == 'POST':
-                    response = await client.post(url, headers=headers, json=data)
-                elif method.upper() == 'PUT':
-                    response = await client.put(url, headers=headers, json=data)
-                elif method.upper() == 'DELETE':
-                    response = await client.delete(url, headers=headers)
-                else:
-                    raise ValueError(f"Unsupported HTTP method: {method}")
-                
-                response.raise_for_status()
-                return response.json()
-                
+            response = await self.client.request(
+                method,
+                url,
+                headers=headers,
+                params=params,
+                json=data if method in ('POST', 'PUT') else None,
+                timeout=httpx.Timeout(timeout, connect=settings.spring_boot_connect_timeout)
+            )
+            # Client errors mean the backend is up; only 5xx counts against it
+            healthy = response.status_code < 500
+            response.raise_for_status()
+            return response.json()
+            
+        except asyncio.CancelledError:
+            # The caller gave up (e.g. a fan-out sibling failed): not the backend's fault
+            cancelled = True
+            raise
         except httpx.HTTPStatusError as e:
             logger.error(f"HTTP error {e.response.status_code}: {e.response.text}")
             raise HTTPException(
@@ -111,6 +577,48 @@ class SpringBootAPIClient:
                 status_code=status.HTTP_503_SERVICE_UNAVAILABLE,
                 detail="Backend service unavailable"
             )
+        finally:
+            if cancelled:
+                guard.abandon(generation)
+            else:
+                guard.release(time.perf_counter() - started, healthy, generation)
+            self.in_flight -= 1
+            if self.in_flight == 0:
+                self._idle.set()
+    
+    def _guard(self, method: str, endpoint: str) -> EndpointGuard:
+        """Guard for an endpoint group such as 'GET /appointments'"""
+        name = f"{method} /{endpoint.lstrip('/').split('/', 1)[0]}"
+        guard = self.guards.get(name)
+        if guard is None:
+            guard = EndpointGuard(
+                name,
+                CircuitBreaker(settings.spring_boot_breaker_failures, settings.spring_boot_breaker_reset),
+                AIMDLimiter(
+                    settings.spring_boot_concurrency_initial,
+                    1,
+                    settings.spring_boot_max_connections,
+                    settings.spring_boot_slow_call_ms / 1000,
+                    settings.spring_boot_queue_timeout_ms / 1000
+                )
+            )
+            self.guards[name] = guard
+        return guard
+    
+    def get_backend_stats(self) -> Dict[str, Any]:
+        return {
+            'in_flight': self.in_flight,
+            'endpoints': {name: guard.get_stats() for name, guard in self.guards.items()}
+        }
+    
+    async def _load_user_read(self, key) -> Any:
+        endpoint, token = key
+        return await self.make_request('GET', endpoint, token)
+    
+    async def _get_user_list(self, endpoint: str, token: str) -> List[Dict]:
+        """GET a per-user list, de-duplicated against identical reads in flight"""
+        response = await self.user_reads.load((endpoint, token))
+        return list(response) if isinstance(response, list) else []
     
     # Appointment-related methods
     async def get_appointments(self, token: str, user_id: str, role: str) -> List[Dict]:
@@ -120,44 +628,65 @@ class SpringBootAPIClient:
         else:  # DOCTOR
             endpoint = f"/appointments/doctor/{user_id}"
         
-        response = await self.make_request('GET', endpoint, token)
-        return response if isinstance(response, list) else []
+        return await self._get_user_list(endpoint, token)
     
     async def book_appointment(self, token: str, appointment_data: Dict) -> Dict:
         """Book a new appointment"""
         endpoint = "/appointments/book"
-        return await self.make_request('POST', endpoint, token, appointment_data)
+        try:
+            return await self.make_request('POST', endpoint, token, appointment_data)
+        finally:
+            # Slots changed; availability must not be served from cache
+            self.availability_cache.invalidate()
     
     async def cancel_appointment(self, token: str, appointment_id: str) -> Dict:
         """Cancel an appointment"""
         endpoint = f"/appointments/{appointment_id}/cancel"
-        return await self.make_request('PUT', endpoint, token)
+        try:
+            return await self.make_request('PUT', endpoint, token)
+        finally:
+            self.availability_cache.invalidate()
     
     async def reschedule_appointment(self, token: str, appointment_id: str, new_data: Dict) -> Dict:
         """Reschedule an appointment"""
         endpoint = f"/appointments/{appointment_id}/reschedule"
-        return await self.make_request('PUT', endpoint, token, new_data)
+        try:
+            return await self.make_request('PUT', endpoint, token, new_data)
+        finally:
+            self.availability_cache.invalidate()
     
     # Doctor-related methods
     async def get_doctors(self, token: str, specialization: Optional[str] = None) -> List[Dict]:
-        """Get list of doctors"""
-        endpoint = "/doctors"
-        params = {'specialization': specialization} if specialization else None
-        response = await self.make_request('GET', endpoint, token, params=params)
-        return response if isinstance(response, list) else []
+        """Get list of doctors (read-through cached per specialization)"""
+        async def load():
+            endpoint = "/doctors"
+            params = {'specialization': specialization} if specialization else None
+            response = await self.make_request('GET', endpoint, token, params=params)
+            return response if isinstance(response, list) else []
+        
+        return await self.doctor_cache.get((specialization or '*').lower(), load)
     
     async def get_doctor_availability(self, token: str, doctor_id: str, date: str) -> Dict:
-        """Get doctor availability for a specific date"""
-        endpoint = f"/doctors/{doctor_id}/available-slots"
-        params = {'date': date}
-        return await self.make_request('GET', endpoint, token, params=params)
+        """Get doctor availability for a specific date (read-through cached)"""
+        async def load():
+            endpoint = f"/doctors/{doctor_id}/available-slots"
+            params = {'date': date}
+            return await self.make_request('GET', endpoint, token, params=params)
+        
+        return await self.availability_cache.get(f"{doctor_id}:{date}", load)
+    
+    def get_cache_stats(self) -> Dict[str, Any]:
+        return {
+            'doctors': self.doctor_cache.get_stats(),
+            'availability': self.availability_cache.get_stats(),
+            'user_reads': self.user_reads.get_stats()
+        }
     
     # Prescription-related methods
     async def get_prescriptions(self, token: str, patient_id: str) -> List[Dict]:
         """Get prescriptions for a patient"""
         endpoint = f"/prescriptions/patient/{patient_id}"
-        response = await self.make_request('GET', endpoint, token)
-        return response if isinstance(response, list) else []
+        return await self._get_user_list(endpoint, token)
     
     async def add_prescription(self, token: str, prescription_data: Dict) -> Dict:
         """Add a new prescription"""
@@ -168,15 +697,91 @@ class SpringBootAPIClient:
     async def get_medical_reports(self, token: str, patient_id: str) -> List[Dict]:
         """Get medical reports for a patient"""
         endpoint = f"/medical-reports/patient/{patient_id}"
-        response = await self.make_request('GET', endpoint, token)
-        return response if isinstance(response, list) else []
+        return await self._get_user_list(endpoint, token)
     
     # Patient-related methods
     async def get_patients(self, token: str, doctor_id: str) -> List[Dict]:
         """Get patients assigned to a doctor"""
         endpoint = f"/doctors/{doctor_id}/patients"
-        response = await self.make_request('GET', endpoint, token)
-        return response if isinstance(response, list) else []
+        return await self._get_user_list(endpoint, token)
+
+
+# Keyword tables, in the order the checks apply; compiled once into keyword_matcher
+PATIENT_INTENT_KEYWORDS = [
+    ('book_appointment', ['book', 'schedule', 'appointment', 'meet']),
+    ('view_appointments', ['my appointments', 'upcoming', 'scheduled']),
+    ('modify_appointment', ['cancel', 'reschedule', 'change']),
+    ('view_prescriptions', ['prescription', 'medicine', 'medication', 'pills']),
+    ('view_reports', ['report', 'test result', 'lab result']),
+    ('doctor_info', ['doctor', 'specialist', 'available']),
+    ('emergency', settings.emergency_keywords)
+]
+EMERGENCY_GROUP = len(PATIENT_INTENT_KEYWORDS) - 1
+
+DOCTOR_INTENT_KEYWORDS = [
+    ('view_appointments', ['appointments', 'schedule', 'calendar', 'today']),
+    ('view_patients', ['patients', 'my patients', 'patient list']),
+    ('add_prescription', ['prescribe', 'prescription', 'medication', 'medicine']),
+    ('add_diagnosis', ['diagnosis', 'diagnose', 'condition', 'treatment']),
+    ('patient_history', ['history', 'medical history', 'previous']),
+    ('emergency_patients', ['emergency', 'urgent', 'critical']),
+    ('schedule_management', ['schedule', 'availability', 'time slots'])
+]
+
+# Common variations, checked after the specialization names themselves
+SPECIALIZATION_ALIASES = {
+    'heart': 'Cardiology',
+    'skin': 'Dermatology',
+    'brain': 'Neurology',
+    'bone': 'Orthopedics',
+    'eye': 'Ophthalmology',
+    'ear': 'ENT',
+    'mental': 'Psychiatry',
+    'lung': 'Pulmonology',
+    'stomach': 'Gastroenterology',
+    'kidney': 'Urology',
+    'child': 'Pediatrics',
+    'cancer': 'Oncology'
+}
+
+# ReMeDi departments (所属科室 of linked entities) and the specializations they book
+DEPARTMENT_SPECIALIZATIONS = {
+    '心脏内科': 'Cardiology', '心血管内科': 'Cardiology', '心内科': 'Cardiology', '心血管科': 'Cardiology',
+    '心脏外科': 'Cardiology', '心外科': 'Cardiology',
+    '皮肤科': 'Dermatology', '皮肤性病科': 'Dermatology', '皮肤性病': 'Dermatology', '中医皮肤科': 'Dermatology',
+    '性病科': 'Dermatology',
+    '内分泌科': 'Endocrinology', '代谢科': 'Endocrinology',
+    '消化内科': 'Gastroenterology', '消化科': 'Gastroenterology', '胃肠外科': 'Gastroenterology',
+    '肝病': 'Gastroenterology', '肝炎科': 'Gastroenterology', '肛肠科': 'Gastroenterology',
+    '神经内科': 'Neurology', '神经外科': 'Neurology', '神经科': 'Neurology',
+    '肿瘤科': 'Oncology', '头颈肿瘤外科': 'Oncology', '放疗、化疗科': 'Oncology',
+    '骨科': 'Orthopedics', '骨伤科': 'Orthopedics',
+    '儿科': 'Pediatrics', '小儿科': 'Pediatrics', '新生儿科': 'Pediatrics', '儿外科': 'Pediatrics',
+    '小儿外科': 'Pediatrics', '中医儿科': 'Pediatrics',
+    '精神心理科': 'Psychiatry', '精神科': 'Psychiatry', '精神专科': 'Psychiatry', '心理科': 'Psychiatry',
+    '心理医学科': 'Psychiatry', '心理咨询室': 'Psychiatry',
+    '呼吸内科': 'Pulmonology', '呼吸科': 'Pulmonology',
+    '放射科': 'Radiology', '介入科': 'Radiology',
+    '泌尿外科': 'Urology', '肾内科': 'Urology', '男科': 'Urology',
+    '妇产科': 'Gynecology', '妇科': 'Gynecology', '产科': 'Gynecology', '中医妇科': 'Gynecology',
+    '生殖医学科': 'Gynecology',
+    '耳鼻喉科': 'ENT', '耳鼻咽喉科': 'ENT', '耳鼻喉': 'ENT', '耳鼻咽喉头颈外科': 'ENT', '五官科': 'ENT',
+    '头颈外科': 'ENT',
+    '眼科': 'Ophthalmology',
+    '内科': 'Internal Medicine', '中医内科': 'Internal Medicine',
+    '社区科室': 'General Practice', '门诊': 'General Practice'
+}
+
+# Every lookup scans the same form of the message, so they share one memoized scan
+keyword_matcher = KeywordMatcher([
+    KeywordTable('patient_intent', PATIENT_INTENT_KEYWORDS),
+    KeywordTable('doctor_intent', DOCTOR_INTENT_KEYWORDS),
+    KeywordTable('specialization', [
+        (specialization, [specialization.lower()]) for specialization in settings.medical_specializations
+    ] + [
+        (specialization, [keyword]) for keyword, specialization in SPECIALIZATION_ALIASES.items()
+    ])
+], normalize=lambda message: message.lower().strip())
 
 
 class MessageProcessor:
@@ -185,68 +790,40 @@ class MessageProcessor:
     @staticmethod
     def extract_intent(message: str) -> str:
         """Extract intent from user message using rule-based approach"""
-        message_lower = message.lower().strip()
-        
-        # Appointment booking intents
-        if any(keyword in message_lower for keyword in ['book', 'schedule', 'appointment', 'meet']):
-            return 'book_appointment'
-        
-        # View appointments
-        if any(keyword in message_lower for keyword in ['my appointments', 'upcoming', 'scheduled']):
-            return 'view_appointments'
-        
-        # Cancel/reschedule
-        if any(keyword in message_lower for keyword in ['cancel', 'reschedule', 'change']):
-            return 'modify_appointment'
-        
-        # Prescriptions
-        if any(keyword in message_lower for keyword in ['prescription', 'medicine', 'medication', 'pills']):
-            return 'view_prescriptions'
-        
-        # Medical reports
-        if any(keyword in message_lower for keyword in ['report', 'test result', 'lab result']):
-            return 'view_reports'
-        
-        # Doctor information
-        if any(keyword in message_lower for keyword in ['doctor', 'specialist', 'available']):
-            return 'doctor_info'
-        
-        # Emergency
-        if any(keyword in message_lower for keyword in settings.emergency_keywords):
-            return 'emergency'
-        
-        # General chat
-        return 'general_chat'
+        return keyword_matcher.first('patient_intent', message) or 'general_chat'
+    
+    @staticmethod
+    def extract_doctor_intent(message: str) -> str:
+        """Extract intent from doctor message"""
+        return keyword_matcher.first('doctor_intent', message) or 'general_chat'
+    
+    @staticmethod
+    async def classify_intent(message: str, role: str = 'PATIENT') -> str:
+        """Intent from the NLU model when enabled and confident, else from keywords"""
+        intent = await intent_engine.predict_intent(message, role)
+        if intent:
+            return intent
+        if role == 'DOCTOR':
+            return MessageProcessor.extract_doctor_intent(message)
+        return MessageProcessor.extract_intent(message)
+    
+    @staticmethod
+    def extract_entities(message: str) -> List[Dict[str, Any]]:
+        """Disease, symptom, medicine, check item and department mentions linked to the knowledge base"""
+        return [entity.to_dict() for entity in entity_linker.link(message)]
     
     @staticmethod
     def extract_specialization(message: str) -> Optional[str]:
         """Extract medical specialization from message"""
-        message_lower = message.lower()
-        
-        for specialization in settings.medical_specializations:
-            if specialization.lower() in message_lower:
-                return specialization
-        
-        # Common variations
-        specialization_map = {
-            'heart': 'Cardiology',
-            'skin': 'Dermatology',
-            'brain': 'Neurology',
-            'bone': 'Orthopedics',
-            'eye': 'Ophthalmology',
-            'ear': 'ENT',
-            'mental': 'Psychiatry',
-            'lung': 'Pulmonology',
-            'stomach': 'Gastroenterology',
-            'kidney': 'Urology',
-            'child': 'Pediatrics',
-            'cancer': 'Oncology'
-        }
-        
-        for keyword, specialization in specialization_map.items():
-            if keyword in message_lower:
-                return specialization
+        specialization = keyword_matcher.first('specialization', message)
+        if specialization:
+            return specialization
         
+        # Otherwise the first known department of a linked entity (listed primary first)
+        for entity in entity_linker.link(message):
+            for department in entity.departments:
+                if department in DEPARTMENT_SPECIALIZATIONS:
+                    return DEPARTMENT_SPECIALIZATIONS[department]
         return None
     
     @staticmethod
@@ -284,8 +861,8 @@ class MessageProcessor:
     @staticmethod
     def is_emergency(message: str) -> bool:
         """Check if message indicates an emergency"""
-        message_lower = message.lower()
-        return any(keyword in message_lower for keyword in settings.emergency_keywords)
+        hits = keyword_matcher.scan(message)
+        return keyword_matcher.tables['patient_intent'].hit(hits, EMERGENCY_GROUP)
     
     @staticmethod
     def format_prescription(prescriptions: List[Dict]) -> str:
@@ -330,3 +907,13 @@ class MessageProcessor:
 
 # Global API client instance
 api_client = SpringBootAPIClient()
+
+# Global message ID generator
+message_ids = MessageIdGenerator(settings.message_id_worker_id)
+
+# Compression for chat history responses
+history_compressor = ResponseCompressor(
+    settings.history_compression_min_bytes,
+    settings.history_gzip_level,
+    settings.history_brotli_quality
+)
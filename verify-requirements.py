@@ -49,6 +49,8 @@ def main():
         ("loguru", "Loguru"),
         ("nltk", "NLTK"),
         ("spacy", "spaCy"),
+        ("onnxruntime", "ONNX Runtime"),
+        ("tokenizers", "Tokenizers"),
     ]
     
     print("🔍 Testing Critical Packages:")
@@ -89,6 +91,7 @@ def main():
     if optional_failed:
         print(f"⚠️  Optional packages missing: {', '.join(optional_failed)}")
         print("   (These are not critical for basic functionality)")
+        print("   ENABLE_NLP=true needs: pip install -r requirements-nlp.txt")
     else:
         print("✅ All optional packages are also available!")
     